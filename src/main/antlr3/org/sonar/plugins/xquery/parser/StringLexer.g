@@ -37,6 +37,12 @@ package org.sonar.plugins.xquery.parser;
 		this.inQuotStr = !isAposStr;
 		setIsWsExplicit(true);
 	}
+	
+	public void recycle(boolean isAposStr) {
+		recycle();
+		this.inAposStr = isAposStr;
+		this.inQuotStr = !isAposStr;
+	}
 }
 
 QUOT	:	{ inQuotStr }? => '"' { inQuotStr = !inQuotStr; };
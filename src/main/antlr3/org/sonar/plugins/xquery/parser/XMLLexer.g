@@ -62,6 +62,14 @@ package org.sonar.plugins.xquery.parser;
 	   return inQuotAttr;
 	}
 	    
+	@Override
+	public void recycle() {
+		super.recycle();
+		inElem = true;
+		inAposAttr = false;
+		inQuotAttr = false;
+	}
+	
 	@Override
 	public void addToStack(List<AbstractXQueryLexer> stack) {
 		if (!inAposAttr && !inQuotAttr)
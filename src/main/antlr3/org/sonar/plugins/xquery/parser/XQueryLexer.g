@@ -319,8 +319,8 @@ PI_END                  : '?>';
 ATTR_SIGN               : '@';
 CHARREF_DEC             : '&#';
 CHARREF_HEX             : '&#x';
-APOS                    : '\'';
-QUOT                    : '"';
+APOS                    : '\'' { lexStringLiteral(APOS, StringLexer.L_AposStringLiteralChar); };
+QUOT                    : '"' { lexStringLiteral(QUOT, StringLexer.L_QuotStringLiteralChar); };
 
 
 L_NCName
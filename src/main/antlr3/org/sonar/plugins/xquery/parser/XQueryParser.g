@@ -387,7 +387,7 @@ p_Annotation
 //[28]
 // Added support for "private" variables in MarkLogic
 pm_VarDecl
-        : ({lc(MLS)}?=> pr=PRIVATE {ak($pr);})? k=VARIABLE {ak($k);} DOLLAR qn=p_QName td=p_TypeDeclaration? ((BIND vv=p_VarValue) | (k=EXTERNAL {ak($k);} (BIND vdv=p_VarDefaultValue)?))
+        : ({lc(MLS)}?=> pr=PRIVATE {ak($pr);})? k=VARIABLE {ak($k);} DOLLAR qn=p_QName td=p_TypeDeclaration? ((BIND {skipVarValue();} vv=p_VarValue) | (k=EXTERNAL {ak($k);} (BIND {skipVarValue();} vdv=p_VarDefaultValue)?))
                 -> ^(VarDecl ^( VarName $qn ) ^( VarType $td? ) ^( VarValue $vv? ) ^(VarDefaultValue $vdv?))
         ;
 
@@ -409,8 +409,8 @@ pm_ContextItemDecl
 //[32]
 //[32] new XQuery Scripting proposal
 // Added support for "private" functions in MarkLogic
-pm_FunctionDecl
-        : ({lc(XQU)}?=> k=UPDATING {ak($k);})? ({lc(MLS)}?=> pr=PRIVATE {ak($pr);})? k=FUNCTION {ak($k);} qn=p_FQName LPAREN pl=p_ParamList? RPAREN (k=AS {ak($k);} st=p_SequenceType)? (LBRACKET soe=p_StatementsAndOptionalExpr RBRACKET | k=EXTERNAL {ak($k);} )
+pm_FunctionDecl @after {deferFunctionBody($tree);}
+        : ({lc(XQU)}?=> k=UPDATING {ak($k);})? ({lc(MLS)}?=> pr=PRIVATE {ak($pr);})? k=FUNCTION {ak($k);} qn=p_FQName LPAREN pl=p_ParamList? RPAREN (k=AS {ak($k);} st=p_SequenceType)? (LBRACKET {skipFunctionBody();} soe=p_StatementsAndOptionalExpr RBRACKET | k=EXTERNAL {ak($k);} )
                 -> ^( FunctionDecl $pr? ^( FunctionName $qn ) $pl? ^( ReturnType $st? ) ^( FunctionBody $soe? ) )
         ;
 
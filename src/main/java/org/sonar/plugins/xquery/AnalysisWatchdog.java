@@ -0,0 +1,73 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery;
+
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.plugins.xquery.parser.visitor.Deadline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Gives the work on each file a deadline and keeps track of the files that
+ * ran past it, so that a single runaway file is skipped rather than stalling
+ * the whole analysis. Can be used by several threads at once.
+ */
+class AnalysisWatchdog {
+
+    private static final Logger logger = Logger.getLogger(AnalysisWatchdog.class.getName());
+
+    private final long timeout;
+    private final List<String> skipped = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * @param timeout
+     *            The time in milliseconds the work on a file may take, or 0
+     *            for no limit
+     */
+    AnalysisWatchdog(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Starts the clock on the work on a file.
+     */
+    Deadline start() {
+        return new Deadline(timeout);
+    }
+
+    /**
+     * Logs a file that was skipped, with the time the work on it took.
+     *
+     * @param step
+     *            What was being done, such as "mapping" or "analysis"
+     * @param timings
+     *            How the time was spent, or null if that is not known
+     */
+    void skip(InputFile inputFile, String step, Deadline deadline, String timings) {
+        StringBuilder message = new StringBuilder("Skipped the ").append(step).append(" of ")
+                .append(inputFile.relativePath()).append(" after ").append(deadline.getElapsedTime()).append(" ms");
+        if (timings != null) {
+            message.append(" (").append(timings).append(")");
+        }
+        logger.warning(message.toString());
+        skipped.add(inputFile.relativePath() + " (" + step + ")");
+    }
+
+    /**
+     * Logs the files that were skipped, if there were any.
+     */
+    void logSummary() {
+        synchronized (skipped) {
+            if (!skipped.isEmpty()) {
+                List<String> files = new ArrayList<String>(skipped);
+                Collections.sort(files);
+                logger.warning(files.size() + " files took longer than " + timeout + " ms and were skipped: " + files);
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ package org.sonar.plugins.xquery;
 
 import org.sonar.api.Properties;
 import org.sonar.api.Property;
+import org.sonar.api.PropertyType;
 import org.sonar.api.SonarPlugin;
 import org.sonar.plugins.xquery.api.XQueryConstants;
 import org.sonar.plugins.xquery.language.XQuery;
@@ -38,7 +39,67 @@ import java.util.List;
         description = "Path (absolute or relative) to XML report files.",
         defaultValue = XQueryConstants.DEFAULT_XQTEST_DIRECTORY,
         project = true,
-        global = false)
+        global = false),
+    @Property(key = XQueryConstants.THREADS_KEY,
+        name = "Analysis threads",
+        description = "Number of threads used to analyze the files. Use 0 for one thread per available processor.",
+        defaultValue = "" + XQueryConstants.DEFAULT_THREADS,
+        type = PropertyType.INTEGER,
+        global = true,
+        project = true),
+    @Property(key = XQueryConstants.PARSE_CACHE_SIZE_KEY,
+        name = "Parse cache size",
+        description = "Estimated memory in megabytes used to keep parsed files between the dependency mapping and the analysis. "
+            + "Parsed files that do not fit are written to the working directory. Use 0 to parse each file twice.",
+        defaultValue = "" + XQueryConstants.DEFAULT_PARSE_CACHE_SIZE,
+        type = PropertyType.INTEGER,
+        global = true,
+        project = true),
+    @Property(key = XQueryConstants.INCREMENTAL_KEY,
+        name = "Incremental analysis",
+        description = "Reuse the results of files that did not change since the previous analysis.",
+        defaultValue = "" + XQueryConstants.DEFAULT_INCREMENTAL,
+        type = PropertyType.BOOLEAN,
+        global = true,
+        project = true),
+    @Property(key = XQueryConstants.INCREMENTAL_CACHE_FILE_KEY,
+        name = "Incremental analysis cache file",
+        description = "File (absolute or relative) used to keep the analysis results between runs. Defaults to a file in the scanner working directory, "
+            + "use a location outside of it if the working directory is cleaned between runs.",
+        global = false,
+        project = true),
+    @Property(key = XQueryConstants.MAPPED_FILE_SIZE_KEY,
+        name = "Memory-mapped file size",
+        description = "Size in megabytes from which files are read through a memory-mapped file instead of being loaded into memory. "
+            + "Use 0 to always load files into memory.",
+        defaultValue = "" + XQueryConstants.DEFAULT_MAPPED_FILE_SIZE,
+        type = PropertyType.INTEGER,
+        global = true,
+        project = true),
+    @Property(key = XQueryConstants.MAX_PARSE_ERRORS_KEY,
+        name = "Maximum parse errors",
+        description = "Number of parse errors after which parsing a file is stopped. The file then gets a single parse error issue "
+            + "and only its lines are counted. Use 0 for no limit.",
+        defaultValue = "" + XQueryConstants.DEFAULT_MAX_PARSE_ERRORS,
+        type = PropertyType.INTEGER,
+        global = true,
+        project = true),
+    @Property(key = XQueryConstants.PARSE_TIMEOUT_KEY,
+        name = "Parse timeout",
+        description = "Time in seconds after which parsing a file is stopped, checked whenever the parser reports or recovers from an error. "
+            + "The file then gets a single parse error issue and only its lines are counted. Use 0 for no limit.",
+        defaultValue = "" + XQueryConstants.DEFAULT_PARSE_TIMEOUT,
+        type = PropertyType.INTEGER,
+        global = true,
+        project = true),
+    @Property(key = XQueryConstants.ANALYSIS_TIMEOUT_KEY,
+        name = "Analysis timeout",
+        description = "Time in seconds each pass over a file may take, including parsing it. The checks are stopped between two nodes "
+            + "of the file once it is up, and the file is skipped. Use 0 for no limit.",
+        defaultValue = "" + XQueryConstants.DEFAULT_ANALYSIS_TIMEOUT,
+        type = PropertyType.INTEGER,
+        global = true,
+        project = true)
 })
 public class XQueryPlugin extends SonarPlugin {
 
@@ -4,9 +4,11 @@
 
 package org.sonar.plugins.xquery;
 
+import org.apache.commons.lang.StringUtils;
 import org.sonar.api.batch.fs.FilePredicate;
 import org.sonar.api.batch.fs.FileSystem;
 import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.rule.ActiveRule;
 import org.sonar.api.batch.rule.CheckFactory;
 import org.sonar.api.batch.sensor.Sensor;
 import org.sonar.api.batch.sensor.SensorContext;
@@ -19,21 +21,47 @@ import org.sonar.api.measures.FileLinesContextFactory;
 import org.sonar.api.resources.Project;
 import org.sonar.api.rule.RuleKey;
 import org.sonar.plugins.xquery.api.XQueryConstants;
+import org.sonar.plugins.xquery.cache.AnalysisCache;
+import org.sonar.plugins.xquery.cache.FileAnalysis;
 import org.sonar.plugins.xquery.checks.XQueryChecks;
 import org.sonar.plugins.xquery.language.Issue;
 import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.language.SourceText;
 import org.sonar.plugins.xquery.language.XQueryLineCountParser;
 import org.sonar.plugins.xquery.language.XQuerySourceCode;
-import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.MappedCharStream;
+import org.sonar.plugins.xquery.parser.ModuleHeader;
+import org.sonar.plugins.xquery.parser.ModuleHeaderScanner;
+import org.sonar.plugins.xquery.parser.node.Declaration;
 import org.sonar.plugins.xquery.parser.node.DependencyMapper;
+import org.sonar.plugins.xquery.parser.node.Import;
 import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.sonar.plugins.xquery.parser.visitor.Deadline;
+import org.sonar.plugins.xquery.parser.visitor.DeadlineExceededException;
+import org.sonar.plugins.xquery.parser.visitor.ParseCache;
+import org.sonar.plugins.xquery.parser.visitor.ParseResult;
 import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
 import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -77,59 +105,387 @@ public class XQuerySensor implements Sensor {
         // List<XQueryAstVisitor> visitors = new ArrayList(checks);
         List<XQueryAstVisitor> visitors = this.checks.visitorChecks();
 
-                // Create a mapper and add it to the visitors so that it can keep track
-        // of global declarations and the local declaration stack
+        // Create a mapper to keep track of the global declarations
         DependencyMapper mapper = new DependencyMapper();
-        visitors.add(mapper);
 
-        // Do the first pass to map all the global dependencies
-        logger.info("Scanning all files to map dependencies");
-        Iterable<InputFile> inputFiles = fileSystem.inputFiles(mainFilePredicate);
-        for(InputFile inputFile : inputFiles){
-            try {
-                SourceCode sourceCode = new XQuerySourceCode(inputFile);
-                logger.fine("Mapping " + inputFile.relativePath());
+        List<InputFile> inputFiles = new ArrayList<>();
+        for (InputFile inputFile : fileSystem.inputFiles(mainFilePredicate)) {
+            inputFiles.add(inputFile);
+        }
 
-                XQueryAstParser parser = new XQueryAstParser(sourceCode, Arrays.asList(new XQueryAstVisitor[] { mapper }));
-                XQueryTree tree = parser.parse();
-                parser.mapDependencies(tree, mapper);
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "Could not map the dependencies in the file " + inputFile.absolutePath(), e);
+        // Load the results of the previous analysis (if running incrementally)
+        File cacheFile = getAnalysisCacheFile(context);
+        AnalysisCache previous = null;
+        AnalysisCache next = null;
+        if (cacheFile != null) {
+            previous = AnalysisCache.load(cacheFile, getAnalysisCacheVersion(context));
+            next = new AnalysisCache(previous.getVersion());
+        }
+
+        int threads = getThreads(context);
+        ParseCache parseCache = createParseCache(context);
+        long mappedFileSize = getMappedFileSize(context);
+        ParseBudget budget = getParseBudget(context);
+        AnalysisWatchdog watchdog = getAnalysisWatchdog(context);
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            if (executor != null) {
+                logger.info("Analyzing files using " + threads + " threads");
+            }
+
+            // Do the first pass to map all the global dependencies
+            logger.info("Scanning all files to map dependencies");
+            List<FileMapping> mappings;
+            if (executor != null) {
+                mappings = mapDependenciesParallel(inputFiles, parseCache, previous, mappedFileSize, budget, watchdog,
+                        executor);
+            } else {
+                mappings = new ArrayList<>();
+                for (InputFile inputFile : inputFiles) {
+                    mappings.add(mapDependencies(inputFile, parseCache, previous, mappedFileSize, budget, watchdog));
+                }
+            }
+            for (FileMapping mapping : mappings) {
+                if (mapping != null) {
+                    mapper.mergeGlobalDeclarations(mapping.declarations);
+                }
+            }
+
+            // Now that the global mappings are done we can change the mode to "local"
+            mapper.setMode("local");
+            Map<String, String> exports = AnalysisCache.fingerprintExports(mapper.getGlobalDeclarations());
+            if (previous != null) {
+                invalidateDependents(inputFiles, mappings, previous, exports, mapper);
+            }
+
+            // Do the second pass to process the checks and other metrics
+            logger.info("Scanning all files and gathering metrics");
+            List<FileAnalysis> analyses;
+            if (executor != null) {
+                analyses = analyseParallel(inputFiles, mappings, mapper, parseCache, mappedFileSize, budget, watchdog,
+                        executor);
+            } else {
+                // Add a local mapper to the visitors so that it can keep track
+                // of the local declaration stack
+                DependencyMapper localMapper = mapper.newLocalMapper();
+                visitors.add(localMapper);
+
+                analyses = new ArrayList<>();
+                FileAnalyzer analyzer = new FileAnalyzer(visitors, localMapper, parseCache, mappedFileSize, budget,
+                        watchdog);
+                for (int i = 0; i < inputFiles.size(); i++) {
+                    analyses.add(analyzer.analyse(inputFiles.get(i), mappings.get(i)));
+                }
             }
+            watchdog.logSummary();
+            logger.fine("Reused " + parseCache.getHits() + " parsed files, parsed " + parseCache.getMisses() + " files again");
+
+            for (int i = 0; i < inputFiles.size(); i++) {
+                InputFile inputFile = inputFiles.get(i);
+                FileAnalysis analysis = analyses.get(i);
+                if (analysis != null) {
+                    saveMetrics(inputFile, context, analysis);
+                    if (next != null && analysis.getHash() != null) {
+                        next.put(inputFile.relativePath(), analysis);
+                    }
+                }
+            }
+
+            if (next != null) {
+                next.setExports(exports);
+                saveAnalysisCache(next, cacheFile);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.log(Level.SEVERE, "Interrupted while analyzing files", e);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            parseCache.clear();
         }
+    }
 
-        // Now that the global mappings are done we can change the mode to "local"
-        mapper.setMode("local");
-                
-        // Do the second pass to process the checks and other metrics
-        logger.info("Scanning all files and gathering metrics");
-        for(InputFile inputFile : inputFiles){
-            try {
-                SourceCode sourceCode = new XQuerySourceCode(inputFile);
-                logger.fine("Analyzing " + inputFile.relativePath());
+    /**
+     * Maps the global declarations of a single file. The parse result is added
+     * to the cache so that the file does not have to be parsed again for the
+     * analysis. The function bodies are deferred while the declarations are
+     * mapped and parsed when the tree is compacted for the cache; without a
+     * cache only the declarations are parsed. Only library modules have global
+     * declarations, so a file whose header is scanned as a main module (see
+     * ModuleHeaderScanner) is not parsed until the analysis. When running
+     * incrementally a file that has not changed since the previous analysis is
+     * not parsed at all, its cached declarations are used instead.
+     * 
+     * @return The global declarations of the file, or null if the file could
+     *         not be mapped or took longer than the watchdog allows
+     */
+    private static FileMapping mapDependencies(InputFile inputFile, ParseCache parseCache, AnalysisCache previous,
+            long mappedFileSize, ParseBudget budget, AnalysisWatchdog watchdog) {
+        Deadline deadline = watchdog.start();
+        try {
+            String hash = null;
+            SourceCode sourceCode = null;
+            if (previous != null) {
+                if (isMapped(inputFile, mappedFileSize)) {
+                    try (InputStream input = inputFile.inputStream()) {
+                        hash = AnalysisCache.hash(input);
+                    }
+                } else {
+                    // Hash and decode the same bytes rather than reading the
+                    // file twice
+                    byte[] bytes = Files.readAllBytes(inputFile.path());
+                    hash = AnalysisCache.hash(bytes);
+                    sourceCode = new XQuerySourceCode(SourceText.decode(bytes, inputFile.charset()), inputFile);
+                }
+                FileAnalysis cached = previous.get(inputFile.relativePath());
+                if (cached != null && hash.equals(cached.getHash())) {
+                    logger.fine("Unchanged " + inputFile.relativePath());
+                    return new FileMapping(hash, cached.getDeclarations(), cached);
+                }
+            }
+            if (sourceCode == null) {
+                sourceCode = createSourceCode(inputFile, mappedFileSize);
+            }
+            ModuleHeader header = ModuleHeaderScanner.scan(sourceCode.getContents());
+            if (header != null && !header.isLibraryModule()) {
+                logger.fine("No declarations to map in " + inputFile.relativePath());
+                return new FileMapping(hash, new ArrayList<Declaration>(), null);
+            }
+            logger.fine("Mapping " + inputFile.relativePath());
+
+            DependencyMapper mapper = new DependencyMapper();
+            XQueryAstParser parser = new XQueryAstParser(sourceCode, Arrays.asList(new XQueryAstVisitor[] { mapper }));
+            parser.setBudget(budget.maxErrors, budget.timeout);
+            parser.setDeadline(deadline);
+            if (parseCache.isEnabled()) {
+                ParseResult result = parser.parseResult(true);
+                parser.mapDependencies(result, mapper);
+                // Only keep the compact form of the tree until the analysis,
+                // which parses the deferred function bodies and lets go of
+                // the parser
+                parseCache.put(inputFile.absolutePath(), result.compact());
+            } else {
+                // The file is parsed again for the analysis anyway, so only
+                // parse the declarations
+                parser.mapDependencies(parser.parseDeclarationsResult(), mapper);
+            }
+            return new FileMapping(hash, new ArrayList<>(mapper.getGlobalDeclarations()), null);
+        } catch (DeadlineExceededException e) {
+            watchdog.skip(inputFile, "mapping", deadline, null);
+            return null;
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Could not map the dependencies in the file " + inputFile.absolutePath(), e);
+            return null;
+        }
+    }
 
-                XQueryAstParser parser = new XQueryAstParser(sourceCode, visitors);
-                ProblemReporter reporter = new ProblemReporter();
-                XQueryTree tree = parser.parse(reporter);
-                parser.process(tree, mapper, reporter);
+    /**
+     * Runs the first pass on a pool of worker threads. Each file is mapped into
+     * its own declaration table and the tables are returned in the same order
+     * as the files, so merging them gives the same global declarations as
+     * mapping the files one after another.
+     */
+    private List<FileMapping> mapDependenciesParallel(List<InputFile> inputFiles, final ParseCache parseCache,
+            final AnalysisCache previous, final long mappedFileSize, final ParseBudget budget,
+            final AnalysisWatchdog watchdog, ExecutorService executor)
+            throws InterruptedException {
+        List<Future<FileMapping>> results = new ArrayList<>();
+        for (final InputFile inputFile : inputFiles) {
+            results.add(executor.submit(new Callable<FileMapping>() {
+                @Override
+                public FileMapping call() {
+                    return mapDependencies(inputFile, parseCache, previous, mappedFileSize, budget, watchdog);
+                }
+            }));
+        }
+        return getResults(inputFiles, results, "Could not map the dependencies in the file ");
+    }
 
-                // Count the lines of code
-                new XQueryLineCountParser(sourceCode).count();
+    /**
+     * Runs the second pass on a pool of worker threads. Each worker uses its
+     * own check instances and local dependency mapper. The results are
+     * returned in the same order as the files so that they can be saved to the
+     * sensor context on the calling thread.
+     */
+    private List<FileAnalysis> analyseParallel(List<InputFile> inputFiles, List<FileMapping> mappings,
+            final DependencyMapper mapper, final ParseCache parseCache, final long mappedFileSize,
+            final ParseBudget budget, final AnalysisWatchdog watchdog, ExecutorService executor)
+            throws InterruptedException {
+        final ThreadLocal<FileAnalyzer> analyzers = new ThreadLocal<FileAnalyzer>() {
+            @Override
+            protected FileAnalyzer initialValue() {
+                List<XQueryAstVisitor> visitors = checks.copy().visitorChecks();
+                DependencyMapper localMapper = mapper.newLocalMapper();
+                visitors.add(localMapper);
+                return new FileAnalyzer(visitors, localMapper, parseCache, mappedFileSize, budget, watchdog);
+            }
+        };
 
-                // Save all the collected metrics
-                saveMetrics(inputFile, context, sourceCode);
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "Could not analyze the file " + inputFile.absolutePath(), e);
+        List<Future<FileAnalysis>> results = new ArrayList<>();
+        for (int i = 0; i < inputFiles.size(); i++) {
+            final InputFile inputFile = inputFiles.get(i);
+            final FileMapping mapping = mappings.get(i);
+            results.add(executor.submit(new Callable<FileAnalysis>() {
+                @Override
+                public FileAnalysis call() {
+                    return analyzers.get().analyse(inputFile, mapping);
+                }
+            }));
+        }
+        return getResults(inputFiles, results, "Could not analyze the file ");
+    }
+
+    /**
+     * Drops the cached results of unchanged files that referenced a global
+     * declaration that changed, so that only the changed files and their
+     * affected importers are analyzed again.
+     */
+    private void invalidateDependents(List<InputFile> inputFiles, List<FileMapping> mappings, AnalysisCache previous,
+            Map<String, String> exports, DependencyMapper mapper) {
+        Set<String> invalidated = previous.findInvalidated(exports, mapper);
+        int changed = 0;
+        int reused = 0;
+        for (int i = 0; i < inputFiles.size(); i++) {
+            FileMapping mapping = mappings.get(i);
+            if (mapping == null || mapping.cached == null) {
+                changed++;
+            } else if (invalidated.contains(inputFiles.get(i).relativePath())) {
+                mappings.set(i, new FileMapping(mapping.hash, mapping.declarations, null));
+            } else {
+                reused++;
+            }
+        }
+        logger.info(changed + " files changed, " + (inputFiles.size() - changed - reused)
+                + " files depend on changed declarations, reusing the results of " + reused + " files");
+    }
+
+    private static <T> List<T> getResults(List<InputFile> inputFiles, List<Future<T>> futures, String failure)
+            throws InterruptedException {
+        List<T> results = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                logger.log(Level.SEVERE, failure + inputFiles.get(i).absolutePath(), e.getCause());
+                results.add(null);
             }
         }
+        return results;
+    }
+
+    private int getThreads(SensorContext context) {
+        int threads = context.config().getInt(XQueryConstants.THREADS_KEY).orElse(XQueryConstants.DEFAULT_THREADS);
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        return threads;
+    }
+
+    /**
+     * @return The size in bytes from which files are read through a
+     *         memory-mapped file (see createSourceCode), or 0 or less if no
+     *         file should be
+     */
+    private static long getMappedFileSize(SensorContext context) {
+        int megabytes = context.config().getInt(XQueryConstants.MAPPED_FILE_SIZE_KEY).orElse(XQueryConstants.DEFAULT_MAPPED_FILE_SIZE);
+        return megabytes * 1024L * 1024L;
+    }
+
+    private static ParseBudget getParseBudget(SensorContext context) {
+        int maxErrors = context.config().getInt(XQueryConstants.MAX_PARSE_ERRORS_KEY).orElse(XQueryConstants.DEFAULT_MAX_PARSE_ERRORS);
+        int seconds = context.config().getInt(XQueryConstants.PARSE_TIMEOUT_KEY).orElse(XQueryConstants.DEFAULT_PARSE_TIMEOUT);
+        return new ParseBudget(Math.max(maxErrors, 0), Math.max(seconds, 0) * 1000L);
+    }
+
+    private static AnalysisWatchdog getAnalysisWatchdog(SensorContext context) {
+        int seconds = context.config().getInt(XQueryConstants.ANALYSIS_TIMEOUT_KEY).orElse(XQueryConstants.DEFAULT_ANALYSIS_TIMEOUT);
+        return new AnalysisWatchdog(Math.max(seconds, 0) * 1000L);
+    }
+
+    private static boolean isMapped(InputFile inputFile, long mappedFileSize) throws IOException {
+        return mappedFileSize > 0 && Files.size(inputFile.path()) >= mappedFileSize;
+    }
+
+    /**
+     * Creates the source code for a file, which reads files of at least the
+     * mapped file size through a memory-mapped file instead of loading them
+     * into memory.
+     */
+    private static SourceCode createSourceCode(InputFile inputFile, long mappedFileSize) throws IOException {
+        if (isMapped(inputFile, mappedFileSize)) {
+            logger.fine("Reading " + inputFile.relativePath() + " through a memory-mapped file");
+            return new XQuerySourceCode(new MappedCharStream(inputFile.file(), inputFile.charset()), inputFile);
+        }
+        return new XQuerySourceCode(inputFile);
+    }
+
+    /**
+     * Creates the cache for the trees from the mapping pass. Trees that do not
+     * fit in memory are spilled to the working directory, unless the cache is
+     * turned off completely.
+     */
+    private ParseCache createParseCache(SensorContext context) {
+        int megabytes = context.config().getInt(XQueryConstants.PARSE_CACHE_SIZE_KEY).orElse(XQueryConstants.DEFAULT_PARSE_CACHE_SIZE);
+        if (megabytes <= 0) {
+            return new ParseCache(0);
+        }
+        return new ParseCache(megabytes * 1024L * 1024L, new File(context.fileSystem().workDir(), "xquery-parse-cache"));
+    }
+
+    /**
+     * @return The file used to keep the analysis results between runs, or null
+     *         if the analysis should not be incremental
+     */
+    private File getAnalysisCacheFile(SensorContext context) {
+        if (!context.config().getBoolean(XQueryConstants.INCREMENTAL_KEY).orElse(XQueryConstants.DEFAULT_INCREMENTAL)) {
+            return null;
+        }
+        String path = context.config().get(XQueryConstants.INCREMENTAL_CACHE_FILE_KEY).orElse(null);
+        if (StringUtils.isNotBlank(path)) {
+            File file = new File(path);
+            return file.isAbsolute() ? file : new File(context.fileSystem().baseDir(), path);
+        }
+        return new File(context.fileSystem().workDir(), AnalysisCache.FILE_NAME);
+    }
+
+    /**
+     * Identifies the plugin build and the active rules (with their parameters)
+     * so that cached results are not reused after either of them changes.
+     */
+    private String getAnalysisCacheVersion(SensorContext context) {
+        List<String> rules = new ArrayList<>();
+        for (ActiveRule rule : context.activeRules().findByRepository(CheckClasses.REPOSITORY_KEY)) {
+            rules.add(rule.ruleKey() + " " + new TreeMap<>(rule.params()));
+        }
+        Collections.sort(rules);
+
+        String version = XQueryPlugin.class.getPackage().getImplementationVersion();
+        try {
+            File plugin = new File(XQueryPlugin.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            version += "@" + plugin.lastModified();
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Could not find the plugin location", e);
+        }
+        return version + ":" + AnalysisCache.hash(StringUtils.join(rules, "\n"));
+    }
+
+    private void saveAnalysisCache(AnalysisCache cache, File file) {
+        try {
+            file.getParentFile().mkdirs();
+            cache.save(file);
+            logger.fine("Saved the analysis of " + cache.size() + " files to " + file.getAbsolutePath());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not save the analysis cache " + file.getAbsolutePath(), e);
+        }
     }
 
-    private void saveMetrics(InputFile file, SensorContext context, SourceCode sourceCode) {
-        for (Issue issue : sourceCode.getIssues()) {
+    private void saveMetrics(InputFile file, SensorContext context, FileAnalysis analysis) {
+        for (Issue issue : analysis.getIssues()) {
             logger.finer("Saving issue: " + issue);
             saveLineIssue(context, file, issue.rule(), issue);
         }
-        for (SourceCode.Measure measure : sourceCode.getMeasures()) {
+        for (SourceCode.Measure measure : analysis.getMeasures()) {
             logger.info("Saving measure: " + measure);
             NewMeasure newMeasure = context.newMeasure();
             newMeasure.on(file).forMetric(measure.getMetric()).withValue(measure.getValue()).save();
@@ -141,8 +497,12 @@ public class XQuerySensor implements Sensor {
 
         NewIssueLocation primaryLocation = newIssue.newLocation()
                 .message(issue.message())
-                .on(inputFile)
-                .at(inputFile.selectLine(issue.line()));
+                .on(inputFile);
+        // Lines outside of the file (like issues reported on the module as a
+        // whole) are reported on the file instead of failing the analysis
+        if (issue.line() > 0 && issue.line() <= inputFile.lines()) {
+            primaryLocation.at(inputFile.selectLine(issue.line()));
+        }
         saveIssue(newIssue, primaryLocation, ruleKey, issue);
     }
 
@@ -177,4 +537,141 @@ public class XQuerySensor implements Sensor {
     public void execute(SensorContext sensorContext) {
         this.analyse(sensorContext);
     }
+
+    /**
+     * The global declarations of a file from the first pass. If the file has
+     * not changed since the previous analysis it also holds the cached
+     * results.
+     */
+    private static class FileMapping {
+
+        private final String hash;
+        private final List<Declaration> declarations;
+        private final FileAnalysis cached;
+
+        FileMapping(String hash, List<Declaration> declarations, FileAnalysis cached) {
+            this.hash = hash;
+            this.declarations = declarations;
+            this.cached = cached;
+        }
+    }
+
+    /**
+     * The number of errors and the time in milliseconds after which parsing a
+     * file is stopped (0 for no limit).
+     */
+    private static class ParseBudget {
+
+        private final int maxErrors;
+        private final long timeout;
+
+        ParseBudget(int maxErrors, long timeout) {
+            this.maxErrors = maxErrors;
+            this.timeout = timeout;
+        }
+    }
+
+    /**
+     * Runs the checks and line counts against a file, reusing the tree from
+     * the dependency mapping pass when it is still cached. The visitors keep
+     * state while processing a file so an analyzer must only be used by one
+     * thread.
+     */
+    private static class FileAnalyzer {
+
+        private final DependencyMapper mapper;
+        private final ParseCache parseCache;
+        private final long mappedFileSize;
+        private final AnalysisWatchdog watchdog;
+
+        // The parser is used for every file so that it only works out which
+        // visitors each node type needs once
+        private final XQueryAstParser parser;
+
+        FileAnalyzer(List<XQueryAstVisitor> visitors, DependencyMapper mapper, ParseCache parseCache,
+                long mappedFileSize, ParseBudget budget, AnalysisWatchdog watchdog) {
+            this.mapper = mapper;
+            this.parseCache = parseCache;
+            this.mappedFileSize = mappedFileSize;
+            this.watchdog = watchdog;
+            parser = new XQueryAstParser(null, visitors);
+            parser.setBudget(budget.maxErrors, budget.timeout);
+        }
+
+        /**
+         * @param mapping
+         *            The first pass results for the file
+         * @return The issues and measures for the file, or null if the file
+         *         could not be analyzed or took longer than the watchdog
+         *         allows
+         */
+        FileAnalysis analyse(InputFile inputFile, FileMapping mapping) {
+            if (mapping != null && mapping.cached != null) {
+                logger.fine("Reusing the analysis of " + inputFile.relativePath());
+                return mapping.cached;
+            }
+
+            Deadline deadline = watchdog.start();
+            long parseTime = 0;
+            try {
+                SourceCode sourceCode = createSourceCode(inputFile, mappedFileSize);
+                logger.fine("Analyzing " + inputFile.relativePath());
+
+                parser.setSourceCode(sourceCode);
+                parser.setDeadline(deadline);
+                ParseResult result = parseCache.take(inputFile.absolutePath());
+                if (result == null) {
+                    result = parser.parseResult();
+                }
+                parseTime = deadline.getElapsedTime();
+                deadline.checkNow();
+                ProblemReporter reporter = result.getReporter();
+                boolean aborted = reporter.isAborted();
+                parser.process(result.getTree(), mapper, reporter);
+                if (reporter.isAborted() && !aborted) {
+                    // Parsing a deferred function body was stopped while the
+                    // checks ran, so drop what they found and only keep the
+                    // parse error and the line counts
+                    logger.warning("Stopped parsing " + inputFile.relativePath() + ": "
+                            + reporter.getAbortProblem().getMessage());
+                    sourceCode = createSourceCode(inputFile, mappedFileSize);
+                    parser.setSourceCode(sourceCode);
+                    parser.process(result.getTree(), mapper, reporter);
+                }
+
+                // Count the lines of code
+                new XQueryLineCountParser(sourceCode).count();
+
+                // Keep track of the modules and global declarations the results
+                // depend on
+                Set<String> imports = new TreeSet<>();
+                if (mapper.getNamespace() != null) {
+                    imports.add(mapper.getNamespace());
+                }
+                for (Import imported : mapper.getImports().values()) {
+                    if (imported.getNamespace() != null) {
+                        imports.add(imported.getNamespace());
+                    }
+                }
+                Map<Integer, String> references = new HashMap<>();
+                for (Map.Entry<Integer, Declaration> reference : mapper.getGlobalReferences().entrySet()) {
+                    references.put(reference.getKey(), AnalysisCache.getSignature(reference.getValue()));
+                }
+
+                String hash = mapping != null ? mapping.hash : null;
+                List<Declaration> declarations = mapping != null ? mapping.declarations : new ArrayList<Declaration>();
+                return new FileAnalysis(hash, declarations, imports, references, sourceCode.getIssues(),
+                        sourceCode.getMeasures());
+            } catch (DeadlineExceededException e) {
+                // Drop the local declarations the checks were stopped in
+                mapper.exitSource(null);
+                watchdog.skip(inputFile, "analysis", deadline, "parsing " + parseTime + " ms, checks "
+                        + (deadline.getElapsedTime() - parseTime) + " ms");
+                return null;
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Could not analyze the file " + inputFile.absolutePath(), e);
+                return null;
+            }
+        }
+    }
 }
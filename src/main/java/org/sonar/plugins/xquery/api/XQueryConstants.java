@@ -9,10 +9,25 @@ public interface XQueryConstants {
     static String FILE_EXTENSIONS_KEY = "sonar.xquery.fileExtensions";
     static String SOURCE_DIRECTORY_KEY = "sonar.xquery.sourceDirectory";
     static String XQTEST_REPORTS_DIRECTORY_KEY = "sonar.xqtest.reportsPath";
+    static String THREADS_KEY = "sonar.xquery.threads";
+    static String PARSE_CACHE_SIZE_KEY = "sonar.xquery.parseCacheSize";
+    static String INCREMENTAL_KEY = "sonar.xquery.incremental";
+    static String INCREMENTAL_CACHE_FILE_KEY = "sonar.xquery.incremental.cacheFile";
+    static String MAPPED_FILE_SIZE_KEY = "sonar.xquery.mappedFileSize";
+    static String MAX_PARSE_ERRORS_KEY = "sonar.xquery.maxParseErrors";
+    static String PARSE_TIMEOUT_KEY = "sonar.xquery.parseTimeout";
+    static String ANALYSIS_TIMEOUT_KEY = "sonar.xquery.analysisTimeout";
 
     static String XQUERY_LANGUAGE_NAME = "XQuery";
     static String[] DEFAULT_FILE_EXTENSIONS = {"xqy", "xquery", "xq", "xqi", "xql", "xqm", "xqws"};
     static String DEFAULT_FILE_EXTENSIONS_STRING = "xqy, xquery, xq, xqi, xql, xqm, xqws";
     static String DEFAULT_SOURCE_DIRECTORY = "src/main/xquery";
     static String DEFAULT_XQTEST_DIRECTORY = "target/xqtest-reports";
+    static int DEFAULT_THREADS = 1;
+    static int DEFAULT_PARSE_CACHE_SIZE = 128;
+    static boolean DEFAULT_INCREMENTAL = true;
+    static int DEFAULT_MAPPED_FILE_SIZE = 8;
+    static int DEFAULT_MAX_PARSE_ERRORS = 100;
+    static int DEFAULT_PARSE_TIMEOUT = 60;
+    static int DEFAULT_ANALYSIS_TIMEOUT = 120;
 }
@@ -0,0 +1,467 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.cache;
+
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.measures.CoreMetrics;
+import org.sonar.api.rule.RuleKey;
+import org.sonar.plugins.xquery.language.Issue;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.node.Declaration;
+import org.sonar.plugins.xquery.parser.node.DependencyMapper;
+import org.sonar.plugins.xquery.parser.node.Function;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the analysis results of each file between runs so that files that
+ * have not changed do not have to be parsed again. A cached result is only
+ * reused when the hash of the file contents is the same and none of the global
+ * declarations the file referenced changed. To find those files without
+ * checking every file, the cache keeps the fingerprint of the exported
+ * declarations of each module namespace and a reverse import graph that maps
+ * each module namespace to the files that import it. The whole cache is
+ * discarded when the plugin version or the active rules change.
+ */
+public class AnalysisCache {
+
+    private static final Logger logger = Logger.getLogger(AnalysisCache.class.getName());
+
+    public static final String FILE_NAME = "xquery-analysis.cache";
+
+    private static final int FORMAT_VERSION = 2;
+    private static final byte DECLARATION = 0;
+    private static final byte FUNCTION = 1;
+
+    private final String version;
+    private final Map<String, FileAnalysis> files;
+    private final Map<String, Set<String>> importers;
+    private Map<String, String> exports;
+
+    /**
+     * @param version
+     *            Identifies the plugin version and active rules the results
+     *            were created with
+     */
+    public AnalysisCache(String version) {
+        this.version = version;
+        this.files = new LinkedHashMap<String, FileAnalysis>();
+        this.importers = new TreeMap<String, Set<String>>();
+        this.exports = new HashMap<String, String>();
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public FileAnalysis get(String key) {
+        return files.get(key);
+    }
+
+    /**
+     * Adds the analysis of a file and adds the file to the importers of each
+     * module namespace it imports.
+     */
+    public void put(String key, FileAnalysis analysis) {
+        files.put(key, analysis);
+        for (String namespace : analysis.getImports()) {
+            addImporter(namespace, key);
+        }
+    }
+
+    private void addImporter(String namespace, String key) {
+        Set<String> keys = importers.get(namespace);
+        if (keys == null) {
+            keys = new TreeSet<String>();
+            importers.put(namespace, keys);
+        }
+        keys.add(key);
+    }
+
+    /**
+     * @return The keys of the files that import the module namespace
+     */
+    public Set<String> getImporters(String namespace) {
+        Set<String> keys = importers.get(namespace);
+        return keys != null ? keys : Collections.<String>emptySet();
+    }
+
+    /**
+     * @return The fingerprint of the exported declarations by module namespace
+     */
+    public Map<String, String> getExports() {
+        return exports;
+    }
+
+    public void setExports(Map<String, String> exports) {
+        this.exports = exports;
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    /**
+     * Finds the cached files that have to be analyzed again because a global
+     * declaration they referenced changed. Only the importers of the module
+     * namespaces whose exported declarations changed since the cache was
+     * saved are checked.
+     *
+     * @param current
+     *            The current fingerprints of the exported declarations by
+     *            module namespace
+     * @param mapper
+     *            The mapper holding the current global declarations
+     * @return The keys of the files that are no longer current
+     */
+    public Set<String> findInvalidated(Map<String, String> current, DependencyMapper mapper) {
+        Set<String> namespaces = new TreeSet<String>(exports.keySet());
+        namespaces.addAll(current.keySet());
+
+        Set<String> invalidated = new TreeSet<String>();
+        for (String namespace : namespaces) {
+            if (StringUtils.equals(exports.get(namespace), current.get(namespace))) {
+                continue;
+            }
+            for (String key : getImporters(namespace)) {
+                FileAnalysis analysis = files.get(key);
+                if (analysis != null && !invalidated.contains(key) && !isCurrent(analysis, mapper)) {
+                    invalidated.add(key);
+                }
+            }
+        }
+        return invalidated;
+    }
+
+    /**
+     * Checks whether the global declarations a file referenced still have the
+     * same signatures.
+     *
+     * @param analysis
+     *            The cached analysis
+     * @param mapper
+     *            The mapper holding the current global declarations
+     * @return True if none of the referenced declarations changed
+     */
+    public static boolean isCurrent(FileAnalysis analysis, DependencyMapper mapper) {
+        for (Map.Entry<Integer, String> reference : analysis.getReferences().entrySet()) {
+            if (!reference.getValue().equals(getSignature(mapper.getGlobalDeclaration(reference.getKey())))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a fingerprint of the exported declarations for each module
+     * namespace. Only the parts of a declaration that the checks use (name,
+     * type and parameters) are included, so moving a declaration does not
+     * change the fingerprint.
+     *
+     * @param declarations
+     *            The global declarations
+     * @return The fingerprint for each namespace
+     */
+    public static Map<String, String> fingerprintExports(Collection<Declaration> declarations) {
+        Map<String, TreeSet<String>> signatures = new HashMap<String, TreeSet<String>>();
+        for (Declaration declaration : declarations) {
+            TreeSet<String> namespaceSignatures = signatures.get(declaration.getNamespace());
+            if (namespaceSignatures == null) {
+                namespaceSignatures = new TreeSet<String>();
+                signatures.put(declaration.getNamespace(), namespaceSignatures);
+            }
+            namespaceSignatures.add(getSignature(declaration));
+        }
+
+        Map<String, String> exports = new HashMap<String, String>();
+        for (Map.Entry<String, TreeSet<String>> entry : signatures.entrySet()) {
+            exports.put(entry.getKey(), hash(StringUtils.join(entry.getValue(), "\n")));
+        }
+        return exports;
+    }
+
+    /**
+     * Gets the parts of a declaration that the checks use: the kind, name,
+     * type and parameters.
+     *
+     * @param declaration
+     *            A declaration (or null)
+     * @return The signature, or an empty string for a null declaration
+     */
+    public static String getSignature(Declaration declaration) {
+        if (declaration == null) {
+            return "";
+        }
+        StringBuilder signature = new StringBuilder(declaration instanceof Function ? "function " : "variable ");
+        signature.append(declaration.getName()).append(" as ").append(declaration.getType());
+        if (declaration instanceof Function) {
+            List<String> parameters = new ArrayList<String>();
+            for (Declaration parameter : ((Function) declaration).getParameters().values()) {
+                parameters.add(parameter.getName() + " as " + parameter.getType());
+            }
+            Collections.sort(parameters);
+            signature.append(" (").append(StringUtils.join(parameters, ", ")).append(")");
+        }
+        return signature.toString();
+    }
+
+    public static String hash(String text) {
+        return hash(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return The hexadecimal SHA-1 hash of the bytes
+     */
+    public static String hash(byte[] bytes) {
+        MessageDigest digest = newDigest();
+        return toHex(digest.digest(bytes));
+    }
+
+    /**
+     * @return The hexadecimal SHA-1 hash of the bytes of the stream, which is
+     *         read to the end but not closed
+     */
+    public static String hash(InputStream input) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+            digest.update(buffer, 0, read);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Loads the cache from the specified file. If the file does not exist,
+     * cannot be read or was written for a different version then an empty
+     * cache is returned.
+     *
+     * @param file
+     *            The cache file
+     * @param version
+     *            The current plugin version and active rules
+     * @return The cache
+     */
+    public static AnalysisCache load(File file, String version) {
+        AnalysisCache cache = new AnalysisCache(version);
+        if (!file.isFile()) {
+            return cache;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION || !version.equals(in.readUTF())) {
+                logger.info("Analysis cache was created with a different plugin version or rules, analyzing all files");
+                return cache;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                cache.files.put(key, readAnalysis(in));
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                cache.exports.put(in.readUTF(), in.readUTF());
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String namespace = in.readUTF();
+                int keys = in.readInt();
+                for (int j = 0; j < keys; j++) {
+                    cache.addImporter(namespace, in.readUTF());
+                }
+            }
+            return cache;
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Could not read the analysis cache " + file.getAbsolutePath(), e);
+            return new AnalysisCache(version);
+        }
+    }
+
+    /**
+     * Writes the cache to the specified file.
+     *
+     * @param file
+     *            The cache file
+     */
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(version);
+            out.writeInt(files.size());
+            for (Map.Entry<String, FileAnalysis> entry : files.entrySet()) {
+                out.writeUTF(entry.getKey());
+                writeAnalysis(out, entry.getValue());
+            }
+            out.writeInt(exports.size());
+            for (Map.Entry<String, String> export : exports.entrySet()) {
+                out.writeUTF(export.getKey());
+                out.writeUTF(export.getValue());
+            }
+            out.writeInt(importers.size());
+            for (Map.Entry<String, Set<String>> entry : importers.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (String key : entry.getValue()) {
+                    out.writeUTF(key);
+                }
+            }
+        }
+    }
+
+    private static FileAnalysis readAnalysis(DataInputStream in) throws IOException {
+        String hash = in.readUTF();
+
+        int count = in.readInt();
+        List<Declaration> declarations = new ArrayList<Declaration>(count);
+        for (int i = 0; i < count; i++) {
+            declarations.add(readDeclaration(in));
+        }
+
+        count = in.readInt();
+        Set<String> imports = new TreeSet<String>();
+        for (int i = 0; i < count; i++) {
+            imports.add(in.readUTF());
+        }
+
+        count = in.readInt();
+        Map<Integer, String> references = new HashMap<Integer, String>();
+        for (int i = 0; i < count; i++) {
+            references.put(in.readInt(), in.readUTF());
+        }
+
+        count = in.readInt();
+        List<Issue> issues = new ArrayList<Issue>(count);
+        for (int i = 0; i < count; i++) {
+            RuleKey rule = RuleKey.parse(in.readUTF());
+            int line = in.readInt();
+            issues.add(new Issue(rule, line, readString(in)));
+        }
+
+        count = in.readInt();
+        List<SourceCode.Measure> measures = new ArrayList<SourceCode.Measure>(count);
+        for (int i = 0; i < count; i++) {
+            String metric = in.readUTF();
+            measures.add(new SourceCode.Measure(CoreMetrics.getMetric(metric), in.readInt()));
+        }
+
+        return new FileAnalysis(hash, declarations, imports, references, issues, measures);
+    }
+
+    private static void writeAnalysis(DataOutputStream out, FileAnalysis analysis) throws IOException {
+        out.writeUTF(analysis.getHash());
+
+        out.writeInt(analysis.getDeclarations().size());
+        for (Declaration declaration : analysis.getDeclarations()) {
+            writeDeclaration(out, declaration);
+        }
+
+        out.writeInt(analysis.getImports().size());
+        for (String namespace : analysis.getImports()) {
+            out.writeUTF(namespace);
+        }
+
+        out.writeInt(analysis.getReferences().size());
+        for (Map.Entry<Integer, String> reference : analysis.getReferences().entrySet()) {
+            out.writeInt(reference.getKey());
+            out.writeUTF(reference.getValue());
+        }
+
+        out.writeInt(analysis.getIssues().size());
+        for (Issue issue : analysis.getIssues()) {
+            out.writeUTF(issue.rule().toString());
+            out.writeInt(issue.line());
+            writeString(out, issue.message());
+        }
+
+        out.writeInt(analysis.getMeasures().size());
+        for (SourceCode.Measure measure : analysis.getMeasures()) {
+            out.writeUTF(measure.getMetric().getKey());
+            out.writeInt(measure.getValue());
+        }
+    }
+
+    private static Declaration readDeclaration(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        String name = readString(in);
+        String namespace = readString(in);
+        Declaration declaration = kind == FUNCTION ? new Function(name, namespace) : new Declaration(name, namespace);
+        declaration.setType(readString(in));
+        declaration.setLine(in.readInt());
+
+        if (declaration instanceof Function) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                ((Function) declaration).addParameter(readDeclaration(in));
+            }
+        }
+        return declaration;
+    }
+
+    private static void writeDeclaration(DataOutputStream out, Declaration declaration) throws IOException {
+        out.writeByte(declaration instanceof Function ? FUNCTION : DECLARATION);
+        writeString(out, declaration.getName());
+        writeString(out, declaration.getNamespace());
+        writeString(out, declaration.getType());
+        out.writeInt(declaration.getLine());
+
+        if (declaration instanceof Function) {
+            Collection<Declaration> parameters = ((Function) declaration).getParameters().values();
+            out.writeInt(parameters.size());
+            for (Declaration parameter : parameters) {
+                writeDeclaration(out, parameter);
+            }
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.cache;
+
+import org.sonar.plugins.xquery.language.Issue;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.node.Declaration;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The results of analyzing a single file: the global declarations it exports,
+ * the issues and measures that were found, the module namespaces it imports
+ * and the signatures of the global declarations it referenced at the time it
+ * was analyzed.
+ */
+public class FileAnalysis {
+
+    private final String hash;
+    private final List<Declaration> declarations;
+    private final Set<String> imports;
+    private final Map<Integer, String> references;
+    private final List<Issue> issues;
+    private final List<SourceCode.Measure> measures;
+
+    /**
+     * @param hash
+     *            The hash of the file contents
+     * @param declarations
+     *            The global declarations of the file
+     * @param imports
+     *            The module namespaces the file imports (including its own
+     *            module namespace)
+     * @param references
+     *            The signature of each global declaration the file referenced
+     *            by key (an empty signature if the declaration did not exist)
+     * @param issues
+     *            The issues found in the file
+     * @param measures
+     *            The measures for the file
+     */
+    public FileAnalysis(String hash, List<Declaration> declarations, Set<String> imports, Map<Integer, String> references,
+            List<Issue> issues, List<SourceCode.Measure> measures) {
+        this.hash = hash;
+        this.declarations = declarations;
+        this.imports = imports;
+        this.references = references;
+        this.issues = issues;
+        this.measures = measures;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public List<Declaration> getDeclarations() {
+        return declarations;
+    }
+
+    public Set<String> getImports() {
+        return imports;
+    }
+
+    public Map<Integer, String> getReferences() {
+        return references;
+    }
+
+    public List<Issue> getIssues() {
+        return issues;
+    }
+
+    public List<SourceCode.Measure> getMeasures() {
+        return measures;
+    }
+}
@@ -10,9 +10,9 @@ import org.sonar.plugins.xquery.language.SourceCode;
 import org.sonar.plugins.xquery.parser.XQueryTree;
 import org.sonar.plugins.xquery.parser.node.DependencyMapper;
 import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
-import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
+import org.sonar.plugins.xquery.parser.visitor.NodeTypeVisitor;
 
-public abstract class AbstractCheck implements XQueryAstVisitor {
+public abstract class AbstractCheck implements NodeTypeVisitor {
 
     private SourceCode sourceCode;
 
@@ -60,6 +60,16 @@ public abstract class AbstractCheck implements XQueryAstVisitor {
         // Do nothing by default
     }
 
+    /**
+     * By default a check enters and exits every node. Checks that only look at
+     * some types of nodes list them so that they are not called for the
+     * others.
+     */
+    @Override
+    public int[] getNodeTypes() {
+        return null;
+    }
+
     public int getLine() {
         return line;
     }
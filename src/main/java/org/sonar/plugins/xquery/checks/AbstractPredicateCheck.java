@@ -23,6 +23,10 @@ public class AbstractPredicateCheck extends AbstractCheck {
         level = 0;
     }
 
+    /*
+     * Subclasses that list the node types they need (see getNodeTypes) have
+     * to include Predicate so that the level is kept up to date.
+     */
     @Override
     public void exitExpression(XQueryTree node) {
         // Update the state of exiting a predicate
@@ -28,6 +28,12 @@ public class DynamicFunctionCheck extends AbstractCheck {
 
     public static final String RULE_KEY = "DynamicFunction";
     private static final RuleKey RULE = RuleKey.of(CheckClasses.REPOSITORY_KEY, RULE_KEY);
+    private static final int[] NODE_TYPES = new int[] { XQueryParser.FunctionCall };
+
+    @Override
+    public int[] getNodeTypes() {
+        return NODE_TYPES;
+    }
 
     @Override
     public void enterExpression(XQueryTree node) {
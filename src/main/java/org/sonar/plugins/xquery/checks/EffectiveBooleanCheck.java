@@ -30,10 +30,16 @@ public class EffectiveBooleanCheck extends AbstractCheck {
 
     public static final String RULE_KEY = "EffectiveBoolean";
     private static final RuleKey RULE = RuleKey.of(CheckClasses.REPOSITORY_KEY, RULE_KEY);
+    private static final int[] NODE_TYPES = new int[] { XQueryParser.IfPredicate };
 
     private static final String[] FUNCTIONS = new String[] { "exists", "empty", "contains", "starts-with", "ends-with", "boolean", "not", "true", "false", "matches" };
     private static final String[] EXPRESSIONS = new String[] { "UnaryExpr =", "UnaryExpr eq", "UnaryExpr !=", "UnaryExpr ne", "UnaryExpr <", "UnaryExpr lt", "UnaryExpr <=", "UnaryExpr le", "UnaryExpr >", "UnaryExpr gt", "UnaryExpr >=", "UnaryExpr ge", "UnaryExpr castable as", "UnaryExpr instance of" };
 
+    @Override
+    public int[] getNodeTypes() {
+        return NODE_TYPES;
+    }
+
     @Override
     public void enterExpression(XQueryTree node) {
         super.enterExpression(node);
@@ -9,6 +9,7 @@ import org.sonar.check.Priority;
 import org.sonar.check.Rule;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.DeclarationVisitor;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 /**
@@ -26,14 +27,26 @@ import org.sonar.plugins.xquery.rules.CheckClasses;
             "Please note that this check is Marklogic specific.",
 	priority = Priority.MAJOR
 )
-public class FunctionMappingCheck extends AbstractCheck {
+public class FunctionMappingCheck extends AbstractCheck implements DeclarationVisitor {
 
     public static final String RULE_KEY = "FunctionMapping";
     private static final RuleKey RULE = RuleKey.of(CheckClasses.REPOSITORY_KEY, RULE_KEY);
+    private static final int[] NODE_TYPES = new int[] { XQueryParser.MainModule, XQueryParser.LibraryModule,
+            XQueryParser.VersionValue, XQueryParser.OptionDecl };
 
     private boolean capable = false;
     private boolean used = false;
 
+    @Override
+    public int[] getNodeTypes() {
+        return NODE_TYPES;
+    }
+
+    @Override
+    public boolean isVisitingFunctionBodies() {
+        return false;
+    }
+
     @Override
     public void enterExpression(XQueryTree node) {
         super.enterExpression(node);
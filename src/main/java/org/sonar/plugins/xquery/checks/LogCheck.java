@@ -7,6 +7,7 @@ package org.sonar.plugins.xquery.checks;
 import org.sonar.api.rule.RuleKey;
 import org.sonar.check.Priority;
 import org.sonar.check.Rule;
+import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 /**
@@ -24,6 +25,12 @@ public class LogCheck extends AbstractProhibitFunctionCheck {
 
     public static final String RULE_KEY = "LogCheck";
     private static final RuleKey RULE = RuleKey.of(CheckClasses.REPOSITORY_KEY, RULE_KEY);
+    private static final int[] NODE_TYPES = new int[] { XQueryParser.ModuleImport, XQueryParser.FunctionCall };
+
+    @Override
+    public int[] getNodeTypes() {
+        return NODE_TYPES;
+    }
 
     @Override
     protected void createIssue(int lineNumber) {
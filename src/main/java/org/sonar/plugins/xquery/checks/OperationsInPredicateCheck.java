@@ -30,10 +30,16 @@ public class OperationsInPredicateCheck extends AbstractPredicateCheck {
 
     public static final String RULE_KEY = "OperationsInPredicate";
     private static final RuleKey RULE = RuleKey.of(CheckClasses.REPOSITORY_KEY, RULE_KEY);
+    private static final int[] NODE_TYPES = new int[] { XQueryParser.Predicate, XQueryParser.FunctionCall };
 
     private static final String[] FUNCTIONS = new String[] { "data", "last", "not", "exists", "xs:integer", "string", "xs:decimal", "xs:double", "xs:float", "xs:date", "xs:dateTime", "xs:time", "xs:dayTimeDuration", "xs:yearMonthDuration", "xs:duration" };
     private static final String[] EXPRESSIONS = new String[] { "UnaryExpr +", "UnaryExpr -", "UnaryExpr div", "UnaryExpr *", "UnaryExpr mod" };    
 
+    @Override
+    public int[] getNodeTypes() {
+        return NODE_TYPES;
+    }
+
     @Override
     public void enterExpression(XQueryTree node) {
         super.enterExpression(node);
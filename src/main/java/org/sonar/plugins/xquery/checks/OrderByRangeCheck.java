@@ -26,6 +26,12 @@ public class OrderByRangeCheck extends AbstractCheck {
 
     public static final String RULE_KEY = "OrderByRange";
     private static final RuleKey RULE = RuleKey.of(CheckClasses.REPOSITORY_KEY, RULE_KEY);
+    private static final int[] NODE_TYPES = new int[] { XQueryParser.OrderSpec };
+
+    @Override
+    public int[] getNodeTypes() {
+        return NODE_TYPES;
+    }
 
     @Override
     public void enterExpression(XQueryTree node) {
@@ -25,9 +25,23 @@ public class ParseErrorCheck extends AbstractCheck {
 
     public static final String RULE_KEY = "ParseError";
     private static final RuleKey RULE = RuleKey.of(CheckClasses.REPOSITORY_KEY, RULE_KEY);
+    private static final int[] NODE_TYPES = new int[] {};
+
+    @Override
+    public int[] getNodeTypes() {
+        return NODE_TYPES;
+    }
 
     @Override
     public void checkReport(ProblemReporter reporter) {
+        // When parsing was stopped only report why, not every problem that
+        // led up to it
+        Problem aborted = reporter.getAbortProblem();
+        if (aborted != null) {
+            createIssue(RULE, Math.max(aborted.getLine(), 1), aborted.getMessage());
+            return;
+        }
+
         boolean allowed = false;
         
         for (Problem problem : reporter.getProblems()) {
@@ -29,6 +29,12 @@ public class StrongTypingInFLWORCheck extends AbstractCheck {
 
     public static final String RULE_KEY = "StrongTypingInFLWOR";
     private static final RuleKey RULE = RuleKey.of(CheckClasses.REPOSITORY_KEY, RULE_KEY);
+    private static final int[] NODE_TYPES = new int[] { XQueryParser.FLOWRExpr };
+
+    @Override
+    public int[] getNodeTypes() {
+        return NODE_TYPES;
+    }
 
     @Override
     public void enterExpression(XQueryTree node) {
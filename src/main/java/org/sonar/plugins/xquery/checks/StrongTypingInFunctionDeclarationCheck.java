@@ -9,6 +9,7 @@ import org.sonar.check.Priority;
 import org.sonar.check.Rule;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.DeclarationVisitor;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 /**
@@ -26,10 +27,21 @@ import org.sonar.plugins.xquery.rules.CheckClasses;
             "and include quantifiers on each type.",
     priority = Priority.CRITICAL
 )
-public class StrongTypingInFunctionDeclarationCheck extends AbstractCheck {
+public class StrongTypingInFunctionDeclarationCheck extends AbstractCheck implements DeclarationVisitor {
 
     public static final String RULE_KEY = "StrongTypingInFunctionDeclaration";
     private static final RuleKey RULE = RuleKey.of(CheckClasses.REPOSITORY_KEY, RULE_KEY);
+    private static final int[] NODE_TYPES = new int[] { XQueryParser.FunctionDecl };
+
+    @Override
+    public int[] getNodeTypes() {
+        return NODE_TYPES;
+    }
+
+    @Override
+    public boolean isVisitingFunctionBodies() {
+        return false;
+    }
 
     @Override
     public void enterExpression(XQueryTree node) {
@@ -39,7 +51,7 @@ public class StrongTypingInFunctionDeclarationCheck extends AbstractCheck {
         if (XQueryParser.FunctionDecl == node.getType()) {
 
             // If we have any parameters declared - check them
-            XQueryTree params = node.find("ParamList");
+            XQueryTree params = (XQueryTree) node.getFirstChildWithType(XQueryParser.ParamList);
             if (params != null && params.getChildCount() > 0) {
                 for (XQueryTree param : params.getChildren()) {                    
                     // If the parameter does not have a type declaration it is a violation
@@ -9,6 +9,7 @@ import org.sonar.check.Priority;
 import org.sonar.check.Rule;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.DeclarationVisitor;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 /**
@@ -25,10 +26,21 @@ import org.sonar.plugins.xquery.rules.CheckClasses;
             "and include quantifiers on each type.",
     priority = Priority.CRITICAL
 )
-public class StrongTypingInModuleVariableCheck extends AbstractCheck {
+public class StrongTypingInModuleVariableCheck extends AbstractCheck implements DeclarationVisitor {
 
     public static final String RULE_KEY = "StrongTypingInModuleVariables";
     private static final RuleKey RULE = RuleKey.of(CheckClasses.REPOSITORY_KEY, RULE_KEY);
+    private static final int[] NODE_TYPES = new int[] { XQueryParser.VarDecl };
+
+    @Override
+    public int[] getNodeTypes() {
+        return NODE_TYPES;
+    }
+
+    @Override
+    public boolean isVisitingFunctionBodies() {
+        return false;
+    }
 
     @Override
     public void enterExpression(XQueryTree node) {
@@ -30,6 +30,12 @@ public class XPathSubExpressionsInPredicateCheck extends AbstractPredicateCheck
 
     public static final String RULE_KEY = "XPathSubExpressionsInPredicate";
     private static final RuleKey RULE = RuleKey.of(CheckClasses.REPOSITORY_KEY, RULE_KEY);
+    private static final int[] NODE_TYPES = new int[] { XQueryParser.PathExpr, XQueryParser.Predicate };
+
+    @Override
+    public int[] getNodeTypes() {
+        return NODE_TYPES;
+    }
 
     @Override
     public void enterExpression(XQueryTree node) {
@@ -28,6 +28,12 @@ public class XPathTextStepsCheck extends AbstractPathCheck {
 
     public static final String RULE_KEY = "XpathTextSteps";
     private static final RuleKey RULE = RuleKey.of(CheckClasses.REPOSITORY_KEY, RULE_KEY);
+    private static final int[] NODE_TYPES = new int[] { XQueryParser.PathExpr };
+
+    @Override
+    public int[] getNodeTypes() {
+        return NODE_TYPES;
+    }
 
     @Override
     public void enterExpression(XQueryTree node) {
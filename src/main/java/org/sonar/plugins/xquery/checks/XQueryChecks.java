@@ -29,7 +29,9 @@ import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -41,6 +43,7 @@ public class XQueryChecks {
 
     private final CheckFactory checkFactory;
     private Set<Checks<AbstractCheck>> checksByRepository = new HashSet<>();
+    private Map<String, Iterable<Class<?>>> classesByRepository = new LinkedHashMap<>();
     private XQueryChecks(CheckFactory checkFactory) {
         this.checkFactory = checkFactory;
     }
@@ -50,13 +53,35 @@ public class XQueryChecks {
     }
 
     public XQueryChecks addChecks(String repositoryKey, Iterable<Class> checkClass) {
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> clazz : checkClass) {
+            classes.add(clazz);
+        }
+        return add(repositoryKey, classes);
+    }
+
+    private XQueryChecks add(String repositoryKey, Iterable<Class<?>> checkClasses) {
         checksByRepository.add(checkFactory
                 .<AbstractCheck>create(repositoryKey)
-                .addAnnotatedChecks(checkClass));
+                .addAnnotatedChecks(checkClasses));
+        classesByRepository.put(repositoryKey, checkClasses);
 
         return this;
     }
 
+    /**
+     * Creates a new set of check instances for the same repositories. Checks
+     * keep state while visiting a file, so every analysis thread needs its own
+     * copy.
+     */
+    public XQueryChecks copy() {
+        XQueryChecks copy = new XQueryChecks(checkFactory);
+        for (Map.Entry<String, Iterable<Class<?>>> entry : classesByRepository.entrySet()) {
+            copy.add(entry.getKey(), entry.getValue());
+        }
+        return copy;
+    }
+
 //    public XQueryChecks addCustomChecks(@Nullable CustomJavaScriptRulesDefinition[] customRulesDefinitions,
 //                                            @Nullable CustomRuleRepository[] customRuleRepositories) {
 //        if (customRulesDefinitions != null) {
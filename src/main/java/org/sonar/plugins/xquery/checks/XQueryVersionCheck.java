@@ -10,6 +10,7 @@ import org.sonar.check.Rule;
 import org.sonar.plugins.xquery.language.XQuery;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.DeclarationVisitor;
 import org.sonar.plugins.xquery.rules.CheckClasses;
 
 /**
@@ -27,12 +28,23 @@ import org.sonar.plugins.xquery.rules.CheckClasses;
             "and consistent behavior in XQuery processing.",
     priority = Priority.MINOR
 )
-public class XQueryVersionCheck extends AbstractCheck {
+public class XQueryVersionCheck extends AbstractCheck implements DeclarationVisitor {
 
     private boolean hasVersion = false;
 
     public static final String RULE_KEY = "XQueryVersion";
     private static final RuleKey RULE = RuleKey.of(CheckClasses.REPOSITORY_KEY, RULE_KEY);
+    private static final int[] NODE_TYPES = new int[] { XQueryParser.MainModule, XQueryParser.LibraryModule, XQueryParser.VersionValue };
+
+    @Override
+    public int[] getNodeTypes() {
+        return NODE_TYPES;
+    }
+
+    @Override
+    public boolean isVisitingFunctionBodies() {
+        return false;
+    }
 
     @Override
     public void enterExpression(XQueryTree node) {
@@ -19,6 +19,10 @@ public interface SourceCode {
 
    List<String> getCode();
 
+   SourceText getText();
+
+   CharSequence getContents();
+
    List<Issue> getIssues();
 
    List<Measure> getMeasures();
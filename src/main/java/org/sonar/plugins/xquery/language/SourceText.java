@@ -0,0 +1,191 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.language;
+
+import org.sonar.api.batch.fs.InputFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The text of a source file, decoded once into a single character array along
+ * with the offsets where each line starts. The lexer reads the characters
+ * directly and the line counting works on the line offsets, so the text is
+ * never copied into lines or strings.
+ *
+ * Line terminators (\r\n, \r and \n) are all stored as \n, so lines and
+ * offsets are the same whichever terminators a file uses. As when reading the
+ * file as a list of lines, a terminator at the very end of a file does not
+ * start another line.
+ */
+public final class SourceText implements CharSequence {
+
+    private final char[] chars;
+    private final int length;
+    private final int[] lineStarts;
+    private final int lineCount;
+
+    private SourceText(char[] chars, int length, boolean trailingLine) {
+        int[] starts = new int[Math.max(16, length / 32)];
+        int lines = 0;
+        int n = 0;
+        if (length > 0 || trailingLine) {
+            starts[lines++] = 0;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c == '\r') {
+                c = '\n';
+                if (i + 1 < length && chars[i + 1] == '\n') {
+                    i++;
+                }
+            }
+            chars[n++] = c;
+            if (c == '\n') {
+                if (lines == starts.length) {
+                    starts = Arrays.copyOf(starts, lines * 2);
+                }
+                starts[lines++] = n;
+            }
+        }
+        if (!trailingLine && n > 0 && chars[n - 1] == '\n') {
+            n--;
+            lines--;
+        }
+
+        this.chars = chars;
+        this.length = n;
+        this.lineStarts = starts;
+        this.lineCount = lines;
+    }
+
+    /**
+     * Reads the text of a file using the file's character set.
+     */
+    public static SourceText read(InputFile inputFile) throws IOException {
+        return decode(Files.readAllBytes(inputFile.path()), inputFile.charset());
+    }
+
+    /**
+     * Decodes the contents of a file. Malformed input is replaced rather than
+     * failing, the same as reading the file as lines would.
+     *
+     * @param charset
+     *            The character set of the file, UTF-8 if null
+     */
+    public static SourceText decode(byte[] bytes, Charset charset) {
+        CharBuffer buffer = (charset != null ? charset : StandardCharsets.UTF_8).decode(ByteBuffer.wrap(bytes));
+        return new SourceText(buffer.array(), buffer.limit(), false);
+    }
+
+    /**
+     * Creates the text for a string of code, as if it were the contents of a
+     * file.
+     */
+    public static SourceText of(String code) {
+        return new SourceText(code.toCharArray(), code.length(), false);
+    }
+
+    /**
+     * Creates the text for a list of lines of code.
+     */
+    public static SourceText of(List<String> lines) {
+        int length = Math.max(0, lines.size() - 1);
+        for (String line : lines) {
+            length += line.length();
+        }
+        char[] chars = new char[length];
+        int offset = 0;
+        for (String line : lines) {
+            if (offset > 0) {
+                chars[offset - 1] = '\n';
+            }
+            line.getChars(0, line.length(), chars, offset);
+            offset += line.length() + 1;
+        }
+        return new SourceText(chars, length, !lines.isEmpty());
+    }
+
+    /**
+     * @return The characters of the text. Only the first length() characters
+     *         are part of the text and they must not be changed.
+     */
+    public char[] getChars() {
+        return chars;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index >= length) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+        return chars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (end > length) {
+            throw new IndexOutOfBoundsException("End: " + end);
+        }
+        return new String(chars, start, end - start);
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @param line
+     *            The line number, starting at 1
+     * @return The offset of the first character of the line
+     */
+    public int getLineStart(int line) {
+        return lineStarts[line - 1];
+    }
+
+    /**
+     * @param line
+     *            The line number, starting at 1
+     * @return The offset just past the last character of the line, not
+     *         counting the line terminator
+     */
+    public int getLineEnd(int line) {
+        return line < lineCount ? lineStarts[line] - 1 : length;
+    }
+
+    /**
+     * @param line
+     *            The line number, starting at 1
+     * @return The text of the line without its terminator
+     */
+    public String getLine(int line) {
+        int start = getLineStart(line);
+        return new String(chars, start, getLineEnd(line) - start);
+    }
+
+    /**
+     * @return The line number (starting at 1) of the character at the offset
+     */
+    public int getLineOfOffset(int offset) {
+        int index = Arrays.binarySearch(lineStarts, 0, lineCount, offset);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+}
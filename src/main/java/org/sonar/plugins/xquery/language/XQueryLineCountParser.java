@@ -4,12 +4,10 @@
 
 package org.sonar.plugins.xquery.language;
 
-import org.apache.commons.lang.StringUtils;
 import org.sonar.api.measures.CoreMetrics;
 import org.sonar.api.utils.SonarException;
 import org.sonar.plugins.xquery.checks.AbstractCheck;
 
-import java.util.ArrayList;
 import java.util.logging.Logger;
 
 /**
@@ -25,6 +23,7 @@ public class XQueryLineCountParser extends AbstractCheck {
     private int commentLines = 0;
     private int linesOfCode = 0;
     private int functions = 0;
+    private boolean commenting = false;
 
     private SourceCode sourceCode;
     
@@ -35,33 +34,33 @@ public class XQueryLineCountParser extends AbstractCheck {
     public void count() {
         //logger.fine("Count comment in " + sourceCode.getInputFile().relativePath());
         
-        ArrayList<String> code = (ArrayList<String>) sourceCode.getCode();
+        CharSequence contents = sourceCode.getContents();
 
-        if (code != null && code.size() > 0) {
+        if (contents != null) {
             try {
-                boolean commenting = false;
-                for (String line : code) {
-                    String trimmed = StringUtils.trim(line);
-                    if (StringUtils.isBlank(trimmed)) {
-                        blankLines++;
-                    } else if (trimmed.startsWith("(:") && trimmed.endsWith(":)")) {
-                        commentLines++;
-                    } else if (trimmed.startsWith("(:") && !trimmed.contains(":)") && !trimmed.endsWith(":)")) {
-                        commenting = true;
-                        commentLines++;
-                    } else if (commenting && trimmed.contains(":)")) {
-                        commenting = false;
-                        commentLines++;
-                    } else if (commenting) {
-                        commentLines++;
-                    } else {
-                        if (trimmed.contains("declare function")) {
-                            functions++;
+                if (contents instanceof SourceText) {
+                    SourceText text = (SourceText) contents;
+                    for (int line = 1; line <= text.getLineCount(); line++) {
+                        countLine(text, text.getLineStart(line), text.getLineEnd(line));
+                    }
+                } else {
+                    // Find the lines the same way as SourceText does, but
+                    // without holding all of the contents in memory
+                    int length = contents.length();
+                    int start = 0;
+                    while (start < length) {
+                        int end = start;
+                        while (end < length && contents.charAt(end) != '\n' && contents.charAt(end) != '\r') {
+                            end++;
+                        }
+                        countLine(contents, start, end);
+
+                        start = end + 1;
+                        if (end + 1 < length && contents.charAt(end) == '\r' && contents.charAt(end + 1) == '\n') {
+                            start++;
                         }
                     }
-                    
-                    linesOfCode++;
-                }                
+                }
             } catch (Exception e) {
                 throw new SonarException(e);
             }
@@ -72,4 +71,66 @@ public class XQueryLineCountParser extends AbstractCheck {
         sourceCode.addMeasure(CoreMetrics.COMMENT_LINES, commentLines);
         sourceCode.addMeasure(CoreMetrics.NCLOC, linesOfCode - blankLines - commentLines);
     }
+
+    private void countLine(CharSequence contents, int start, int end) {
+        // Trim the line the same way as String.trim()
+        while (start < end && contents.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && contents.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        boolean startsComment = startsWith(contents, "(:", start, end);
+        boolean endsComment = startsWith(contents, ":)", end - 2, end);
+        if (isBlank(contents, start, end)) {
+            blankLines++;
+        } else if (startsComment && endsComment) {
+            commentLines++;
+        } else if (startsComment && indexOf(contents, ":)", start, end) < 0) {
+            commenting = true;
+            commentLines++;
+        } else if (commenting && indexOf(contents, ":)", start, end) >= 0) {
+            commenting = false;
+            commentLines++;
+        } else if (commenting) {
+            commentLines++;
+        } else {
+            if (indexOf(contents, "declare function", start, end) >= 0) {
+                functions++;
+            }
+        }
+
+        linesOfCode++;
+    }
+
+    private static boolean isBlank(CharSequence contents, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(contents.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWith(CharSequence contents, String string, int start, int end) {
+        if (start < 0 || start + string.length() > end) {
+            return false;
+        }
+        for (int i = 0; i < string.length(); i++) {
+            if (contents.charAt(start + i) != string.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence contents, String string, int start, int end) {
+        for (int i = start; i + string.length() <= end; i++) {
+            if (startsWith(contents, string, i, end)) {
+                return i;
+            }
+        }
+        return -1;
+    }
 }
@@ -8,21 +8,20 @@
 
 package org.sonar.plugins.xquery.language;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang.StringUtils;
 import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.measures.Metric;
 import org.sonar.api.utils.SonarException;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 public class XQuerySourceCode implements SourceCode {
 
     private final InputFile inputFile;
-    private List<String> code = new ArrayList<>();
+    private SourceText text;
+    private CharSequence contents;
+    private List<String> code;
     private final List<Measure> measures = new ArrayList<>();
     private final List<Issue> issues = new ArrayList<>();
 
@@ -32,7 +31,7 @@ public class XQuerySourceCode implements SourceCode {
      * @param code a string of source code
      */
     public XQuerySourceCode(String code) {
-        this(Arrays.asList(StringUtils.split(code, '\n')));
+        this(SourceText.of(code), null);
     }
 
     /**
@@ -49,6 +48,31 @@ public class XQuerySourceCode implements SourceCode {
 
     public XQuerySourceCode(List<String> code, InputFile inputFile) {
         this.code = code;
+        this.text = SourceText.of(code);
+        this.inputFile = inputFile;
+    }
+
+    /**
+     * Creates a source code object for text that has already been read, for
+     * example when the contents of a file were also needed for something else.
+     *
+     * @param text the text of the source code
+     * @param inputFile the file the text was read from, if any
+     */
+    public XQuerySourceCode(SourceText text, InputFile inputFile) {
+        this.text = text;
+        this.inputFile = inputFile;
+    }
+
+    /**
+     * Creates a source code object for contents that are read on demand, like
+     * a memory-mapped file, so that the whole file is not held in memory.
+     *
+     * @param contents the contents of the file
+     * @param inputFile the file
+     */
+    public XQuerySourceCode(CharSequence contents, InputFile inputFile) {
+        this.contents = contents;
         this.inputFile = inputFile;
     }
 
@@ -58,21 +82,38 @@ public class XQuerySourceCode implements SourceCode {
 
     @Override
     public String getCodeString() {
-        return StringUtils.join(getCode(), "\n");
+        return getText().toString();
     }
 
     @Override
     public List<String> getCode() {
-        if (inputFile != null && code.size() == 0) {
+        if (code == null) {
+            SourceText text = getText();
+            code = new ArrayList<>(text.getLineCount());
+            for (int line = 1; line <= text.getLineCount(); line++) {
+                code.add(text.getLine(line));
+            }
+        }
+        return code;
+    }
+
+    @Override
+    public CharSequence getContents() {
+        return contents != null ? contents : getText();
+    }
+
+    @Override
+    public SourceText getText() {
+        if (text == null && contents != null) {
+            text = SourceText.of(contents.toString());
+        } else if (text == null) {
             try {
-                code = FileUtils.readLines(inputFile.file(), "UTF-8");
-                return code;
+                text = SourceText.read(inputFile);
             } catch (IOException e) {
                 throw new SonarException(e);
             }
-        } else {
-            return code;
         }
+        return text;
     }
 
     @Override
@@ -28,6 +28,7 @@ public abstract class AbstractXQueryLexer extends Lexer implements XQueryLanguag
     private boolean fIsWsExplicit = false;
     private int language;
     private ProblemReporter reporter;
+    private TokenBuffer tokenBuffer;
 
     public AbstractXQueryLexer() {
     }
@@ -36,6 +37,88 @@ public abstract class AbstractXQueryLexer extends Lexer implements XQueryLanguag
         super(input, state);
     }
 
+    /**
+     * Adds the token to the token buffer (if the lexer has one) instead of
+     * creating a token object for it.
+     */
+    @Override
+    public Token emit() {
+        if (tokenBuffer == null) {
+            return super.emit();
+        }
+        tokenBuffer.add(input, state.type, state.channel, state.tokenStartCharIndex, getCharIndex() - 1,
+                state.tokenStartLine, state.tokenStartCharPositionInLine, state.text);
+        state.token = TokenBuffer.BUFFERED;
+        return state.token;
+    }
+
+    /**
+     * Reads the rest of a string literal whose opening quote was just matched,
+     * if the literal is a simple one: no entity or character references, no
+     * escaped quotes and only characters that the StringLexer accepts. The
+     * quotes and the content are added to the token buffer as the same tokens
+     * the StringLexer would read, so the parser does not have to switch
+     * lexers for the literal. Otherwise (or without a token buffer) only the
+     * opening quote is read as usual.
+     *
+     * @param quoteType
+     *            The token type of the quote
+     * @param charType
+     *            The token type of the content of the literal
+     */
+    protected void lexStringLiteral(int quoteType, int charType) {
+        if (tokenBuffer == null) {
+            return;
+        }
+        int quote = input.LA(-1);
+        int length = 0;
+        while (true) {
+            int c = input.LA(length + 1);
+            if (c == quote) {
+                if (input.LA(length + 2) == quote) {
+                    return;
+                }
+                break;
+            }
+            if (!isStringLiteralChar(c)) {
+                return;
+            }
+            length++;
+        }
+
+        int index = tokenBuffer.add(input, quoteType, Token.DEFAULT_CHANNEL, state.tokenStartCharIndex,
+                getCharIndex() - 1, state.tokenStartLine, state.tokenStartCharPositionInLine, null);
+        tokenBuffer.setLiteral(index);
+        if (length > 0) {
+            addConsumedToken(charType, length);
+        }
+        addConsumedToken(quoteType, 1);
+        state.token = TokenBuffer.BUFFERED;
+    }
+
+    /*
+     * Whether the character can be part of the content of a string literal
+     * without being an entity or character reference. The quotes are checked
+     * separately.
+     */
+    private static boolean isStringLiteralChar(int c) {
+        return c == '\t' || c == '\n' || c == '\r' || (c >= 0x20 && c <= 0xD7FF && c != '&')
+                || (c >= 0xE000 && c <= 0xFFFD);
+    }
+
+    /*
+     * Consumes the characters and adds them to the token buffer as a token.
+     */
+    private void addConsumedToken(int type, int length) {
+        int start = getCharIndex();
+        int line = input.getLine();
+        int column = input.getCharPositionInLine();
+        for (int i = 0; i < length; i++) {
+            input.consume();
+        }
+        tokenBuffer.add(input, type, Token.DEFAULT_CHANNEL, start, getCharIndex() - 1, line, column, null);
+    }
+
     public void addToStack(List<AbstractXQueryLexer> stack) {
         stack.add(this);
     }
@@ -70,17 +153,38 @@ public abstract class AbstractXQueryLexer extends Lexer implements XQueryLanguag
         }
     }
 
+    /**
+     * Resets the lexer so that the parser can use it again, reading on from
+     * where the input is now. Unlike reset(), the input is not moved back to
+     * the start.
+     */
+    public void recycle() {
+        CharStream source = input;
+        input = null;
+        reset();
+        input = source;
+    }
+
     public void rewindLine() {
-        ANTLRStringStream stream = (ANTLRStringStream)input;
-        int line = stream.getLine() - 1;
+        int line = input.getLine() - 1;
         if (line >= 1) {
-            stream.setLine(stream.getLine() - 1);
+            input.setLine(line);
         }
     }
 
     public void rewindToIndex(int index) {
-        ANTLRStringStream stream = (ANTLRStringStream)input;
-        stream.seek(index);
+        input.seek(index);
+    }
+
+    /**
+     * Moves back to the index, which is at the line and column given. Seeking
+     * back does not change the line and column of the input, so they are set
+     * as well.
+     */
+    public void rewindToIndex(int index, int line, int charPositionInLine) {
+        input.seek(index);
+        input.setLine(line);
+        input.setCharPositionInLine(charPositionInLine);
     }
 
     public void setIsWsExplicit(boolean wsExplicit) {
@@ -93,5 +197,9 @@ public abstract class AbstractXQueryLexer extends Lexer implements XQueryLanguag
 
     public void setReporter(ProblemReporter reporter) {
         this.reporter = reporter;
+    }
+
+    void setTokenBuffer(TokenBuffer tokenBuffer) {
+        this.tokenBuffer = tokenBuffer;
     }   
 }
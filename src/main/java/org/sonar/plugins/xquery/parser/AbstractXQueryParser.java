@@ -19,6 +19,8 @@
 package org.sonar.plugins.xquery.parser;
 
 import org.antlr.runtime.*;
+import org.antlr.runtime.tree.Tree;
+import org.sonar.plugins.xquery.parser.reporter.ParseAbortedException;
 import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
 
 import java.util.ArrayList;
@@ -27,11 +29,33 @@ import java.util.List;
 public abstract class AbstractXQueryParser extends Parser implements XQueryLanguageConstants {
 
     private final LazyTokenStream stream;
-    private ANTLRStringStream source;
+    private CharStream source;
     private ArrayList<AbstractXQueryLexer> lexerStack;
     private int language;
     private ProblemReporter reporter;
 
+    // Lexers that were popped off, which are used again rather than creating
+    // a new lexer for every string and element constructor
+    private final List<StringLexer> stringLexers = new ArrayList<StringLexer>();
+    private final List<XMLLexer> xmlLexers = new ArrayList<XMLLexer>();
+    private final List<XQueryLexer> xqueryLexers = new ArrayList<XQueryLexer>();
+
+    // Set when a string literal was already read by the current lexer, so
+    // that the string lexer was not pushed and should not be popped
+    private boolean stringLexerSkipped = false;
+
+    private boolean declarationsOnly = false;
+    private boolean deferFunctionBodies = false;
+
+    // The tokens of the function body that was skipped last, until it is
+    // deferred to its node
+    private int skippedBodyStart = -1;
+    private int skippedBodyEnd = -1;
+
+    // Stops recovering from errors in a deferred function body at its end,
+    // like the parser does when it reads the body in its place
+    private static final BitSet FOLLOW_FUNCTION_BODY = BitSet.of(XQueryParser.RBRACKET);
+
     public AbstractXQueryParser(TokenStream input) {
         this(input, new RecognizerSharedState());
     }
@@ -75,6 +99,10 @@ public abstract class AbstractXQueryParser extends Parser implements XQueryLangu
     }
 
     public void popLexer() {
+        if (stringLexerSkipped) {
+            stringLexerSkipped = false;
+            return;
+        }
         if (lexerStack.size() == 0) {
             return;
         }
@@ -83,6 +111,7 @@ public abstract class AbstractXQueryParser extends Parser implements XQueryLangu
         AbstractXQueryLexer newLexer = lexerStack.remove(lexerStack.size() - 1);
         stream.setTokenSource(newLexer);
         oldLexer.postErrors();
+        release(oldLexer);
     }
 
     public void postErrors() {
@@ -100,24 +129,153 @@ public abstract class AbstractXQueryParser extends Parser implements XQueryLangu
     }
 
     public void pushStringLexer(boolean isAposStr) {
-        StringLexer stringLexer = new StringLexer(source, isAposStr);        
+        if (stream.isLiteralRead()) {
+            stringLexerSkipped = true;
+            return;
+        }
+        StringLexer stringLexer;
+        if (stringLexers.isEmpty()) {
+            stringLexer = new StringLexer(source, isAposStr);
+        } else {
+            stringLexer = stringLexers.remove(stringLexers.size() - 1);
+            stringLexer.recycle(isAposStr);
+        }
         pushLexer(stringLexer);
     }
 
     public void pushXMLLexer() {
-        XMLLexer xmlLexer = new XMLLexer(source);
+        XMLLexer xmlLexer;
+        if (xmlLexers.isEmpty()) {
+            xmlLexer = new XMLLexer(source);
+        } else {
+            xmlLexer = xmlLexers.remove(xmlLexers.size() - 1);
+            xmlLexer.recycle();
+        }
         xmlLexer.setIsWsExplicit(true);
         pushLexer(xmlLexer);
     }
 
     public void pushXQueryLexer() {
-        XQueryLexer xqueryLexer = new XQueryLexer(source);
+        XQueryLexer xqueryLexer;
+        if (xqueryLexers.isEmpty()) {
+            xqueryLexer = new XQueryLexer(source);
+        } else {
+            xqueryLexer = xqueryLexers.remove(xqueryLexers.size() - 1);
+            xqueryLexer.recycle();
+        }
         pushLexer(xqueryLexer);
     }
+
+    /*
+     * Keeps a lexer that is no longer used so that it can be pushed again.
+     * Lexers reading another source are dropped.
+     */
+    private void release(AbstractXQueryLexer lexer) {
+        if (lexer.getCharStream() != source) {
+            return;
+        }
+        if (lexer instanceof StringLexer) {
+            stringLexers.add((StringLexer) lexer);
+        } else if (lexer instanceof XMLLexer) {
+            xmlLexers.add((XMLLexer) lexer);
+        } else if (lexer instanceof XQueryLexer) {
+            xqueryLexers.add((XQueryLexer) lexer);
+        }
+    }
     
     // The following methods are used form the generated parser
     // The short names help keeping the grammar source file smaller and readable
 
+    protected void skipFunctionBody() {
+        if (declarationsOnly) {
+            stream.skipEnclosedExpr();
+        } else if (deferFunctionBodies) {
+            int start = stream.index();
+            int end = stream.skipEnclosedExpr();
+            if (end >= 0) {
+                skippedBodyStart = start;
+                skippedBodyEnd = end;
+            }
+        }
+    }
+
+    protected void deferFunctionBody(XQueryTree declaration) {
+        if (skippedBodyStart < 0) {
+            return;
+        }
+        // The body is only deferred to the declaration it was skipped in
+        if (declaration != null && declaration.getTokenStartIndex() < skippedBodyStart
+                && declaration.getTokenStopIndex() >= skippedBodyEnd) {
+            XQueryTree body = (XQueryTree) declaration.getFirstChildWithType(XQueryParser.FunctionBody);
+            if (body != null) {
+                body.setDeferred(new DeferredFunctionBody(this, skippedBodyStart, skippedBodyEnd));
+            }
+        }
+        skippedBodyStart = -1;
+        skippedBodyEnd = -1;
+    }
+
+    protected void skipVarValue() {
+        if (declarationsOnly) {
+            stream.skipExprSingle();
+        }
+    }
+
+    public abstract ParserRuleReturnScope p_StatementsAndOptionalExpr() throws RecognitionException;
+
+    /**
+     * Parses the contents of a function body that was skipped when it was
+     * deferred, and adds them to the body node. Problems in the contents are
+     * reported when they are parsed, and the time spent counts towards the
+     * budget of the source. Once parsing was stopped (see
+     * ProblemReporter.isAborted) the body is left empty.
+     *
+     * @param start
+     *            The index of the first token of the contents
+     * @param end
+     *            The index of the closing bracket of the body
+     */
+    void parseFunctionBody(XQueryTree body, int start, int end) {
+        if (reporter != null && reporter.isAborted()) {
+            return;
+        }
+        stream.showSkipped(start, end);
+        state.errorRecovery = false;
+        state.failed = false;
+        pushFollow(FOLLOW_FUNCTION_BODY);
+        if (reporter != null) {
+            reporter.startClock();
+        }
+        try {
+            Object contents = p_StatementsAndOptionalExpr().getTree();
+            if (contents != null) {
+                body.addChild((Tree) contents);
+            }
+            body.computePositions();
+        } catch (RecognitionException e) {
+            reportError(e);
+        } catch (ParseAbortedException e) {
+            // The reporter keeps why parsing was stopped
+        } finally {
+            state._fsp--;
+            if (reporter != null) {
+                reporter.stopClock();
+            }
+        }
+    }
+
+    /**
+     * Checks the budget of the source (see ProblemReporter.checkBudget) before
+     * recovering, since resynchronizing after an error can take long.
+     */
+    @Override
+    public void recover(IntStream input, RecognitionException re) {
+        if (reporter != null) {
+            reporter.checkBudget();
+        }
+        super.recover(input, re);
+    }
+
     @Override
     public void reportError(RecognitionException e) {
         if (reporter != null) {
@@ -130,14 +288,46 @@ public abstract class AbstractXQueryParser extends Parser implements XQueryLangu
         super.reset();
         if (lexerStack != null) {
             lexerStack.clear();
+            stringLexerSkipped = false;
+            skippedBodyStart = -1;
+            skippedBodyEnd = -1;
             stream.setWsExplicit(false);
         }
     }
 
-    public void setCharSource(ANTLRStringStream source) {
+    public void setCharSource(CharStream source) {
+        if (source != this.source) {
+            stringLexers.clear();
+            xmlLexers.clear();
+            xqueryLexers.clear();
+        }
         this.source = source;
     }
 
+    /**
+     * Only parses what is needed to map the declarations of a module: the
+     * function bodies are skipped and variable values are read as empty
+     * sequences. Bodies and values that hold direct constructors or string
+     * literals with escapes are still parsed, since the token stream cannot
+     * read them without the parser switching lexers.
+     */
+    public void setDeclarationsOnly(boolean declarationsOnly) {
+        this.declarationsOnly = declarationsOnly;
+    }
+
+    /**
+     * Skips the function bodies and parses them the first time the children
+     * of their node are asked for (see XQueryTree.isDeferred), so that bodies
+     * nothing looks into are never parsed. Bodies that hold direct
+     * constructors or string literals with escapes are parsed in place, like
+     * with setDeclarationsOnly. The token stream and lexers are kept until
+     * the bodies are parsed, so the parser must not be used for anything else
+     * afterwards.
+     */
+    public void setDeferFunctionBodies(boolean deferFunctionBodies) {
+        this.deferFunctionBodies = deferFunctionBodies;
+    }
+
     public void setLanguage(int language) {
         this.language = language;
     }
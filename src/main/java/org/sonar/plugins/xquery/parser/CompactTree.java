@@ -0,0 +1,489 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.CommonToken;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An AST kept as parallel int arrays (type, parent, first child, next sibling,
+ * token range, line, column and so on) with a shared pool of the distinct
+ * texts, rather than as a node object, a token and a list of children for
+ * every node. Trees that are kept around for a while (see ParseResult.compact)
+ * take a fraction of the memory and are only a few objects for the garbage
+ * collector to trace.
+ *
+ * The nodes are numbered in document order from 0 for the root, so the nodes
+ * below a node are the ones from it up to getEnd(node). They can be read
+ * directly through the methods that take a node number, which do not create
+ * any objects; NONE stands for a missing node. getRoot() gives an XQueryTree
+ * view of the tree for code that works on XQueryTree nodes, whose nodes are
+ * created when they are first reached.
+ *
+ * Function bodies that have not been parsed yet (see
+ * AbstractXQueryParser.setDeferFunctionBodies) are parsed when the tree is
+ * built, so the compact tree holds every node and position and does not keep
+ * the parser and its tokens alive.
+ *
+ * A tree is not safe to search from several threads at once (see find), just
+ * like the trees it is built from.
+ */
+public final class CompactTree {
+
+    public static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final int TOKEN = 1;
+    private static final int ERROR = 2;
+    private static final int STACKED = 4;
+
+    // The known positions of the node (see XQueryTree.positions), shifted
+    private static final int POSITIONS_SHIFT = 3;
+    private static final int POSITIONS_MASK = 7;
+
+    // The channel of the token, shifted
+    private static final int CHANNEL_SHIFT = 8;
+
+    // The number of int arrays with an entry for each node (including the
+    // one find() uses) and rough sizes in bytes of the other objects, for
+    // getMemorySize
+    private static final int NODE_ARRAYS = 21;
+    private static final int OBJECT_BYTES = 128;
+    private static final int ARRAY_BYTES = 16;
+    private static final int STRING_BYTES = 40;
+    private static final int MAP_ENTRY_BYTES = 48;
+
+    private int size;
+
+    private int[] types;
+    private int[] texts;
+    private int[] flags;
+    private int[] parents;
+    private int[] firstChildren;
+    private int[] nextSiblings;
+    private int[] ends;
+
+    // The token of the node
+    private int[] tokenLines;
+    private int[] tokenColumns;
+    private int[] tokenIndexes;
+    private int[] tokenStarts;
+    private int[] tokenStops;
+
+    // The range of the node
+    private int[] starts;
+    private int[] stops;
+    private int[] tokenStartIndexes;
+    private int[] tokenStopIndexes;
+
+    // The positions worked out for the node (see XQueryTree.computePositions)
+    private int[] lines;
+    private int[] columns;
+    private int[] endLines;
+    private int[] endColumns;
+
+    private String[] pool;
+
+    // The few nodes that are errors
+    private final Map<Integer, String> descriptions = new HashMap<Integer, String>();
+
+    // What find() has matched above each node, kept for the next search
+    private int[] matched;
+
+    private CompactTree(int capacity) {
+        allocate(capacity);
+    }
+
+    /**
+     * Builds the compact form of a tree, parsing the function bodies that
+     * have not been parsed yet.
+     *
+     * @param tree
+     *            The tree to build it from
+     * @return The compact tree, or null if there is no tree
+     */
+    public static CompactTree of(XQueryTree tree) {
+        if (tree == null) {
+            return null;
+        }
+        // Parsing the deferred bodies leaves the positions above them to be
+        // worked out again
+        tree.computePositions(true);
+
+        CompactTree compact = new CompactTree(INITIAL_CAPACITY);
+        Map<String, Integer> pool = new HashMap<String, Integer>();
+
+        // The nodes are numbered as they come off the stack (which is in
+        // document order), each entry holding the number of the parent
+        TreeStack stack = TreeStack.acquire();
+        try {
+            stack.push(tree, NONE);
+            while (!stack.isEmpty()) {
+                int parent = stack.peekValue();
+                XQueryTree node = (XQueryTree) stack.pop();
+                int id = compact.add(node, parent, pool);
+                for (int i = node.getChildCount() - 1; i >= 0; i--) {
+                    if (node.getChild(i) != null) {
+                        stack.push(node.getChild(i), id);
+                    }
+                }
+            }
+        } finally {
+            stack.release();
+        }
+        compact.finish(pool);
+        return compact;
+    }
+
+    private void allocate(int capacity) {
+        types = new int[capacity];
+        texts = new int[capacity];
+        flags = new int[capacity];
+        parents = new int[capacity];
+        firstChildren = new int[capacity];
+        nextSiblings = new int[capacity];
+        ends = new int[capacity];
+        tokenLines = new int[capacity];
+        tokenColumns = new int[capacity];
+        tokenIndexes = new int[capacity];
+        tokenStarts = new int[capacity];
+        tokenStops = new int[capacity];
+        starts = new int[capacity];
+        stops = new int[capacity];
+        tokenStartIndexes = new int[capacity];
+        tokenStopIndexes = new int[capacity];
+        lines = new int[capacity];
+        columns = new int[capacity];
+        endLines = new int[capacity];
+        endColumns = new int[capacity];
+    }
+
+    private void resize(int capacity) {
+        types = Arrays.copyOf(types, capacity);
+        texts = Arrays.copyOf(texts, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        firstChildren = Arrays.copyOf(firstChildren, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        tokenLines = Arrays.copyOf(tokenLines, capacity);
+        tokenColumns = Arrays.copyOf(tokenColumns, capacity);
+        tokenIndexes = Arrays.copyOf(tokenIndexes, capacity);
+        tokenStarts = Arrays.copyOf(tokenStarts, capacity);
+        tokenStops = Arrays.copyOf(tokenStops, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        stops = Arrays.copyOf(stops, capacity);
+        tokenStartIndexes = Arrays.copyOf(tokenStartIndexes, capacity);
+        tokenStopIndexes = Arrays.copyOf(tokenStopIndexes, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        columns = Arrays.copyOf(columns, capacity);
+        endLines = Arrays.copyOf(endLines, capacity);
+        endColumns = Arrays.copyOf(endColumns, capacity);
+    }
+
+    /*
+     * Adds the node as the last child of the parent.
+     */
+    private int add(XQueryTree node, int parent, Map<String, Integer> pool) {
+        if (size == types.length) {
+            resize(size * 2);
+        }
+        int id = size++;
+
+        types[id] = node.getType();
+        texts[id] = intern(node.getText(), pool);
+        parents[id] = parent;
+        firstChildren[id] = NONE;
+        nextSiblings[id] = NONE;
+        // Until the tree is finished, the end of a node is its last child
+        ends[id] = NONE;
+        if (parent != NONE) {
+            if (ends[parent] == NONE) {
+                firstChildren[parent] = id;
+            } else {
+                nextSiblings[ends[parent]] = id;
+            }
+            ends[parent] = id;
+        }
+
+        int nodeFlags = (node.positions & POSITIONS_MASK) << POSITIONS_SHIFT;
+        boolean error = node instanceof XQueryErrorNode;
+        CommonToken token = error ? null : node.getToken();
+        if (token != null) {
+            nodeFlags |= TOKEN | token.getChannel() << CHANNEL_SHIFT;
+            tokenLines[id] = token.getLine();
+            tokenColumns[id] = token.getCharPositionInLine();
+            tokenIndexes[id] = token.getTokenIndex();
+            tokenStarts[id] = token.getStartIndex();
+            tokenStops[id] = token.getStopIndex();
+        }
+        if (error) {
+            nodeFlags |= ERROR;
+            descriptions.put(id, node.toString());
+        }
+        if (node.isStacked()) {
+            nodeFlags |= STACKED;
+        }
+        flags[id] = nodeFlags;
+
+        starts[id] = node.getStart();
+        stops[id] = node.getStop();
+        tokenStartIndexes[id] = node.getTokenStartIndex();
+        tokenStopIndexes[id] = node.getTokenStopIndex();
+        lines[id] = node.line;
+        columns[id] = node.column;
+        endLines[id] = node.endLine;
+        endColumns[id] = node.endColumn;
+        return id;
+    }
+
+    private int intern(String text, Map<String, Integer> pool) {
+        if (text == null) {
+            return NONE;
+        }
+        Integer index = pool.get(text);
+        if (index == null) {
+            index = pool.size();
+            pool.put(text, index);
+        }
+        return index;
+    }
+
+    /*
+     * Trims the arrays, fills in the pool and works out the last node below
+     * each node (children come after their parents, so going backwards each
+     * node is done before its parent).
+     */
+    private void finish(Map<String, Integer> pool) {
+        if (size < types.length) {
+            resize(size);
+        }
+        this.pool = new String[pool.size()];
+        for (Map.Entry<String, Integer> entry : pool.entrySet()) {
+            this.pool[entry.getValue()] = entry.getKey();
+        }
+        for (int id = 0; id < size; id++) {
+            ends[id] = id;
+        }
+        for (int id = size - 1; id > 0; id--) {
+            int parent = parents[id];
+            if (ends[id] > ends[parent]) {
+                ends[parent] = ends[id];
+            }
+        }
+    }
+
+    /**
+     * @return The number of nodes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return An estimate of the number of bytes the tree takes up: its
+     *         arrays, the texts in the pool and the descriptions of the error
+     *         nodes
+     */
+    public long getMemorySize() {
+        long bytes = OBJECT_BYTES + NODE_ARRAYS * (ARRAY_BYTES + 4L * size) + ARRAY_BYTES + 4L * pool.length;
+        for (String text : pool) {
+            bytes += STRING_BYTES + 2L * text.length();
+        }
+        for (String description : descriptions.values()) {
+            bytes += MAP_ENTRY_BYTES + STRING_BYTES + 2L * description.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Gives a new XQueryTree view of the tree, which is the tree as it was
+     * built from as far as XQueryTree goes. Its nodes are created when they
+     * are first reached and are kept by the view, so a view should only be
+     * held on to while it is used.
+     *
+     * @return The root node of the view
+     */
+    public XQueryTree getRoot() {
+        return new CompactTreeNode(this, 0);
+    }
+
+    public int getType(int node) {
+        return types[node];
+    }
+
+    /**
+     * @return The text of the token of the node (or the erroneous text of an
+     *         error node), or null if it has no token
+     */
+    public String getText(int node) {
+        int text = texts[node];
+        return text != NONE ? pool[text] : null;
+    }
+
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    public int getFirstChild(int node) {
+        return firstChildren[node];
+    }
+
+    public int getNextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    /**
+     * @return The last node below the node in document order, or the node
+     *         itself if it has no children
+     */
+    public int getEnd(int node) {
+        return ends[node];
+    }
+
+    public int getChildCount(int node) {
+        int count = 0;
+        for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return The child at the index, or NONE if there is no such child
+     */
+    public int getChild(int node, int i) {
+        int child = firstChildren[node];
+        for (int j = 0; j < i && child != NONE; j++) {
+            child = nextSiblings[child];
+        }
+        return child;
+    }
+
+    /**
+     * @return The line of the node like XQueryTree.getLine
+     */
+    public int getLine(int node) {
+        if ((flags[node] & TOKEN) != 0 && tokenLines[node] != 0) {
+            return tokenLines[node];
+        }
+        return lines[node];
+    }
+
+    /**
+     * @return The position of the node in its line like
+     *         XQueryTree.getCharPositionInLine
+     */
+    public int getCharPositionInLine(int node) {
+        if ((flags[node] & TOKEN) != 0 && tokenColumns[node] != -1) {
+            return tokenColumns[node];
+        }
+        return columns[node];
+    }
+
+    public int getStart(int node) {
+        return starts[node];
+    }
+
+    public int getStop(int node) {
+        return stops[node];
+    }
+
+    public int getTokenStartIndex(int node) {
+        return tokenStartIndexes[node];
+    }
+
+    public int getTokenStopIndex(int node) {
+        return tokenStopIndexes[node];
+    }
+
+    /**
+     * @return Whether the node is an error node (see XQueryErrorNode)
+     */
+    public boolean isError(int node) {
+        return (flags[node] & ERROR) != 0;
+    }
+
+    public boolean isStacked(int node) {
+        return (flags[node] & STACKED) != 0;
+    }
+
+    /**
+     * Finds the first node, in document order, that matches the selector like
+     * XQueryTree.find(selector, skipNodes) does.
+     *
+     * @param node
+     *            The node to start at
+     * @return The node found, or NONE
+     */
+    public int find(int node, TreeSelector selector, boolean skipNodes) {
+        if (selector == null) {
+            return NONE;
+        }
+        if (matched == null) {
+            matched = new int[size];
+        }
+
+        // Going through the nodes in document order, each one gets the number
+        // of parts matched above it from its parent, which comes before it.
+        // The nodes below a node that cannot match are skipped.
+        int last = ends[node];
+        for (int id = node; id <= last; id++) {
+            int part = id == node ? 0 : matched[parents[id]];
+            if (selector.matches(this, id, part)) {
+                if (part == selector.size() - 1) {
+                    return id;
+                }
+                matched[id] = part + 1;
+            } else if (skipNodes) {
+                matched[id] = part;
+            } else {
+                id = ends[id];
+            }
+        }
+        return NONE;
+    }
+
+    /*
+     * Creates the token of a node for the XQueryTree view.
+     */
+    CommonToken createToken(int node) {
+        if ((flags[node] & TOKEN) == 0) {
+            return null;
+        }
+        CommonToken token = new CommonToken(types[node], getText(node));
+        token.setLine(tokenLines[node]);
+        token.setCharPositionInLine(tokenColumns[node]);
+        token.setChannel(flags[node] >>> CHANNEL_SHIFT);
+        token.setTokenIndex(tokenIndexes[node]);
+        token.setStartIndex(tokenStarts[node]);
+        token.setStopIndex(tokenStops[node]);
+        return token;
+    }
+
+    /*
+     * Sets what the XQueryTree view node of a node holds besides its token.
+     */
+    void initialize(XQueryTree view, int node) {
+        view.setStart(starts[node]);
+        view.setStop(stops[node]);
+        view.setTokenStartIndex(tokenStartIndexes[node]);
+        view.setTokenStopIndex(tokenStopIndexes[node]);
+        view.setStacked(isStacked(node));
+        view.line = lines[node];
+        view.column = columns[node];
+        view.endLine = endLines[node];
+        view.endColumn = endColumns[node];
+        view.positions = (flags[node] >>> POSITIONS_SHIFT) & POSITIONS_MASK;
+    }
+
+    String getDescription(int node) {
+        return descriptions.get(node);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.tree.Tree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A node of the XQueryTree view of a CompactTree. The node gets its token,
+ * range and positions from the compact tree when it is created and creates
+ * the nodes of its children the first time they are asked for; from then on
+ * it is an ordinary XQueryTree node.
+ */
+final class CompactTreeNode extends XQueryTree {
+
+    private final CompactTree tree;
+    private final int node;
+    private boolean loaded;
+
+    CompactTreeNode(CompactTree tree, int node) {
+        super(tree.createToken(node));
+        this.tree = tree;
+        this.node = node;
+        tree.initialize(this, node);
+    }
+
+    /*
+     * Sets up the list of children like BaseTree.addChild would, but without
+     * going through addChild, so that the positions taken from the compact
+     * tree are kept and a child without a token is not taken for a nil node.
+     */
+    @Override
+    void loadChildren() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        List<Object> loadedChildren = new ArrayList<Object>();
+        for (int child = tree.getFirstChild(node); child != CompactTree.NONE; child = tree.getNextSibling(child)) {
+            CompactTreeNode childNode = new CompactTreeNode(tree, child);
+            childNode.setParent(this);
+            childNode.setChildIndex(loadedChildren.size());
+            loadedChildren.add(childNode);
+        }
+        if (!loadedChildren.isEmpty()) {
+            children = loadedChildren;
+        }
+    }
+
+    /*
+     * The methods of BaseTree that use the children without asking for them
+     * have to load them first.
+     */
+    @Override
+    public Tree getFirstChildWithType(int type) {
+        loadChildren();
+        return super.getFirstChildWithType(type);
+    }
+
+    @Override
+    public void addChild(Tree t) {
+        loadChildren();
+        super.addChild(t);
+    }
+
+    @Override
+    public void setChild(int i, Tree t) {
+        loadChildren();
+        super.setChild(i, t);
+    }
+
+    @Override
+    public Object deleteChild(int i) {
+        loadChildren();
+        return super.deleteChild(i);
+    }
+
+    @Override
+    public void replaceChildren(int startChildIndex, int stopChildIndex, Object t) {
+        loadChildren();
+        super.replaceChildren(startChildIndex, stopChildIndex, t);
+    }
+
+    @Override
+    public void freshenParentAndChildIndexes(int offset) {
+        loadChildren();
+        super.freshenParentAndChildIndexes(offset);
+    }
+
+    @Override
+    public void sanityCheckParentAndChildIndexes(Tree parent, int i) {
+        loadChildren();
+        super.sanityCheckParentAndChildIndexes(parent, i);
+    }
+
+    @Override
+    public void setUnknownTokenBoundaries() {
+        loadChildren();
+        super.setUnknownTokenBoundaries();
+    }
+
+    /*
+     * Error nodes act like XQueryErrorNode, which they were built from.
+     */
+    @Override
+    public boolean isError() {
+        return tree.isError(node);
+    }
+
+    @Override
+    public boolean isNil() {
+        return !tree.isError(node) && super.isNil();
+    }
+
+    @Override
+    public String getText() {
+        return tree.isError(node) ? tree.getText(node) : super.getText();
+    }
+
+    @Override
+    public String toString() {
+        return tree.isError(node) ? tree.getDescription(node) : super.toString();
+    }
+}
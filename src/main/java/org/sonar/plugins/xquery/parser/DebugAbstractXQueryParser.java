@@ -15,7 +15,7 @@ import java.util.List;
 public abstract class DebugAbstractXQueryParser extends DebugParser implements XQueryLanguageConstants {
 
     private LazyTokenStream stream;
-    private ANTLRStringStream source;
+    private CharStream source;
     private ArrayList<AbstractXQueryLexer> lexerStack;
     private int language;
     private ProblemReporter reporter;
@@ -192,6 +192,15 @@ public abstract class DebugAbstractXQueryParser extends DebugParser implements X
         pushLexer(xqueryLexer);
     }
 
+    protected void skipFunctionBody() {
+    }
+
+    protected void skipVarValue() {
+    }
+
+    protected void deferFunctionBody(XQueryTree declaration) {
+    }
+
     @Override
     public void reportError(RecognitionException e) {
         super.reportError(e);
@@ -206,7 +215,7 @@ public abstract class DebugAbstractXQueryParser extends DebugParser implements X
         }
     }
 
-    public void setCharSource(ANTLRStringStream source) {
+    public void setCharSource(CharStream source) {
         this.source = source;
     }
 
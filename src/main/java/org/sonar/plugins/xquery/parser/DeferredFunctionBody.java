@@ -0,0 +1,37 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+/**
+ * The contents of a function body that were skipped when parsing (see
+ * AbstractXQueryParser.setDeferFunctionBodies). They are parsed the first
+ * time the children of the body node are asked for, by the parser that
+ * skipped them since its token stream still holds their tokens.
+ */
+final class DeferredFunctionBody {
+
+    private final AbstractXQueryParser parser;
+    private final int start;
+    private final int end;
+
+    /**
+     * @param start
+     *            The index of the first token of the contents
+     * @param end
+     *            The index of the closing bracket of the body
+     */
+    DeferredFunctionBody(AbstractXQueryParser parser, int start, int end) {
+        this.parser = parser;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Parses the contents and adds them to the body node.
+     */
+    void parse(XQueryTree body) {
+        parser.parseFunctionBody(body, start, end);
+    }
+}
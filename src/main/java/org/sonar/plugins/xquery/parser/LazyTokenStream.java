@@ -18,32 +18,38 @@
 
 package org.sonar.plugins.xquery.parser;
 
-import org.antlr.runtime.CommonToken;
 import org.antlr.runtime.Token;
 import org.antlr.runtime.TokenSource;
 import org.antlr.runtime.TokenStream;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
+/**
+ * Token stream that reads tokens from the current lexer only as they are
+ * needed, so that the parser can switch lexers (for XML and strings) in the
+ * middle of the input. The tokens are kept in a TokenBuffer and token objects
+ * are only created for the tokens the parser asks for. The buffer indexes the
+ * good (not hidden) tokens, so looking ahead or back a number of good tokens
+ * does not depend on the number of hidden tokens in between.
+ */
 public class LazyTokenStream implements TokenStream {
 
+    // The channel of the tokens skipped by skipEnclosedExpr
+    private static final int SKIPPED_CHANNEL = Token.HIDDEN_CHANNEL - 1;
+
     private AbstractXQueryLexer tokenSource;
-    private List<Token> tokens;
+    private TokenBuffer tokens;
     private boolean isWsExplicit = false;
     private int p = 0;
     protected int channel = Token.DEFAULT_CHANNEL;
     protected int lastMarker;
 
     public LazyTokenStream() {
-        tokens = new ArrayList<Token>(500);
+        tokens = new TokenBuffer(channel);
     }
 
     public LazyTokenStream(AbstractXQueryLexer tokenSource) {
         this();
         this.tokenSource = tokenSource;
+        tokenSource.setTokenBuffer(tokens);
     }
 
     /**
@@ -61,15 +67,8 @@ public class LazyTokenStream implements TokenStream {
         if (k < 0)
             return readReverseNthGoodToken(-k);
 
-        Token t = readNthGoodToken(k);
-        
-        // If we are just starting out make sure the pointer to the stream is on
-        // a valid token (similar to what the CommonTokenStream does when it
-        // fills it's buffer)
-        if (p == 0) {
-            p = t.getTokenIndex();
-        }
-        return t;
+        int index = readNthGoodToken(k);
+        return index < 0 ? Token.EOF_TOKEN : tokens.get(index);
     }
 
     public Token get(int i) {
@@ -91,7 +90,7 @@ public class LazyTokenStream implements TokenStream {
 
         StringBuilder sb = new StringBuilder();
         for (int i = start; i <= stop && i < tokens.size(); i++) {
-            sb.append(((Token) tokens.get(i)).getText());
+            sb.append(tokens.getText(i));
         }
         return sb.toString();
 
@@ -101,8 +100,16 @@ public class LazyTokenStream implements TokenStream {
         return toString(start.getTokenIndex(), stop.getTokenIndex());
     }
 
+    /**
+     * Reads the type from the token buffer, so no token object is created
+     * for the lookahead.
+     */
     public int LA(int i) {
-        return LT(i).getType();
+        if (i <= 0) {
+            return LT(i).getType();
+        }
+        int index = readNthGoodToken(i);
+        return index < 0 ? Token.EOF : tokens.getType(index);
     }
 
     boolean done = false;
@@ -154,28 +161,169 @@ public class LazyTokenStream implements TokenStream {
         return toString(0, tokens.size() - 1);
     }
 
+    /**
+     * @return Whether the previous token opens a string literal that the lexer
+     *         read completely, so the tokens from the current position on are
+     *         its content and closing quote
+     */
+    public boolean isLiteralRead() {
+        return p > 0 && p <= tokens.size() && tokens.isLiteral(p - 1);
+    }
+
+    /**
+     * Hides the contents of the enclosed expression that starts at the current
+     * position, up to the matching closing bracket, so that the parser reads
+     * it as empty. The contents are moved to their own channel, so they can
+     * be read again later (see showSkipped).
+     *
+     * @return The index of the closing bracket, or -1 if the contents were not
+     *         hidden, which is only done when they can be read by the current
+     *         lexer alone (see findEnd)
+     */
+    public int skipEnclosedExpr() {
+        int end = findEnd(XQueryLexer.RBRACKET);
+        if (end < 0) {
+            return -1;
+        }
+        tokens.hide(p, end, SKIPPED_CHANNEL);
+        jumpToFirstValidToken();
+        return end;
+    }
+
+    /**
+     * Makes the contents hidden by skipEnclosedExpr readable again and moves
+     * to their start, so that the parser can read them after all.
+     *
+     * @param start
+     *            The index the enclosed expression was skipped at
+     * @param end
+     *            The index of its closing bracket
+     */
+    public void showSkipped(int start, int end) {
+        tokens.show(start, end, SKIPPED_CHANNEL);
+        seek(start);
+        jumpToFirstValidToken();
+    }
+
+    /**
+     * Replaces the expression that starts at the current position, up to the
+     * semicolon that ends it, with an empty sequence: the first token becomes
+     * an opening parenthesis, the last a closing one and the tokens in
+     * between are hidden. An expression of a single token is left as it is.
+     *
+     * @return Whether the expression was replaced, which is only done when it
+     *         can be read by the current lexer alone (see findEnd)
+     */
+    public boolean skipExprSingle() {
+        int end = findEnd(XQueryLexer.SEMICOLON);
+        if (end < 0) {
+            return false;
+        }
+        int first = tokens.getGood(tokens.getRank(p));
+        int last = tokens.getGood(tokens.getRank(end) - 1);
+        if (first >= last) {
+            return false;
+        }
+        tokens.replace(first, XQueryLexer.LPAREN, "(");
+        tokens.replace(last, XQueryLexer.RPAREN, ")");
+        tokens.hide(first + 1, last, Token.HIDDEN_CHANNEL);
+        jumpToFirstValidToken();
+        return true;
+    }
+
+    /*
+     * Reads ahead to the good token of the type that ends the expression at
+     * the current position, skipping over nested parentheses, brackets and
+     * string literals. The expression has to be read by the parser instead if
+     * it holds tokens that make the parser switch lexers: direct constructors
+     * (a '<' right before a name, for example) or string literals with
+     * escapes, which the current lexer cannot read.
+     *
+     * @return The index of the end token, or -1 if the expression cannot be
+     * skipped
+     */
+    private int findEnd(int endType) {
+        if (isWsExplicit) {
+            return -1;
+        }
+        int depth = 0;
+        for (int i = p; ; i++) {
+            if (!readTokens(i + 2)) {
+                return -1;
+            }
+            if (tokens.getChannel(i) != channel) {
+                continue;
+            }
+            int type = tokens.getType(i);
+            if (depth == 0 && type == endType) {
+                return i;
+            }
+            switch (type) {
+            case XQueryLexer.LPAREN:
+            case XQueryLexer.LBRACKET:
+            case XQueryLexer.LSQUARE:
+                depth++;
+                break;
+            case XQueryLexer.RPAREN:
+            case XQueryLexer.RBRACKET:
+            case XQueryLexer.RSQUARE:
+                if (--depth < 0) {
+                    return -1;
+                }
+                break;
+            case XQueryLexer.QUOT:
+            case XQueryLexer.APOS:
+                if (!tokens.isLiteral(i)) {
+                    return -1;
+                }
+                // Step over the content (if any) to the closing quote
+                if (tokens.getType(i + 1) != type) {
+                    i++;
+                }
+                i++;
+                break;
+            case XQueryLexer.SMALLER:
+                if (tokens.getChannel(i + 1) == channel
+                        && tokens.getStartIndex(i + 1) == tokens.getStopIndex(i) + 1) {
+                    return -1;
+                }
+                break;
+            case XQueryLexer.CLOSE_TAG:
+            case XQueryLexer.EMPTY_CLOSE_TAG:
+            case XQueryLexer.XML_COMMENT_START:
+            case XQueryLexer.PI_START:
+                return -1;
+            default:
+                break;
+            }
+        }
+    }
+
+    /*
+     * Reads tokens until the buffer holds the number of tokens, or the end of
+     * the input.
+     *
+     * @return False if the end of the input came first
+     */
+    private boolean readTokens(int size) {
+        while (tokens.size() < size) {
+            if (!readToken()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public void setTokenSource(AbstractXQueryLexer source) {
         tokenSource = source;
+        tokenSource.setTokenBuffer(tokens);
         setWsExplicit(source.isWsExplicit());
 
         // un-read the unused tokens
         // they are different for the new source
         if (p < tokens.size()) {
-            int rIndex = p > 0 ? ((CommonToken) tokens.get(p - 1)).getStopIndex() : 0;
-            tokenSource.rewindToIndex(rIndex + 1);
-            for (int i = tokens.size() - 1; i >= p; i--) {
-                Token removed = tokens.remove(i);
-
-                // If the token source has read new lines and we are removing
-                // those, we should update the line numbers. Use a matcher to
-                // rewind one line for each newline character in the token, if
-                // any.
-                Pattern p = Pattern.compile("\\n");
-                Matcher m = p.matcher(removed.getText());
-                while (m.find()) {
-                    tokenSource.rewindLine();
-                }
-            }
+            rewindTokenSource();
+            tokens.truncate(p);
         }
 
         // if we ignore WS, jump to next token
@@ -191,72 +339,123 @@ public class LazyTokenStream implements TokenStream {
         }
     }
 
-    private Token readNthGoodToken(int n) {
-        int count = tokens.size();
-        // number of buffered tokens available
-        int avt = count - p;
-        // i counts good tokens, j counts all tokens
-        int i = 1, j = 0;
-        Token t = null;
-        while (i <= n) {
-            if (j < avt) // read from buffer
-                t = (Token) tokens.get(p + j);
-            else { // read from source
-                t = tokenSource.nextToken();
-                if (t == Token.EOF_TOKEN) {
-                    return t;
-                }
-                t.setTokenIndex(count++);
-                tokens.add(t);
+    /*
+     * Moves the lexer back to where the first unused token starts. The line
+     * and column are restored from the ones saved with the tokens, so this
+     * does not depend on the number or length of the unused tokens.
+     */
+    private void rewindTokenSource() {
+        if (p == 0 || tokens.getStartIndex(p) == tokens.getStopIndex(p - 1) + 1) {
+            tokenSource.rewindToIndex(tokens.getStartIndex(p), tokens.getLine(p), tokens.getCharPositionInLine(p));
+            return;
+        }
+
+        // The lexer skipped characters after the previous token, which the
+        // new lexer reads again, so find the position just past that token
+        int line = tokens.getLine(p - 1);
+        int column = tokens.getCharPositionInLine(p - 1);
+        String text = tokens.getText(p - 1);
+        for (int i = 0; i < text.length(); i++) {
+            column++;
+            if (text.charAt(i) == '\n') {
+                line++;
+                column = 0;
             }
+        }
+        tokenSource.rewindToIndex(tokens.getStopIndex(p - 1) + 1, line, column);
+    }
 
-            if (isWsExplicit || t.getChannel() == channel) {
-                i++;
+    /*
+     * Reads a token from the current lexer into the buffer.
+     *
+     * @return False at the end of the input
+     */
+    private boolean readToken() {
+        Token t = tokenSource.nextToken();
+        if (t == Token.EOF_TOKEN) {
+            return false;
+        }
+        if (t != TokenBuffer.BUFFERED) {
+            tokens.add(t);
+        }
+        return true;
+    }
+
+    /*
+     * @return The buffer index of the nth good token, or -1 at the end of the
+     * input
+     */
+    private int readNthGoodToken(int n) {
+        // Tokens past the end of the buffer are read from the source, even if
+        // the position is further along
+        int start = Math.min(p, tokens.size());
+        int index = -1;
+        if (isWsExplicit) {
+            index = start + n - 1;
+            while (index >= tokens.size()) {
+                if (!readToken()) {
+                    index = -1;
+                    break;
+                }
+            }
+        } else {
+            int rank = tokens.getRank(start) + n - 1;
+            while (rank >= tokens.getGoodCount()) {
+                if (!readToken()) {
+                    rank = -1;
+                    break;
+                }
             }
-            j++;
+            if (rank >= 0) {
+                index = tokens.getGood(rank);
+            }
+        }
+
+        // If we are just starting out make sure the pointer to the stream is on
+        // a valid token (similar to what the CommonTokenStream does when it
+        // fills it's buffer)
+        if (p == 0) {
+            p = index;
         }
-        return t;
+        return index;
     }
 
     private Token readReverseNthGoodToken(int n) {
         if (n == 0 || (p - n) < 0)
             return null;
 
-        // i counts good tokens, j counts all tokens
-        int i = 1, j = 0;
-        Token t = null;
-        while (p - 1 - j >= 0) {
-            t = get(p - 1 - j);
+        if (isWsExplicit) {
+            return get(p - n);
+        }
 
-            if (isWsExplicit || t.getChannel() == channel) {
-                if (i++ == n)
-                    return t;
+        // Positions past the end of the buffer count as good end of input
+        // tokens
+        int past = p - tokens.size();
+        if (past > 0) {
+            if (n <= past) {
+                return Token.EOF_TOKEN;
             }
-            j++;
+            n -= past;
         }
-        return null;
+        int rank = tokens.getRank(p) - n;
+        return rank >= 0 ? get(tokens.getGood(rank)) : null;
     }
 
     private void readNTokens(int n) {
-        Token t = null;
         for (int i = 0; i < n; i++) {
             if (tokens.size() > p + i)
                 continue;
 
-            t = tokenSource.nextToken();
-            if (t == Token.EOF_TOKEN)
+            if (!readToken())
                 return;
-
-            t.setTokenIndex(p + i);
-            tokens.add(t);
         }
     }
 
     public void jumpToFirstValidToken() {
-        Token t = LT(1);
-        if (t != Token.EOF_TOKEN) {
+        int index = readNthGoodToken(1);
+        if (index >= 0) {
             done = false;
-            p = t.getTokenIndex();
+            p = index;
         }
     }  
 }
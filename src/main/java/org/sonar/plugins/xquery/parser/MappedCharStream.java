@@ -0,0 +1,388 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.CharStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Character stream that reads a memory-mapped file, so that very large modules
+ * do not have to be read into memory before they are lexed. The file is
+ * decoded lazily in pages as the lexer reads ahead. Pages that only hold ASCII
+ * characters (when the character set decodes ASCII as is, like UTF-8 does)
+ * are read straight from the mapped file without being decoded at all; other
+ * pages are decoded once and kept, since the tokens read their text from the
+ * stream.
+ *
+ * Apart from that it behaves like an ANTLRStringStream, including seeking back
+ * and setting the line when a lexer rewinds. Unlike reading the file as
+ * SourceText, line terminators are left as they are, so a file that only
+ * uses \r to end lines is counted as a single line.
+ *
+ * The stream is also a CharSequence of the whole file, which can be read
+ * without changing the position of the stream.
+ */
+public class MappedCharStream implements CharStream, CharSequence {
+
+    private static final int PAGE_SIZE = 64 * 1024;
+
+    private final ByteBuffer bytes;
+    private final Charset charset;
+    private final boolean asciiCompatible;
+    private final CharsetDecoder decoder;
+
+    // The character and byte offsets where each page starts, plus the
+    // decoded characters of the pages that are not read from the file
+    private int[] pageChars = new int[16];
+    private int[] pageBytes = new int[16];
+    private char[][] pageData = new char[16][];
+    private int pages = 0;
+    private int decodedChars = 0;
+    private int decodedBytes = 0;
+
+    // The page that was used last, since most reads are close together
+    private int page = -1;
+    private int pageStart = 0;
+    private int pageEnd = 0;
+
+    private int p = 0;
+    private int line = 1;
+    private int charPositionInLine = 0;
+    private int markDepth = 0;
+    private int lastMarker;
+    private List<State> markers;
+
+    public String name;
+
+    public MappedCharStream(File file, Charset charset) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to map: " + file);
+            }
+            // The mapping stays valid after the channel is closed
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            input.close();
+        }
+        this.charset = charset != null ? charset : StandardCharsets.UTF_8;
+        this.asciiCompatible = isAsciiCompatible(this.charset);
+        this.decoder = this.charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.name = file.getPath();
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Moves back to the start of the file so that it can be lexed again.
+     */
+    public void reset() {
+        p = 0;
+        line = 1;
+        charPositionInLine = 0;
+        markDepth = 0;
+    }
+
+    /*
+     * Whether the ASCII bytes decode to the same characters, so that runs of
+     * them can be read without decoding.
+     */
+    private static boolean isAsciiCompatible(Charset charset) {
+        if (charset.name().contains("2022")) {
+            // Stateful encodings use ASCII escape sequences
+            return false;
+        }
+        byte[] ascii = new byte[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (byte) i;
+        }
+        String decoded = new String(ascii, charset);
+        if (decoded.length() != ascii.length) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length; i++) {
+            if (decoded.charAt(i) != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes sure the character at the index has been decoded.
+     *
+     * @return False if the index is past the end of the file
+     */
+    private boolean ensure(int index) {
+        while (index >= decodedChars) {
+            if (!decodePage()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean decodePage() {
+        int remaining = bytes.limit() - decodedBytes;
+        if (remaining <= 0) {
+            return false;
+        }
+
+        int ascii = 0;
+        if (asciiCompatible) {
+            int max = Math.min(PAGE_SIZE, remaining);
+            while (ascii < max && bytes.get(decodedBytes + ascii) >= 0) {
+                ascii++;
+            }
+        }
+
+        char[] data = null;
+        int chars;
+        int consumed;
+        if (ascii > 0) {
+            chars = ascii;
+            consumed = ascii;
+        } else {
+            ByteBuffer in = bytes.duplicate();
+            in.position(decodedBytes);
+            CharBuffer out = CharBuffer.allocate(PAGE_SIZE);
+            decoder.reset();
+            // Decoding stops when the page is full; otherwise it reached the
+            // end of the file
+            if (decoder.decode(in, out, true).isUnderflow()) {
+                decoder.flush(out);
+            }
+            chars = out.position();
+            consumed = in.position() - decodedBytes;
+            data = chars == PAGE_SIZE ? out.array() : Arrays.copyOf(out.array(), chars);
+            if (consumed == 0) {
+                return false;
+            }
+        }
+
+        if (pages == pageChars.length) {
+            pageChars = Arrays.copyOf(pageChars, pages * 2);
+            pageBytes = Arrays.copyOf(pageBytes, pages * 2);
+            pageData = Arrays.copyOf(pageData, pages * 2);
+        }
+        pageChars[pages] = decodedChars;
+        pageBytes[pages] = decodedBytes;
+        pageData[pages] = data;
+        pages++;
+        decodedChars += chars;
+        decodedBytes += consumed;
+        return true;
+    }
+
+    /*
+     * Reads a character that has already been decoded.
+     */
+    private char get(int index) {
+        if (index < pageStart || index >= pageEnd) {
+            int found = Arrays.binarySearch(pageChars, 0, pages, index);
+            page = found >= 0 ? found : -found - 2;
+            pageStart = pageChars[page];
+            pageEnd = page + 1 < pages ? pageChars[page + 1] : decodedChars;
+        }
+        char[] data = pageData[page];
+        if (data != null) {
+            return data[index - pageStart];
+        }
+        return (char) bytes.get(pageBytes[page] + index - pageStart);
+    }
+
+    @Override
+    public void consume() {
+        if (ensure(p)) {
+            charPositionInLine++;
+            if (get(p) == '\n') {
+                line++;
+                charPositionInLine = 0;
+            }
+            p++;
+        }
+    }
+
+    @Override
+    public int LA(int i) {
+        if (i == 0) {
+            return 0;
+        }
+        if (i < 0) {
+            i++;
+            if (p + i - 1 < 0) {
+                return EOF;
+            }
+        }
+        int index = p + i - 1;
+        if (!ensure(index)) {
+            return EOF;
+        }
+        return get(index);
+    }
+
+    @Override
+    public int LT(int i) {
+        return LA(i);
+    }
+
+    @Override
+    public int index() {
+        return p;
+    }
+
+    /**
+     * @return The number of characters in the file, which decodes the whole
+     *         file if it has not been read yet
+     */
+    @Override
+    public int size() {
+        while (decodePage()) {
+        }
+        return decodedChars;
+    }
+
+    @Override
+    public int mark() {
+        if (markers == null) {
+            markers = new ArrayList<State>();
+            markers.add(null);
+        }
+        markDepth++;
+        State state;
+        if (markDepth >= markers.size()) {
+            state = new State();
+            markers.add(state);
+        } else {
+            state = markers.get(markDepth);
+        }
+        state.p = p;
+        state.line = line;
+        state.charPositionInLine = charPositionInLine;
+        lastMarker = markDepth;
+        return markDepth;
+    }
+
+    @Override
+    public void rewind(int marker) {
+        State state = markers.get(marker);
+        seek(state.p);
+        line = state.line;
+        charPositionInLine = state.charPositionInLine;
+        release(marker);
+    }
+
+    @Override
+    public void rewind() {
+        rewind(lastMarker);
+    }
+
+    @Override
+    public void release(int marker) {
+        markDepth = marker - 1;
+    }
+
+    /**
+     * Seeking back only moves the position; seeking forward consumes the
+     * characters in between so that the line and column stay right.
+     */
+    @Override
+    public void seek(int index) {
+        if (index <= p) {
+            p = index;
+            return;
+        }
+        while (p < index && ensure(p)) {
+            consume();
+        }
+    }
+
+    @Override
+    public String substring(int start, int stop) {
+        return subSequence(start, stop + 1).toString();
+    }
+
+    @Override
+    public int getLine() {
+        return line;
+    }
+
+    @Override
+    public void setLine(int line) {
+        this.line = line;
+    }
+
+    @Override
+    public int getCharPositionInLine() {
+        return charPositionInLine;
+    }
+
+    @Override
+    public void setCharPositionInLine(int pos) {
+        this.charPositionInLine = pos;
+    }
+
+    @Override
+    public String getSourceName() {
+        return name;
+    }
+
+    @Override
+    public int length() {
+        return size();
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || !ensure(index)) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+        return get(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || start > end || (end > start && !ensure(end - 1))) {
+            throw new IndexOutOfBoundsException("Start: " + start + ", end: " + end);
+        }
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = get(i);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return The whole contents of the file
+     */
+    @Override
+    public String toString() {
+        return substring(0, size() - 1);
+    }
+
+    private static class State {
+        private int p;
+        private int line;
+        private int charPositionInLine;
+    }
+}
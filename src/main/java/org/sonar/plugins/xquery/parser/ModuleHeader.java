@@ -0,0 +1,107 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.sonar.plugins.xquery.parser.node.Declaration;
+import org.sonar.plugins.xquery.parser.node.Function;
+import org.sonar.plugins.xquery.parser.node.Import;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What other modules need to know about a module: its namespace and prefix
+ * (for a library module), the modules it imports and the functions and
+ * variables it declares. The functions and variables are in the namespace of
+ * the module, like the global declarations of the DependencyMapper, and their
+ * line is the line of their name. Types are not kept.
+ *
+ * The header is scanned from the text of the module (see
+ * ModuleHeaderScanner).
+ */
+public class ModuleHeader {
+
+    private String prefix;
+    private String namespace;
+    private final List<Import> imports = new ArrayList<Import>();
+    private final List<Function> functions = new ArrayList<Function>();
+    private final List<Declaration> variables = new ArrayList<Declaration>();
+
+    /**
+     * @return The prefix of the module namespace, or null for a main module
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * @return The module namespace, or null for a main module
+     */
+    public String getNamespace() {
+        return namespace;
+    }
+
+    void setNamespace(String namespace) {
+        this.namespace = namespace;
+    }
+
+    public boolean isLibraryModule() {
+        return namespace != null;
+    }
+
+    public List<Import> getImports() {
+        return imports;
+    }
+
+    void addImport(Import module) {
+        imports.add(module);
+    }
+
+    /**
+     * @return The declared functions, with one parameter for each argument
+     */
+    public List<Function> getFunctions() {
+        return functions;
+    }
+
+    void addFunction(Function function) {
+        functions.add(function);
+    }
+
+    public List<Declaration> getVariables() {
+        return variables;
+    }
+
+    void addVariable(Declaration variable) {
+        variables.add(variable);
+    }
+
+    /**
+     * Lists the whole header, one line for the module and each import and
+     * declaration, so that headers can be compared.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("module ").append(prefix).append(" = ").append(namespace).append('\n');
+        for (Import module : imports) {
+            builder.append("import ").append(module.getName()).append(" = ").append(module.getNamespace());
+            builder.append(" at ").append(module.getAtHints()).append('\n');
+        }
+        for (Function function : functions) {
+            builder.append("function ").append(function.getName()).append('#')
+                    .append(function.getParameters().size()).append(" line ").append(function.getLine()).append('\n');
+        }
+        for (Declaration variable : variables) {
+            builder.append("variable ").append(variable.getName()).append(" line ").append(variable.getLine())
+                    .append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,946 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.sonar.plugins.xquery.parser.node.Declaration;
+import org.sonar.plugins.xquery.parser.node.Function;
+import org.sonar.plugins.xquery.parser.node.Import;
+
+/**
+ * Scans the header of a module (see ModuleHeader) straight from its text,
+ * without lexing or parsing it. The prolog is read declaration by
+ * declaration; function bodies, variable values, other declarations and the
+ * query body are only skipped over, keeping track of brackets, strings,
+ * comments and direct XML constructors so that a bracket or semicolon in them
+ * is not mistaken for the end of the declaration.
+ *
+ * The scanner only understands plain XQuery 1.0 and 3.0 modules. Anything
+ * else (pragmas, string constructors, more than one transaction, or code that
+ * would not parse) makes it give up, and the module should then be parsed
+ * instead.
+ */
+public final class ModuleHeaderScanner {
+
+    // Keywords after which an operand is expected, so that a following "<"
+    // starts a direct constructor rather than being a comparison
+    private static final String[] OPERAND_KEYWORDS = { "return", "then", "else", "in", "satisfies", "and", "or",
+            "div", "idiv", "mod", "eq", "ne", "lt", "le", "gt", "ge", "is", "to", "union", "intersect", "except",
+            "where", "by", "default", "returning", "collation" };
+
+    // Declarations that must come before the functions and variables
+    private static final String[] SETTERS = { "namespace", "default", "boundary-space", "base-uri", "construction",
+            "ordering", "copy-namespaces", "decimal-format", "revalidation" };
+
+    private static final String[] DECLARE = { "declare" };
+    private static final String[] IMPORT = { "import" };
+
+    // What can follow "declare" and "import" in a declaration
+    private static final String[] DECLARATIONS = { "function", "variable", "namespace", "option", "context",
+            "default", "private", "updating" };
+    private static final String[] IMPORTS = { "module", "schema" };
+
+    // The state of an expression, for telling a comparison from a constructor
+    private static final int OPERATOR = 0;
+    private static final int OPERAND = 1;
+    private static final int NAME = 2;
+
+    private static final int END_OF_INPUT = -1;
+
+    /**
+     * Thrown when the scanner finds something it does not understand. There is
+     * only one instance, without a stack trace, since it is only ever caught
+     * by scan.
+     */
+    private static final class UnsupportedModuleException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private UnsupportedModuleException() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final UnsupportedModuleException UNSUPPORTED = new UnsupportedModuleException();
+
+    private final CharSequence text;
+    private final int length;
+    private int position;
+
+    // The line at lineOffset, for counting lines as the scanner goes forward
+    private int line = 1;
+    private int lineOffset;
+
+    // The brackets that are open in the current expression
+    private char[] brackets = new char[32];
+    private int depth;
+
+    // The last name in the current expression
+    private int nameStart;
+    private int nameEnd;
+
+    private ModuleHeaderScanner(CharSequence text) {
+        this.text = text;
+        this.length = text.length();
+    }
+
+    /**
+     * Scans the header of a module.
+     *
+     * @param text
+     *            The text of the module
+     * @return The header, or null if the scanner could not read the module
+     */
+    public static ModuleHeader scan(CharSequence text) {
+        try {
+            return new ModuleHeaderScanner(text).scanModule();
+        } catch (UnsupportedModuleException e) {
+            return null;
+        } catch (StackOverflowError e) {
+            return null;
+        }
+    }
+
+    private ModuleHeader scanModule() throws UnsupportedModuleException {
+        ModuleHeader header = new ModuleHeader();
+        skipIgnorable();
+        if (lookingAt("xquery")) {
+            int mark = position;
+            position += 6;
+            skipIgnorable();
+            if (lookingAt("version") || lookingAt("encoding")) {
+                scanVersionDecl();
+            } else {
+                position = mark;
+            }
+        }
+        skipIgnorable();
+        if (lookingAt("module")) {
+            int mark = position;
+            position += 6;
+            skipIgnorable();
+            if (lookingAt("namespace")) {
+                position += 9;
+                skipIgnorable();
+                header.setPrefix(readNCName());
+                skipIgnorable();
+                expect('=');
+                skipIgnorable();
+                header.setNamespace(readStringLiteral());
+                skipIgnorable();
+                expect(';');
+            } else {
+                position = mark;
+            }
+        }
+        scanProlog(header);
+        skipIgnorable();
+        if (position < length) {
+            // A query body cannot start like a declaration, so this is one
+            // that is not understood
+            if (header.isLibraryModule() || lookingAt("declare") || lookingAt("import") || lookingAt("module")) {
+                throw UNSUPPORTED;
+            }
+            scanExpr(END_OF_INPUT);
+        }
+        return header;
+    }
+
+    private void scanVersionDecl() throws UnsupportedModuleException {
+        if (lookingAt("version")) {
+            position += 7;
+            skipIgnorable();
+            readStringLiteral();
+            skipIgnorable();
+        }
+        if (lookingAt("encoding")) {
+            position += 8;
+            skipIgnorable();
+            readStringLiteral();
+            skipIgnorable();
+        }
+        if (peek() == ';') {
+            position++;
+        }
+    }
+
+    /*
+     * Scans the declarations and imports of the prolog, and stops at the first
+     * thing that is neither.
+     */
+    private void scanProlog(ModuleHeader header) throws UnsupportedModuleException {
+        boolean ordered = false;
+        while (true) {
+            skipIgnorable();
+            int mark = position;
+            if (lookingAt("declare")) {
+                position += 7;
+                skipIgnorable();
+                if (lookingAt("function") || lookingAt("variable") || lookingAt("private") || lookingAt("updating")
+                        || peek() == '%') {
+                    scanAnnotatedDecl(header);
+                    ordered = true;
+                } else if (lookingAt("option")) {
+                    skipSimpleDecl();
+                    ordered = true;
+                } else if (lookingAt("context")) {
+                    scanExpr(';');
+                    ordered = true;
+                } else if (lookingAtAny(SETTERS)) {
+                    if (ordered) {
+                        throw UNSUPPORTED;
+                    }
+                    skipSimpleDecl();
+                } else {
+                    position = mark;
+                    return;
+                }
+            } else if (lookingAt("import")) {
+                position += 6;
+                skipIgnorable();
+                if (lookingAt("module") || lookingAt("schema")) {
+                    if (ordered) {
+                        throw UNSUPPORTED;
+                    }
+                    if (lookingAt("module")) {
+                        header.addImport(scanModuleImport());
+                    } else {
+                        skipSimpleDecl();
+                    }
+                } else {
+                    position = mark;
+                    return;
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Skips a declaration that only has names, string literals, commas and
+     * equal signs, such as a namespace declaration or an option.
+     */
+    private void skipSimpleDecl() throws UnsupportedModuleException {
+        while (true) {
+            skipIgnorable();
+            char c = peek();
+            if (c == ';') {
+                position++;
+                return;
+            } else if (c == ',' || c == '=') {
+                position++;
+            } else if (c == '"' || c == '\'') {
+                readStringLiteral();
+            } else {
+                skipQName();
+            }
+        }
+    }
+
+    private Import scanModuleImport() throws UnsupportedModuleException {
+        position += 6;
+        skipIgnorable();
+        String prefix = null;
+        if (lookingAt("namespace")) {
+            position += 9;
+            skipIgnorable();
+            prefix = readNCName();
+            skipIgnorable();
+            expect('=');
+            skipIgnorable();
+        }
+        Import module = new Import(prefix, readStringLiteral());
+        skipIgnorable();
+        if (lookingAt("at")) {
+            position += 2;
+            do {
+                skipIgnorable();
+                module.addAtHint(readStringLiteral());
+                skipIgnorable();
+            } while (consume(','));
+        }
+        expect(';');
+        return module;
+    }
+
+    /*
+     * Scans a function or variable declaration, after the "declare".
+     */
+    private void scanAnnotatedDecl(ModuleHeader header) throws UnsupportedModuleException {
+        while (consume('%')) {
+            skipIgnorable();
+            readQName();
+            skipIgnorable();
+            if (consume('(')) {
+                scanExpr(')');
+                skipIgnorable();
+            }
+        }
+        if (lookingAt("updating")) {
+            position += 8;
+            skipIgnorable();
+        }
+        if (lookingAt("private")) {
+            position += 7;
+            skipIgnorable();
+        }
+        if (lookingAt("function")) {
+            position += 8;
+            header.addFunction(scanFunctionDecl(header.getNamespace()));
+        } else if (lookingAt("variable")) {
+            position += 8;
+            header.addVariable(scanVarDecl(header.getNamespace()));
+        } else {
+            throw UNSUPPORTED;
+        }
+    }
+
+    private Function scanFunctionDecl(String namespace) throws UnsupportedModuleException {
+        skipIgnorable();
+        int start = position;
+        Function function = new Function(readQName(), namespace);
+        function.setLine(lineAt(start));
+        skipIgnorable();
+        expect('(');
+        skipIgnorable();
+        if (!consume(')')) {
+            do {
+                skipIgnorable();
+                expect('$');
+                skipIgnorable();
+                function.addParameter(new Declaration(readQName(), null));
+                skipIgnorable();
+                if (lookingAt("as")) {
+                    position += 2;
+                    skipSequenceType();
+                }
+                skipIgnorable();
+            } while (consume(','));
+            expect(')');
+        }
+        skipIgnorable();
+        if (lookingAt("as")) {
+            position += 2;
+            skipSequenceType();
+            skipIgnorable();
+        }
+        if (consume('{')) {
+            scanExpr('}');
+        } else if (lookingAt("external")) {
+            position += 8;
+        } else {
+            throw UNSUPPORTED;
+        }
+        skipIgnorable();
+        expect(';');
+        return function;
+    }
+
+    private Declaration scanVarDecl(String namespace) throws UnsupportedModuleException {
+        skipIgnorable();
+        expect('$');
+        skipIgnorable();
+        int start = position;
+        Declaration variable = new Declaration(readQName(), namespace);
+        variable.setLine(lineAt(start));
+        skipIgnorable();
+        if (lookingAt("as")) {
+            position += 2;
+            skipSequenceType();
+            skipIgnorable();
+        }
+        if (lookingAt("external")) {
+            position += 8;
+            skipIgnorable();
+            if (!lookingAtAssign()) {
+                expect(';');
+                return variable;
+            }
+        }
+        if (!lookingAtAssign()) {
+            throw UNSUPPORTED;
+        }
+        position += 2;
+        scanExpr(';');
+        return variable;
+    }
+
+    /*
+     * Skips a sequence type such as "xs:string?", "element(foo)*" or
+     * "function(item()) as item()".
+     */
+    private void skipSequenceType() throws UnsupportedModuleException {
+        skipIgnorable();
+        if (consume('(')) {
+            scanExpr(')');
+        } else {
+            readQName();
+            skipIgnorable();
+            if (consume('(')) {
+                scanExpr(')');
+                skipIgnorable();
+                if (lookingAt("as")) {
+                    position += 2;
+                    skipSequenceType();
+                    return;
+                }
+            }
+        }
+        skipIgnorable();
+        char c = peek();
+        if (c == '?' || c == '*' || c == '+') {
+            position++;
+        }
+    }
+
+    /*
+     * Skips an expression up to the end character, which is either the closing
+     * bracket of the enclosing expression (already opened), a semicolon, or
+     * END_OF_INPUT.
+     */
+    private void scanExpr(int end) throws UnsupportedModuleException {
+        int bottom = depth;
+        int state = OPERATOR;
+        while (true) {
+            skipIgnorable();
+            if (position >= length) {
+                if (end == END_OF_INPUT && depth == bottom) {
+                    return;
+                }
+                throw UNSUPPORTED;
+            }
+            char c = text.charAt(position);
+            if (depth == bottom && c == end) {
+                position++;
+                return;
+            }
+            switch (c) {
+            case '(':
+                if (peek(1) == '#') {
+                    throw UNSUPPORTED;
+                }
+                push(c);
+                position++;
+                state = OPERATOR;
+                break;
+            case '[':
+            case '{':
+                push(c);
+                position++;
+                state = OPERATOR;
+                break;
+            case ')':
+            case ']':
+            case '}':
+                if (depth == bottom || brackets[depth - 1] != opening(c)) {
+                    throw UNSUPPORTED;
+                }
+                depth--;
+                position++;
+                state = OPERAND;
+                break;
+            case '"':
+            case '\'':
+                readStringLiteral();
+                state = OPERAND;
+                break;
+            case '$':
+                position++;
+                skipIgnorable();
+                skipQName();
+                state = OPERAND;
+                break;
+            case '<':
+                if (state == OPERAND || (state == NAME && !lookingBackAtAny(OPERAND_KEYWORDS))) {
+                    position++;
+                    state = OPERATOR;
+                } else {
+                    scanDirConstructor();
+                    state = OPERAND;
+                }
+                break;
+            case ';':
+                if (depth == bottom) {
+                    throw UNSUPPORTED;
+                }
+                position++;
+                state = OPERATOR;
+                break;
+            case '`':
+                throw UNSUPPORTED;
+            case '.':
+            case '?':
+                position++;
+                state = OPERAND;
+                break;
+            case '*':
+                position++;
+                state = state == OPERATOR ? OPERAND : OPERATOR;
+                break;
+            default:
+                if (isNameStart(c)) {
+                    nameStart = position;
+                    skipQName();
+                    nameEnd = position;
+                    checkNotDeclaration();
+                    state = NAME;
+                } else if (c >= '0' && c <= '9') {
+                    while (position < length && isNameChar(text.charAt(position))) {
+                        position++;
+                    }
+                    state = OPERAND;
+                } else {
+                    position++;
+                    state = OPERATOR;
+                }
+            }
+        }
+    }
+
+    /*
+     * Gives up on a name that starts a declaration, which is most likely one
+     * that follows a declaration missing its semicolon.
+     */
+    private void checkNotDeclaration() throws UnsupportedModuleException {
+        boolean declare = lookingBackAtAny(DECLARE);
+        if (declare || lookingBackAtAny(IMPORT)) {
+            int mark = position;
+            skipIgnorable();
+            if (declare ? lookingAtAny(DECLARATIONS) || peek() == '%' : lookingAtAny(IMPORTS)) {
+                throw UNSUPPORTED;
+            }
+            position = mark;
+        }
+    }
+
+    private void push(char bracket) {
+        if (depth == brackets.length) {
+            char[] grown = new char[depth * 2];
+            System.arraycopy(brackets, 0, grown, 0, depth);
+            brackets = grown;
+        }
+        brackets[depth++] = bracket;
+    }
+
+    private static char opening(char closing) {
+        switch (closing) {
+        case ')':
+            return '(';
+        case ']':
+            return '[';
+        default:
+            return '{';
+        }
+    }
+
+    /*
+     * Skips a direct element, comment or processing instruction constructor.
+     */
+    private void scanDirConstructor() throws UnsupportedModuleException {
+        if (lookingAtText("<!--")) {
+            skipPast("-->");
+        } else if (lookingAtText("<?")) {
+            skipPast("?>");
+        } else if (isNameStart(peek(1))) {
+            scanDirElement();
+        } else {
+            throw UNSUPPORTED;
+        }
+    }
+
+    private void scanDirElement() throws UnsupportedModuleException {
+        position++;
+        int start = position;
+        readXmlName();
+        int end = position;
+        while (true) {
+            boolean space = skipXmlSpace();
+            char c = peek();
+            if (c == '/') {
+                position++;
+                expect('>');
+                return;
+            } else if (c == '>') {
+                position++;
+                break;
+            } else if (!space) {
+                throw UNSUPPORTED;
+            }
+            readXmlName();
+            skipXmlSpace();
+            expect('=');
+            skipXmlSpace();
+            char quote = peek();
+            if (quote != '"' && quote != '\'') {
+                throw UNSUPPORTED;
+            }
+            position++;
+            scanAttributeValue(quote);
+        }
+        while (position < length) {
+            char c = text.charAt(position);
+            if (c == '{') {
+                if (peek(1) == '{') {
+                    position += 2;
+                } else {
+                    position++;
+                    scanExpr('}');
+                }
+            } else if (c == '}') {
+                if (peek(1) != '}') {
+                    throw UNSUPPORTED;
+                }
+                position += 2;
+            } else if (c == '<') {
+                if (peek(1) == '/') {
+                    position += 2;
+                    int closing = position;
+                    readXmlName();
+                    if (!regionEquals(start, end, closing, position)) {
+                        throw UNSUPPORTED;
+                    }
+                    skipXmlSpace();
+                    expect('>');
+                    return;
+                } else if (lookingAtText("<![CDATA[")) {
+                    skipPast("]]>");
+                } else {
+                    scanDirConstructor();
+                }
+            } else {
+                position++;
+            }
+        }
+        throw UNSUPPORTED;
+    }
+
+    private void scanAttributeValue(char quote) throws UnsupportedModuleException {
+        while (position < length) {
+            char c = text.charAt(position);
+            if (c == quote) {
+                if (peek(1) != quote) {
+                    position++;
+                    return;
+                }
+                position += 2;
+            } else if (c == '{') {
+                if (peek(1) == '{') {
+                    position += 2;
+                } else {
+                    position++;
+                    scanExpr('}');
+                }
+            } else if (c == '}') {
+                if (peek(1) != '}') {
+                    throw UNSUPPORTED;
+                }
+                position += 2;
+            } else if (c == '<') {
+                throw UNSUPPORTED;
+            } else {
+                position++;
+            }
+        }
+        throw UNSUPPORTED;
+    }
+
+    /*
+     * Skips whitespace and comments, which can be nested.
+     */
+    private void skipIgnorable() throws UnsupportedModuleException {
+        while (position < length) {
+            char c = text.charAt(position);
+            if (c == '(' && peek(1) == ':') {
+                int nesting = 1;
+                position += 2;
+                while (nesting > 0) {
+                    if (position >= length) {
+                        throw UNSUPPORTED;
+                    }
+                    c = text.charAt(position);
+                    if (c == '(' && peek(1) == ':') {
+                        nesting++;
+                        position += 2;
+                    } else if (c == ':' && peek(1) == ')') {
+                        nesting--;
+                        position += 2;
+                    } else {
+                        position++;
+                    }
+                }
+            } else if (isSpace(c)) {
+                position++;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private boolean skipXmlSpace() {
+        int start = position;
+        while (position < length && isSpace(text.charAt(position))) {
+            position++;
+        }
+        return position > start;
+    }
+
+    private void skipPast(String terminator) throws UnsupportedModuleException {
+        char first = terminator.charAt(0);
+        for (int i = position; i + terminator.length() <= length; i++) {
+            if (text.charAt(i) == first && regionMatches(i, terminator)) {
+                position = i + terminator.length();
+                return;
+            }
+        }
+        throw UNSUPPORTED;
+    }
+
+    private String readStringLiteral() throws UnsupportedModuleException {
+        char quote = peek();
+        if (quote != '"' && quote != '\'') {
+            throw UNSUPPORTED;
+        }
+        int start = position++;
+        while (true) {
+            if (position >= length) {
+                throw UNSUPPORTED;
+            }
+            if (text.charAt(position++) == quote) {
+                if (peek() != quote) {
+                    break;
+                }
+                position++;
+            }
+        }
+        String value = unescape(text, start, position);
+        if (value == null) {
+            throw UNSUPPORTED;
+        }
+        return value;
+    }
+
+    /**
+     * Reads the value of a string literal, replacing doubled quotes and
+     * predefined and character references.
+     *
+     * @param start
+     *            The offset of the opening quote
+     * @param end
+     *            The offset after the closing quote
+     * @return The value, or null if the text is not a string literal or has a
+     *         reference that is not understood
+     */
+    static String unescape(CharSequence text, int start, int end) {
+        if (end - start < 2 || end > text.length()) {
+            return null;
+        }
+        char quote = text.charAt(start);
+        if ((quote != '"' && quote != '\'') || text.charAt(end - 1) != quote) {
+            return null;
+        }
+        StringBuilder value = null;
+        for (int i = start + 1; i < end - 1; i++) {
+            char c = text.charAt(i);
+            if (c != quote && c != '&') {
+                if (value != null) {
+                    value.append(c);
+                }
+                continue;
+            }
+            if (value == null) {
+                value = new StringBuilder(end - start);
+                value.append(text, start + 1, i);
+            }
+            if (c == quote) {
+                value.append(quote);
+                i++;
+                continue;
+            }
+            int semicolon = i + 1;
+            while (semicolon < end - 1 && text.charAt(semicolon) != ';') {
+                semicolon++;
+            }
+            String reference = text.subSequence(i + 1, semicolon).toString();
+            if ("lt".equals(reference)) {
+                value.append('<');
+            } else if ("gt".equals(reference)) {
+                value.append('>');
+            } else if ("amp".equals(reference)) {
+                value.append('&');
+            } else if ("quot".equals(reference)) {
+                value.append('"');
+            } else if ("apos".equals(reference)) {
+                value.append('\'');
+            } else if (reference.matches("#[0-9]+|#x[0-9a-fA-F]+")) {
+                try {
+                    value.appendCodePoint(reference.charAt(1) == 'x' ? Integer.parseInt(reference.substring(2), 16)
+                            : Integer.parseInt(reference.substring(1)));
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+            i = semicolon;
+        }
+        return value != null ? value.toString() : text.subSequence(start + 1, end - 1).toString();
+    }
+
+    private String readNCName() throws UnsupportedModuleException {
+        int start = position;
+        skipNCName();
+        return text.subSequence(start, position).toString();
+    }
+
+    private String readQName() throws UnsupportedModuleException {
+        int start = position;
+        skipQName();
+        return text.subSequence(start, position).toString();
+    }
+
+    private void skipNCName() throws UnsupportedModuleException {
+        if (position >= length || !isNameStart(text.charAt(position))) {
+            throw UNSUPPORTED;
+        }
+        position++;
+        while (position < length && isNameChar(text.charAt(position))) {
+            position++;
+        }
+    }
+
+    private void skipQName() throws UnsupportedModuleException {
+        int start = position;
+        skipNCName();
+        if (peek() == ':' && isNameStart(peek(1))) {
+            position++;
+            skipNCName();
+        } else if (peek() == '{' && position - start == 1 && text.charAt(start) == 'Q') {
+            // A braced URI literal (Q{uri}local)
+            throw UNSUPPORTED;
+        }
+    }
+
+    private void readXmlName() throws UnsupportedModuleException {
+        skipNCName();
+        if (peek() == ':') {
+            position++;
+            skipNCName();
+        }
+    }
+
+    private boolean lookingAt(String keyword) {
+        if (!regionMatches(position, keyword)) {
+            return false;
+        }
+        int after = position + keyword.length();
+        if (after < length) {
+            char c = text.charAt(after);
+            if (isNameChar(c) || (c == ':' && after + 1 < length && isNameStart(text.charAt(after + 1)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean lookingAtAny(String[] keywords) {
+        for (String keyword : keywords) {
+            if (lookingAt(keyword)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Whether the last name read in the expression is one of the keywords.
+     */
+    private boolean lookingBackAtAny(String[] keywords) {
+        for (String keyword : keywords) {
+            if (nameEnd - nameStart == keyword.length() && regionMatches(nameStart, keyword)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean lookingAtAssign() {
+        return peek() == ':' && peek(1) == '=';
+    }
+
+    private boolean lookingAtText(String prefix) {
+        return regionMatches(position, prefix);
+    }
+
+    private boolean regionMatches(int offset, String other) {
+        if (offset + other.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < other.length(); i++) {
+            if (text.charAt(offset + i) != other.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionEquals(int start, int end, int otherStart, int otherEnd) {
+        if (end - start != otherEnd - otherStart) {
+            return false;
+        }
+        for (int i = 0; i < end - start; i++) {
+            if (text.charAt(start + i) != text.charAt(otherStart + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean consume(char c) {
+        if (peek() == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) throws UnsupportedModuleException {
+        if (!consume(c)) {
+            throw UNSUPPORTED;
+        }
+    }
+
+    private char peek() {
+        return peek(0);
+    }
+
+    private char peek(int offset) {
+        int i = position + offset;
+        return i < length ? text.charAt(i) : '\0';
+    }
+
+    /*
+     * Gets the line of an offset at or after the last one asked for.
+     */
+    private int lineAt(int offset) {
+        for (int i = lineOffset; i < offset; i++) {
+            if (text.charAt(i) == '\n') {
+                line++;
+            }
+        }
+        lineOffset = offset;
+        return line;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private static boolean isNameStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '.' || c == '-' || c == '_' || c == '\u00B7';
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.Token;
+import org.antlr.runtime.tree.Tree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The nodes of a tree by token type, so that code that only wants the nodes
+ * of a few types (like all the FunctionDecl nodes) can get them without
+ * walking the tree. The parser fills the index in as it creates the nodes
+ * (see XQueryTreeAdaptor) and keeps it with the parse result (see
+ * ParseResult.getNodes); of() builds one for a tree that was not created by
+ * the parser.
+ *
+ * The parser also creates nodes that do not end up in the tree (like the
+ * names of direct element constructors, which are only compared), so the
+ * nodes of a type are checked to be below the root the first time they are
+ * asked for. Nil and error nodes are not indexed.
+ *
+ * The nodes of a type are in document order, except that a node nested in
+ * another node of the same type comes first when the parser creates it
+ * first, and the nodes of a deferred function body (see
+ * XQueryTree.isDeferred) are added once the body is parsed. The index is not
+ * updated when the tree is changed otherwise.
+ */
+public final class NodeIndex {
+
+    private final List<List<XQueryTree>> nodes;
+
+    // The root of the tree, and for each type the number of nodes that are
+    // known to be below it
+    private XQueryTree root;
+    private final int[] attached;
+
+    /**
+     * Creates an empty index, which the nodes of a tree are then added to as
+     * they are created (see XQueryTreeAdaptor).
+     */
+    public NodeIndex() {
+        nodes = new ArrayList<List<XQueryTree>>(
+                Collections.<List<XQueryTree>> nCopies(XQueryParser.tokenNames.length, null));
+        attached = new int[XQueryParser.tokenNames.length];
+    }
+
+    /**
+     * Builds the index of a tree in a walk of the whole tree, which parses
+     * any deferred function bodies.
+     *
+     * @param tree
+     *            The root of the tree
+     * @return The index
+     */
+    public static NodeIndex of(XQueryTree tree) {
+        NodeIndex index = new NodeIndex();
+        if (tree == null) {
+            return index;
+        }
+        TreeStack stack = TreeStack.acquire();
+        try {
+            stack.push(tree, 0);
+            while (!stack.isEmpty()) {
+                XQueryTree node = (XQueryTree) stack.pop();
+                index.add(node);
+                for (int i = node.getChildCount() - 1; i >= 0; i--) {
+                    if (node.getChild(i) != null) {
+                        stack.push(node.getChild(i), 0);
+                    }
+                }
+            }
+        } finally {
+            stack.release();
+        }
+        return index;
+    }
+
+    /**
+     * Adds a node after the nodes of its type that are already in the index.
+     *
+     * @param node
+     *            The node, which is left out if its type is not a token type
+     *            of the parser
+     */
+    void add(XQueryTree node) {
+        int type = node.getType();
+        if (type <= Token.INVALID_TOKEN_TYPE || type >= nodes.size()) {
+            return;
+        }
+        List<XQueryTree> typeNodes = nodes.get(type);
+        if (typeNodes == null) {
+            typeNodes = new ArrayList<XQueryTree>();
+            nodes.set(type, typeNodes);
+        }
+        typeNodes.add(node);
+    }
+
+    /**
+     * Sets the root of the tree the nodes were created for, so that the nodes
+     * that are not below it are left out.
+     */
+    public void setRoot(XQueryTree root) {
+        this.root = root;
+    }
+
+    /**
+     * @param type
+     *            The token type (see XQueryParser)
+     * @return The nodes of the type, which is empty for types that are not in
+     *         the parser (like EOF)
+     */
+    public List<XQueryTree> getNodes(int type) {
+        if (type <= Token.INVALID_TOKEN_TYPE || type >= nodes.size() || nodes.get(type) == null) {
+            return Collections.emptyList();
+        }
+        List<XQueryTree> typeNodes = nodes.get(type);
+        if (root != null && attached[type] < typeNodes.size()) {
+            int kept = attached[type];
+            for (int i = kept; i < typeNodes.size(); i++) {
+                if (isAttached(typeNodes.get(i))) {
+                    typeNodes.set(kept++, typeNodes.get(i));
+                }
+            }
+            typeNodes.subList(kept, typeNodes.size()).clear();
+            attached[type] = kept;
+        }
+        return Collections.unmodifiableList(typeNodes);
+    }
+
+    private boolean isAttached(XQueryTree node) {
+        Tree top = node;
+        while (top.getParent() != null) {
+            top = top.getParent();
+        }
+        return top == root;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.CharStream;
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.Token;
+
+import java.util.Arrays;
+
+/**
+ * Buffer of the tokens read by a LazyTokenStream, stored as arrays of their
+ * fields rather than as token objects. The lexers add their tokens directly to
+ * the buffer, and a token object is only created when the parser asks for a
+ * token (most whitespace and comments never are). The text of a token is read
+ * from the character stream when it is needed, unless the lexer set it.
+ *
+ * The buffer also keeps an index of the good tokens (those on the channel the
+ * parser reads) so that the nth good token before or after a position can be
+ * found without skipping over the hidden tokens in between.
+ */
+final class TokenBuffer {
+
+    /**
+     * Returned by a lexer instead of a token when the token was added to the
+     * buffer.
+     */
+    static final Token BUFFERED = new CommonToken(Token.INVALID_TOKEN_TYPE);
+
+    private static final int INITIAL_CAPACITY = 512;
+
+    private final int channel;
+    private CharStream input;
+    private int size = 0;
+    private int[] types = new int[INITIAL_CAPACITY];
+    private int[] channels = new int[INITIAL_CAPACITY];
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] stops = new int[INITIAL_CAPACITY];
+    private int[] lines = new int[INITIAL_CAPACITY];
+    private int[] columns = new int[INITIAL_CAPACITY];
+
+    // The number of good tokens before each token, and the indexes of the
+    // good tokens
+    private int[] ranks = new int[INITIAL_CAPACITY];
+    private int[] good = new int[INITIAL_CAPACITY];
+    private int goodCount = 0;
+
+    // Only created when a token has text of its own or a token object, or
+    // when a lexer read a whole string literal
+    private String[] texts;
+    private Token[] tokens;
+    private boolean[] literals;
+
+    /**
+     * @param channel
+     *            The channel of the good tokens
+     */
+    TokenBuffer(int channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Adds a token read by a lexer.
+     *
+     * @param text
+     *            The text of the token, or null to read it from the input
+     * @return The index of the token
+     */
+    int add(CharStream input, int type, int channel, int start, int stop, int line, int column, String text) {
+        if (size == types.length) {
+            grow();
+        }
+        if (input != null) {
+            this.input = input;
+        }
+        types[size] = type;
+        channels[size] = channel;
+        starts[size] = start;
+        stops[size] = stop;
+        lines[size] = line;
+        columns[size] = column;
+        ranks[size] = goodCount;
+        if (channel == this.channel) {
+            good[goodCount++] = size;
+        }
+        if (text != null) {
+            if (texts == null) {
+                texts = new String[types.length];
+            }
+            texts[size] = text;
+        }
+        return size++;
+    }
+
+    /**
+     * Adds a token that was already created, which is kept as it is.
+     *
+     * @return The index of the token
+     */
+    int add(Token token) {
+        int index = add(token.getInputStream(), token.getType(), token.getChannel(),
+                token instanceof CommonToken ? ((CommonToken) token).getStartIndex() : -1,
+                token instanceof CommonToken ? ((CommonToken) token).getStopIndex() : -1,
+                token.getLine(), token.getCharPositionInLine(), null);
+        token.setTokenIndex(index);
+        if (tokens == null) {
+            tokens = new Token[types.length];
+        }
+        tokens[index] = token;
+        return index;
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        channels = Arrays.copyOf(channels, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        stops = Arrays.copyOf(stops, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        columns = Arrays.copyOf(columns, capacity);
+        ranks = Arrays.copyOf(ranks, capacity);
+        good = Arrays.copyOf(good, capacity);
+        if (texts != null) {
+            texts = Arrays.copyOf(texts, capacity);
+        }
+        if (tokens != null) {
+            tokens = Arrays.copyOf(tokens, capacity);
+        }
+        if (literals != null) {
+            literals = Arrays.copyOf(literals, capacity);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes the tokens from the index on.
+     */
+    void truncate(int index) {
+        if (index >= size) {
+            return;
+        }
+        if (texts != null) {
+            Arrays.fill(texts, index, size, null);
+        }
+        if (tokens != null) {
+            Arrays.fill(tokens, index, size, null);
+        }
+        if (literals != null) {
+            Arrays.fill(literals, index, size, false);
+        }
+        goodCount = ranks[index];
+        size = index;
+    }
+
+    /**
+     * Marks the token as the opening quote of a string literal whose content
+     * and closing quote were read along with it.
+     */
+    void setLiteral(int index) {
+        if (literals == null) {
+            literals = new boolean[types.length];
+        }
+        literals[index] = true;
+    }
+
+    boolean isLiteral(int index) {
+        return literals != null && literals[index];
+    }
+
+    /**
+     * Moves the good tokens from one index up to (not including) another to
+     * a hidden channel, and updates the index of the good tokens after them.
+     */
+    void hide(int from, int to, int hiddenChannel) {
+        move(from, to, channel, hiddenChannel);
+    }
+
+    /**
+     * Moves the tokens on a hidden channel from one index up to (not
+     * including) another back to the channel of the good tokens, undoing
+     * hide().
+     */
+    void show(int from, int to, int hiddenChannel) {
+        move(from, to, hiddenChannel, channel);
+    }
+
+    private void move(int from, int to, int oldChannel, int newChannel) {
+        for (int i = from; i < to; i++) {
+            if (channels[i] == oldChannel) {
+                channels[i] = newChannel;
+                if (tokens != null && tokens[i] != null) {
+                    tokens[i].setChannel(newChannel);
+                }
+            }
+        }
+        goodCount = ranks[from];
+        for (int i = from; i < size; i++) {
+            ranks[i] = goodCount;
+            if (channels[i] == channel) {
+                good[goodCount++] = i;
+            }
+        }
+    }
+
+    /**
+     * Changes the type and text of a token.
+     */
+    void replace(int index, int type, String text) {
+        types[index] = type;
+        if (texts == null) {
+            texts = new String[types.length];
+        }
+        texts[index] = text;
+        if (literals != null) {
+            literals[index] = false;
+        }
+        if (tokens != null && tokens[index] != null) {
+            tokens[index].setType(type);
+            tokens[index].setText(text);
+        }
+    }
+
+    /**
+     * @return The number of good tokens before the index
+     */
+    int getRank(int index) {
+        return index < size ? ranks[index] : goodCount;
+    }
+
+    int getGoodCount() {
+        return goodCount;
+    }
+
+    /**
+     * @return The index of the good token with the rank
+     */
+    int getGood(int rank) {
+        return good[rank];
+    }
+
+    int getType(int index) {
+        return types[index];
+    }
+
+    int getChannel(int index) {
+        return channels[index];
+    }
+
+    int getStartIndex(int index) {
+        return starts[index];
+    }
+
+    int getStopIndex(int index) {
+        return stops[index];
+    }
+
+    int getLine(int index) {
+        return lines[index];
+    }
+
+    int getCharPositionInLine(int index) {
+        return columns[index];
+    }
+
+    String getText(int index) {
+        if (tokens != null && tokens[index] != null) {
+            return tokens[index].getText();
+        }
+        if (texts != null && texts[index] != null) {
+            return texts[index];
+        }
+        return input.substring(starts[index], stops[index]);
+    }
+
+    /**
+     * @return The token at the index, which is created the first time it is
+     *         asked for
+     */
+    Token get(int index) {
+        if (tokens == null) {
+            tokens = new Token[types.length];
+        }
+        Token token = tokens[index];
+        if (token == null) {
+            CommonToken created = new CommonToken(input, types[index], channels[index], starts[index], stops[index]);
+            created.setLine(lines[index]);
+            created.setCharPositionInLine(columns[index]);
+            created.setTokenIndex(index);
+            if (texts != null && texts[index] != null) {
+                created.setText(texts[index]);
+            }
+            tokens[index] = created;
+            token = created;
+        }
+        return token;
+    }
+}
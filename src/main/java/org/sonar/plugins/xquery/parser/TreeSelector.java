@@ -0,0 +1,155 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A compiled node name (path) for XQueryTree.find, such as
+ * "FunctionName.QName". Each part of the name that is the name of a token
+ * type (see XQueryParser.tokenNames) is matched against the type of the nodes,
+ * any other part against their text.
+ *
+ * Selectors are immutable and compiled selectors are cached by name, so
+ * compile() is cheap enough to call for every search and a selector can be
+ * shared between threads.
+ */
+public final class TreeSelector {
+
+    // Enough for the names used in the code, while names that are built at
+    // run time cannot fill up the memory
+    private static final int MAX_CACHED = 1000;
+
+    private static final ConcurrentMap<String, TreeSelector> CACHE = new ConcurrentHashMap<String, TreeSelector>();
+
+    private static final Map<String, Integer> TYPES = new HashMap<String, Integer>();
+
+    static {
+        String[] names = XQueryParser.tokenNames;
+        for (int type = 0; type < names.length; type++) {
+            TYPES.put(names[type], type);
+        }
+    }
+
+    private final String name;
+
+    // The token type to match for each part of the name, or -1 to match the
+    // text instead
+    private final int[] types;
+    private final String[] texts;
+
+    private TreeSelector(String name) {
+        this.name = name;
+        this.texts = StringUtils.splitPreserveAllTokens(name, '.');
+        this.types = new int[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            Integer type = TYPES.get(texts[i]);
+            types[i] = type != null ? type : -1;
+        }
+    }
+
+    /**
+     * @param name
+     *            The names of the nodes separated by a "."
+     * @return The selector for the name, or null if the name is blank
+     */
+    public static TreeSelector compile(String name) {
+        if (StringUtils.isBlank(name)) {
+            return null;
+        }
+        TreeSelector selector = CACHE.get(name);
+        if (selector == null) {
+            selector = new TreeSelector(name);
+            if (CACHE.size() < MAX_CACHED) {
+                CACHE.putIfAbsent(name, selector);
+            }
+        }
+        return selector;
+    }
+
+    /**
+     * Finds the first node, depth first, that matches the last part of the
+     * name below nodes that match the parts before it. See
+     * XQueryTree.find(name, skipNodes).
+     *
+     * @param root
+     *            The node to start at, which has to match the first part
+     *            unless nodes are skipped
+     * @param skipNodes
+     *            Whether the parts of the name can be matched further down the
+     *            tree than the children of the node that matched the previous
+     *            part
+     * @return The node, or null if none matches
+     */
+    public XQueryTree find(XQueryTree root, boolean skipNodes) {
+        if (root == null) {
+            return null;
+        }
+
+        // Each entry in the stack holds how many parts of the name have been
+        // matched above the node
+        TreeStack stack = TreeStack.acquire();
+        try {
+            stack.push(root, 0);
+            while (!stack.isEmpty()) {
+                int matched = stack.peekValue();
+                XQueryTree node = (XQueryTree) stack.pop();
+                int next;
+                if (matches(node, matched)) {
+                    if (matched == types.length - 1) {
+                        return node;
+                    }
+                    next = matched + 1;
+                } else if (skipNodes) {
+                    next = matched;
+                } else {
+                    continue;
+                }
+
+                List<XQueryTree> children = node.getChildren();
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    if (children.get(i) != null) {
+                        stack.push(children.get(i), next);
+                    }
+                }
+            }
+            return null;
+        } finally {
+            stack.release();
+        }
+    }
+
+    private boolean matches(XQueryTree node, int part) {
+        if (types[part] >= 0) {
+            return types[part] == node.getType();
+        }
+        return texts[part].equals(node.getText());
+    }
+
+    /*
+     * The number of parts of the name, for CompactTree.find.
+     */
+    int size() {
+        return types.length;
+    }
+
+    boolean matches(CompactTree tree, int node, int part) {
+        if (types[part] >= 0) {
+            return types[part] == tree.getType(node);
+        }
+        return texts[part].equals(tree.getText(node));
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
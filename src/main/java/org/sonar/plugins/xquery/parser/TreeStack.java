@@ -0,0 +1,109 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import java.util.Arrays;
+
+/**
+ * A stack of tree nodes, each with an int of state (such as the index of the
+ * next child to go to), for walking trees without recursion so that deeply
+ * nested code does not need a large thread stack. The arrays grow as needed
+ * and are kept when the stack is cleared, so a stack can be reused for many
+ * walks.
+ *
+ * Each thread has a stack that can be borrowed with acquire() and has to be
+ * given back with release(). A walk that starts while the thread's stack is
+ * borrowed gets a new one.
+ */
+public final class TreeStack {
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private static final ThreadLocal<TreeStack> STACKS = new ThreadLocal<TreeStack>() {
+        @Override
+        protected TreeStack initialValue() {
+            return new TreeStack();
+        }
+    };
+
+    private Object[] objects = new Object[INITIAL_CAPACITY];
+    private int[] values = new int[INITIAL_CAPACITY];
+    private int size;
+    private boolean borrowed;
+
+    /**
+     * Borrows the stack of the current thread, or creates a new one if it is
+     * already borrowed.
+     */
+    public static TreeStack acquire() {
+        TreeStack stack = STACKS.get();
+        if (stack.borrowed) {
+            return new TreeStack();
+        }
+        stack.borrowed = true;
+        return stack;
+    }
+
+    /**
+     * Clears the stack and gives it back to its thread.
+     */
+    public void release() {
+        clear();
+        borrowed = false;
+    }
+
+    public void push(Object object, int value) {
+        if (size == objects.length) {
+            objects = Arrays.copyOf(objects, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        objects[size] = object;
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * Removes the top entry.
+     *
+     * @return The object of the entry
+     */
+    public Object pop() {
+        Object object = objects[--size];
+        objects[size] = null;
+        return object;
+    }
+
+    public Object peek() {
+        return objects[size - 1];
+    }
+
+    /**
+     * @return The int of the top entry
+     */
+    public int peekValue() {
+        return values[size - 1];
+    }
+
+    /**
+     * Returns the int of the top entry and adds one to it, which is handy for
+     * keeping track of the next child to go to.
+     */
+    public int nextValue() {
+        return values[size - 1]++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(objects, 0, size, null);
+        size = 0;
+    }
+}
@@ -51,6 +51,9 @@ public class XQueryErrorNode extends XQueryTree {
     public Token stop;
     public RecognitionException trappedException;
 
+    private String text;
+    private String description;
+
     public XQueryErrorNode(TokenStream input, Token start, Token stop, RecognitionException e) {
         if (stop == null || (stop.getTokenIndex() < start.getTokenIndex() && stop.getType() != Token.EOF)) {
             // sometimes resync does not consume a token (when LT(1) is
@@ -65,6 +68,20 @@ public class XQueryErrorNode extends XQueryTree {
         this.trappedException = e;
     }
 
+    /**
+     * Creates an error node that is detached from the token stream, such as
+     * one read back from an encoded tree.
+     * 
+     * @param text
+     *            The erroneous text
+     * @param description
+     *            The description of the error (the string value of the node)
+     */
+    public XQueryErrorNode(String text, String description) {
+        this.text = text;
+        this.description = description;
+    }
+
     public boolean isNil() {
         return false;
     }
@@ -74,6 +91,9 @@ public class XQueryErrorNode extends XQueryTree {
     }
 
     public String getText() {
+        if (input == null) {
+            return text;
+        }
         String badText = null;
         if (start instanceof Token) {
             int i = (start).getTokenIndex();
@@ -93,6 +113,9 @@ public class XQueryErrorNode extends XQueryTree {
     }
 
     public String toString() {
+        if (input == null) {
+            return description;
+        }
         if (trappedException instanceof MissingTokenException) {
             return "<missing type: " + ((MissingTokenException) trappedException).getMissingType() + ">";
         } else if (trappedException instanceof UnwantedTokenException) {
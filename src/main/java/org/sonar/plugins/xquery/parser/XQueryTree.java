@@ -7,6 +7,7 @@ package org.sonar.plugins.xquery.parser;
 import org.antlr.runtime.CommonToken;
 import org.antlr.runtime.Token;
 import org.antlr.runtime.tree.CommonTree;
+import org.antlr.runtime.tree.Tree;
 import org.apache.commons.lang.StringUtils;
 
 import java.util.ArrayList;
@@ -20,6 +21,28 @@ public class XQueryTree extends CommonTree {
 
     private boolean stacked;
 
+    // The contents of a function body that have not been parsed yet
+    private DeferredFunctionBody deferred;
+
+    // The values of the node once they have been asked for, which are
+    // dropped when the children change
+    private String value;
+    private String textValue;
+    private boolean valueKnown;
+    private boolean textValueKnown;
+
+    // The positions of the node for when its token does not have them, worked
+    // out by computePositions or when they are first asked for; the flags say
+    // which ones are known (CompactTree keeps them as well)
+    static final int LINE = 1;
+    static final int COLUMN = 2;
+    static final int END = 4;
+    int line;
+    int column;
+    int endLine;
+    int endColumn;
+    int positions;
+
     public XQueryTree() {
     }
 
@@ -33,6 +56,8 @@ public class XQueryTree extends CommonTree {
      * first FLWOR statement you could do something like "MainModule.FLWOR" and
      * it will return the tree at the first FLWOR node in the first MainModule
      * node. By default will skip node levels until it finds one that matches.
+     * Names of token types are matched against the type of the nodes rather
+     * than their text (see TreeSelector).
      * 
      * @param name
      *            The name of the node to find
@@ -42,6 +67,18 @@ public class XQueryTree extends CommonTree {
         return find(this, name, true);
     }
 
+    /**
+     * See documentation for find(name). The name is compiled once rather than
+     * split up for every search.
+     * 
+     * @param selector
+     *            The compiled name of the node to find
+     * @return The node tree
+     */
+    public XQueryTree find(TreeSelector selector) {
+        return find(selector, true);
+    }
+
     /**
      * See documentation for find(name). This method allows you to specify
      * whether or not to skip node levels.
@@ -57,46 +94,175 @@ public class XQueryTree extends CommonTree {
         return find(this, name, skipNodes);
     }
 
+    /**
+     * See documentation for find(name, skipNodes). The name is compiled once
+     * rather than split up for every search.
+     * 
+     * @param selector
+     *            The compiled name of the node to find
+     * @param skipNodes
+     *            Whether or not to skip nodes when searching for the name
+     *            parts.
+     * @return The node tree
+     */
+    public XQueryTree find(TreeSelector selector, boolean skipNodes) {
+        if (selector == null) {
+            return null;
+        }
+        return selector.find(this, skipNodes);
+    }
+
     /*
      * Internal method that allows us to pass in the root of where to search for
-     * the node.
+     * the node. The name is compiled (and cached) by TreeSelector.
      */
     private XQueryTree find(XQueryTree root, String name, boolean skipNodes) {
-        String checkName = StringUtils.substringBefore(name, ".");
-
         // If we don't have a root or a name then don't go further
         if (root == null || StringUtils.isBlank(name)) {
             return null;
+        }
+        return TreeSelector.compile(name).find(root, skipNodes);
+    }
+
+    /**
+     * Overridden so that the value of the node is worked out again.
+     */
+    @Override
+    public void addChild(Tree t) {
+        super.addChild(t);
+        forgetValues();
+    }
+
+    @Override
+    public void setChild(int i, Tree t) {
+        super.setChild(i, t);
+        forgetValues();
+    }
+
+    @Override
+    public Object deleteChild(int i) {
+        Object child = super.deleteChild(i);
+        forgetValues();
+        return child;
+    }
+
+    @Override
+    public void replaceChildren(int startChildIndex, int stopChildIndex, Object t) {
+        super.replaceChildren(startChildIndex, stopChildIndex, t);
+        forgetValues();
+    }
+
+    private void forgetValues() {
+        value = null;
+        textValue = null;
+        valueKnown = false;
+        textValueKnown = false;
+        positions = 0;
+    }
 
-            // If we are at the "end" of the name we can just return where we
-            // are
-        } else if (StringUtils.equals(name, root.getText())) {
-            return root;
-
-            // Check the current name in the node, if we match then go to the
-            // next
-            // part of the name
-        } else if (StringUtils.equals(checkName, root.getText())) {
-            for (XQueryTree child : root.getChildren()) {
-                XQueryTree tree = find(child, StringUtils.substringAfter(name, "."), skipNodes);
-                if (tree != null) {
-                    return tree;
+    /**
+     * Works out the line and position (see getLine and getCharPositionInLine)
+     * and the end (see getEndLine) of the node and every node below it in one
+     * pass, so that asking for them later does not have to search the tree.
+     * The parser does this once a tree is done. Function bodies that have not
+     * been parsed yet are left out, along with the positions that depend on
+     * them; those are worked out when they are asked for.
+     */
+    public void computePositions() {
+        computePositions(false);
+    }
+
+    /*
+     * Works out the positions of the nodes after their children (post-order),
+     * the stack holding each node with the index of its next child.
+     */
+    void computePositions(boolean parseDeferred) {
+        TreeStack stack = TreeStack.acquire();
+        try {
+            stack.push(this, 0);
+            while (!stack.isEmpty()) {
+                XQueryTree node = (XQueryTree) stack.peek();
+                int i = stack.nextValue();
+                boolean open = parseDeferred || node.deferred == null;
+                if (open && i < node.getChildCount()) {
+                    stack.push(node.getChild(i), 0);
+                } else {
+                    stack.pop();
+                    node.positions = 0;
+                    if (open) {
+                        node.computeOwnPositions();
+                    }
                 }
             }
-            return null;
+        } finally {
+            stack.release();
+        }
+    }
 
-            // If we didn't find anything at the current "level" then only
-            // continue if we are able to skip nodes of the tree
-        } else if (skipNodes) {
-            for (XQueryTree child : root.getChildren()) {
-                XQueryTree tree = find(child, name, skipNodes);
-                if (tree != null) {
-                    return tree;
-                }
+    /*
+     * Works out the positions of the node from those of its children, leaving
+     * out the ones that depend on a child that does not know them.
+     */
+    private void computeOwnPositions() {
+        int count = children != null ? children.size() : 0;
+
+        // The line of the first node that has one
+        line = 0;
+        positions |= LINE;
+        for (int i = 0; i < count; i++) {
+            XQueryTree child = (XQueryTree) children.get(i);
+            if (!child.hasOwnLine() && (child.positions & LINE) == 0) {
+                positions &= ~LINE;
+                break;
+            }
+            int childLine = child.hasOwnLine() ? child.token.getLine() : child.line;
+            if (childLine > 0) {
+                line = childLine;
+                break;
+            }
+        }
+
+        // The position of the first child
+        column = 0;
+        positions |= COLUMN;
+        if (count > 0) {
+            XQueryTree child = (XQueryTree) children.get(0);
+            if (child.hasOwnColumn()) {
+                column = child.token.getCharPositionInLine();
+            } else if ((child.positions & COLUMN) != 0) {
+                column = child.column;
+            } else {
+                positions &= ~COLUMN;
+            }
+        }
+
+        // Where the last token starts
+        endLine = 0;
+        endColumn = 0;
+        if (token != null && token.getLine() > 0) {
+            endLine = token.getLine();
+            endColumn = token.getCharPositionInLine();
+        }
+        positions |= END;
+        for (int i = 0; i < count; i++) {
+            XQueryTree child = (XQueryTree) children.get(i);
+            if ((child.positions & END) == 0) {
+                positions &= ~END;
+                break;
+            }
+            if (child.endLine > endLine || (child.endLine == endLine && child.endColumn > endColumn)) {
+                endLine = child.endLine;
+                endColumn = child.endColumn;
             }
-            return null;
         }
-        return null;
+    }
+
+    private boolean hasOwnLine() {
+        return token != null && token.getLine() != 0;
+    }
+
+    private boolean hasOwnColumn() {
+        return token != null && token.getCharPositionInLine() != -1;
     }
 
     /**
@@ -106,16 +272,26 @@ public class XQueryTree extends CommonTree {
      */
     @Override
     public int getCharPositionInLine() {
-        if (token == null || token.getCharPositionInLine() == -1) {
-            for (XQueryTree child : getChildren()) {
-                int pos = child.getCharPositionInLine();
-                if (pos != -1) {
-                    return pos;
-                }
+        if (hasOwnColumn()) {
+            return token.getCharPositionInLine();
+        }
+        if ((positions & COLUMN) == 0) {
+            // A child always has a position (0 if nothing below it has one),
+            // so only the first child at each level is looked at
+            XQueryTree node = this;
+            while (!node.hasOwnColumn() && (node.positions & COLUMN) == 0 && node.getChildCount() > 0) {
+                node = node.getChild(0);
             }
-            return 0;
+            if (node.hasOwnColumn()) {
+                column = node.token.getCharPositionInLine();
+            } else if ((node.positions & COLUMN) != 0) {
+                column = node.column;
+            } else {
+                column = 0;
+            }
+            positions |= COLUMN;
         }
-        return token.getCharPositionInLine();
+        return column;
     }
 
     /**
@@ -127,6 +303,8 @@ public class XQueryTree extends CommonTree {
      */
     @Override
     public XQueryTree getChild(int i) {
+        loadChildren();
+        parseDeferred();
         if (children == null || i >= children.size()) {
             return null;
         }
@@ -139,6 +317,8 @@ public class XQueryTree extends CommonTree {
      */
     @Override
     public List<XQueryTree> getChildren() {
+        loadChildren();
+        parseDeferred();
         List<XQueryTree> children = super.getChildren();
         // An empty list is better than a null list?
         if (children == null) {
@@ -147,6 +327,13 @@ public class XQueryTree extends CommonTree {
         return children;
     }
 
+    @Override
+    public int getChildCount() {
+        loadChildren();
+        parseDeferred();
+        return super.getChildCount();
+    }
+
     /**
      * Gets the "text value" of the specified node - the text for each of the
      * children appended together. Different from the getTextValue() method in
@@ -190,16 +377,72 @@ public class XQueryTree extends CommonTree {
      */
     @Override
     public int getLine() {
-        if (token == null || token.getLine() == 0) {
-            for (XQueryTree child : getChildren()) {
-                int line = child.getLine();
-                if (line > 0) {
-                    return line;
+        if (hasOwnLine()) {
+            return token.getLine();
+        }
+        if ((positions & LINE) == 0) {
+            line = searchLine();
+            positions |= LINE;
+        }
+        return line;
+    }
+
+    /*
+     * Searches the children depth first for a node with a line.
+     */
+    private int searchLine() {
+        TreeStack stack = TreeStack.acquire();
+        try {
+            pushChildren(stack, this);
+            while (!stack.isEmpty()) {
+                XQueryTree node = (XQueryTree) stack.pop();
+                if (node.hasOwnLine()) {
+                    if (node.token.getLine() > 0) {
+                        return node.token.getLine();
+                    }
+                } else if ((node.positions & LINE) != 0) {
+                    if (node.line > 0) {
+                        return node.line;
+                    }
+                } else {
+                    pushChildren(stack, node);
                 }
             }
             return 0;
+        } finally {
+            stack.release();
+        }
+    }
+
+    /**
+     * @return The line of the last token of the node and the nodes below it,
+     *         or 0 if none of them has a line
+     */
+    public int getEndLine() {
+        if ((positions & END) == 0) {
+            computePositions(true);
+        }
+        return endLine;
+    }
+
+    /**
+     * @return The position in the line where the last token of the node and
+     *         the nodes below it starts (see getEndLine)
+     */
+    public int getEndCharPositionInLine() {
+        if ((positions & END) == 0) {
+            computePositions(true);
+        }
+        return endColumn;
+    }
+
+    /*
+     * Pushes the children of the node so that the first one is on top.
+     */
+    private static void pushChildren(TreeStack stack, XQueryTree node) {
+        for (int i = node.getChildCount() - 1; i >= 0; i--) {
+            stack.push(node.getChild(i), 0);
         }
-        return token.getLine();
     }
 
     public int getStart() {
@@ -213,16 +456,21 @@ public class XQueryTree extends CommonTree {
     /**
      * Gets the "text value" of the node - the text for each of the children
      * appended together. All blank spaces are removed, so this is mainly useful
-     * for getting names of variables and functions, not string literals.
+     * for getting names of variables and functions, not string literals. The
+     * value is worked out once and kept.
      * 
      * @return String "text" value of the node
      */
     public String getTextValue() {
-        String value = getValue();
-        if (StringUtils.isNotBlank(value)) {
-            value = value.replaceAll(" ", "");
+        if (!textValueKnown) {
+            String value = getValue();
+            if (StringUtils.isNotBlank(value)) {
+                value = StringUtils.remove(value, ' ');
+            }
+            textValue = value;
+            textValueKnown = true;
         }
-        return value;
+        return textValue;
     }
 
     /**
@@ -249,7 +497,7 @@ public class XQueryTree extends CommonTree {
     }
 
     public int getType() {
-        return token.getType();
+        return token != null ? token.getType() : Token.INVALID_TOKEN_TYPE;
     }
 
     /**
@@ -284,27 +532,35 @@ public class XQueryTree extends CommonTree {
 
     /**
      * Gets the "value" of the node - the text for each of the children appended
-     * together.
+     * together. The value is worked out once and kept.
      * 
      * @return String value for the node
      */
     public String getValue() {
-        StringBuffer value = new StringBuffer();
-        for (XQueryTree child : getChildren()) {
-            String text = (child).getText();
-            if (StringUtils.isNotBlank(text)) {
-                if (value.length() > 0) {
-                    value.append(' ');
+        if (!valueKnown) {
+            // Reading the children parses a deferred body first, so the value
+            // includes its contents
+            List<XQueryTree> children = getChildren();
+            StringBuilder value = new StringBuilder();
+            for (XQueryTree child : children) {
+                String text = child.getText();
+                if (StringUtils.isNotBlank(text)) {
+                    if (value.length() > 0) {
+                        value.append(' ');
+                    }
+                    value.append(text.trim());
                 }
-                value.append(text.trim());
             }
+            if (value.length() > 0) {
+                this.value = value.toString();
+            } else if (XQueryParser.StringLiteral == getType()) {
+                this.value = "";
+            } else {
+                this.value = null;
+            }
+            valueKnown = true;
         }
-        if (value.toString().length() > 0) {
-            return value.toString();
-        } else if (XQueryParser.StringLiteral == getType()) {
-            return "";
-        }
-        return null;
+        return value;
     }
 
     /**
@@ -324,6 +580,15 @@ public class XQueryTree extends CommonTree {
         return null;
     }
 
+    /**
+     * @return Whether the node is a function body whose contents have not
+     *         been parsed yet; they are parsed as soon as its children are
+     *         asked for
+     */
+    public boolean isDeferred() {
+        return deferred != null;
+    }
+
     public boolean isError() {
         return false;
     }
@@ -332,6 +597,36 @@ public class XQueryTree extends CommonTree {
         return stacked;
     }
 
+    void setDeferred(DeferredFunctionBody deferred) {
+        this.deferred = deferred;
+    }
+
+    /*
+     * Adds the children of a node that are only created when they are first
+     * asked for (see CompactTree.getRoot), without parsing a deferred body.
+     */
+    void loadChildren() {
+    }
+
+    /*
+     * The children the node has without parsing a deferred body.
+     */
+    List<?> getLoadedChildren() {
+        loadChildren();
+        return children;
+    }
+
+    /*
+     * Parses the deferred contents of the node and adds them as its children.
+     */
+    private void parseDeferred() {
+        if (deferred != null) {
+            DeferredFunctionBody body = deferred;
+            deferred = null;
+            body.parse(this);
+        }
+    }
+
     public void setStacked(boolean inStack) {
         stacked = inStack;
     }
@@ -356,53 +651,88 @@ public class XQueryTree extends CommonTree {
      */
     @Override
     public String toStringTree() {
-        return toStringTree(0);
+        StringBuilder buf = new StringBuilder();
+        if (!openStringTree(buf, this, 0)) {
+            return buf.toString();
+        }
+
+        // Each entry is a node that has been opened and the index of its next
+        // child, the level of a node being its depth in the stack
+        TreeStack stack = TreeStack.acquire();
+        try {
+            stack.push(this, 0);
+            while (!stack.isEmpty()) {
+                XQueryTree node = (XQueryTree) stack.peek();
+                int level = stack.size() - 1;
+                int i = stack.nextValue();
+                if (i < node.children.size()) {
+                    if (i > 0) {
+                        buf.append('\n');
+                        indent(buf, level + 1);
+                    }
+                    XQueryTree child = (XQueryTree) node.children.get(i);
+                    if (openStringTree(buf, child, level + 1)) {
+                        stack.push(child, 0);
+                    }
+                } else {
+                    stack.pop();
+                    if (!node.isNil()) {
+                        buf.append('\n');
+                        indent(buf, level);
+                        buf.append(')');
+                    }
+                }
+            }
+        } finally {
+            stack.release();
+        }
+        return buf.toString();
     }
 
     /*
-     * Internal method to indicate the indentation level.
+     * Prints a leaf, or the start of a node with children up to its first
+     * child.
+     * 
+     * @return Whether the node has children to print
      */
-    private String toStringTree(int level) {
+    private static boolean openStringTree(StringBuilder buf, XQueryTree node, int level) {
+        List<?> children = node.getLoadedChildren();
         if (children == null || children.size() == 0) {
-            return this.toString();
+            buf.append(node.toString());
+            return false;
         }
-        StringBuffer buf = new StringBuffer();
-        if (!isNil()) {
-            buf.append("(");
-            buf.append(this.toString());
+        if (!node.isNil()) {
+            buf.append('(');
+            buf.append(node.toString());
         }
         buf.append('\n');
-        for (int i = 0; i <= level; i++) {
+        indent(buf, level + 1);
+        return true;
+    }
+
+    private static void indent(StringBuilder buf, int level) {
+        for (int i = 0; i < level; i++) {
             buf.append("  ");
         }
-        for (int i = 0; children != null && i < children.size(); i++) {
-            XQueryTree t = (XQueryTree) children.get(i);
-            if (i > 0) {
-                buf.append('\n');
-                for (int j = 0; j <= level; j++) {
-                    buf.append("  ");
-                }
-            }
-            buf.append(t.toStringTree(level + 1));
-        }
-        if (!isNil()) {
-            buf.append('\n');
-            for (int i = 0; i < level; i++) {
-                buf.append("  ");
-            }
-            buf.append(')');
-        }
-        return buf.toString();
     }
 
     public String path() {
-        if (parent == null) {
-            return this.toString();
-        } else if (!isNil()) {
-            return ((XQueryTree) parent).path() + "/" + this.toString();
-        } else {
-            return ((XQueryTree) parent).path();
+        // Collect the nodes from the root down, leaving out nil nodes other
+        // than the root
+        List<XQueryTree> nodes = new ArrayList<XQueryTree>();
+        for (XQueryTree node = this; node != null; node = (XQueryTree) node.parent) {
+            if (node.parent == null || !node.isNil()) {
+                nodes.add(node);
+            }
+        }
+        StringBuilder path = new StringBuilder();
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            if (i < nodes.size() - 1) {
+                path.append('/');
+            }
+            path.append(nodes.get(i).toString());
         }
+        return path.toString();
     }
 
 }
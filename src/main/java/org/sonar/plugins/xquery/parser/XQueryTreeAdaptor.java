@@ -28,17 +28,32 @@ import org.antlr.runtime.tree.Tree;
 public class XQueryTreeAdaptor extends CommonTreeAdaptor {
 
     private boolean failOnError;
+    private NodeIndex index;
     
     public XQueryTreeAdaptor() {
         this(false);
     }
     
     public XQueryTreeAdaptor(boolean failOnError) {
+        this(failOnError, null);
+    }
+
+    /**
+     * @param index
+     *            The index the created nodes are added to, or null to not
+     *            index them
+     */
+    public XQueryTreeAdaptor(boolean failOnError, NodeIndex index) {
         this.failOnError = failOnError;
+        this.index = index;
     }
     
     public Object create(Token payload) {
-        return new XQueryTree(payload);
+        XQueryTree node = new XQueryTree(payload);
+        if (index != null) {
+            index.add(node);
+        }
+        return node;
     }
     
     @Override
@@ -0,0 +1,344 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.CommonToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of an AST so that a parsed module can be stored and
+ * read back without running the lexer and parser again. The encoding starts
+ * with a version number, followed by a pool of the distinct token texts and
+ * then the nodes in document order. Each node holds its token (type, text,
+ * line, column, channel, token index and character offsets), its start/stop
+ * offsets and the number of children. Lines, token indexes and offsets are
+ * written relative to the previous node and left out entirely when they can
+ * be derived from the token. Error nodes keep their erroneous text
+ * and description, but not the recognition exception.
+ *
+ * Numbers are written as variable length integers, so small values (which
+ * most are) only take a single byte.
+ */
+public final class XQueryTreeCodec {
+
+    public static final int VERSION = 1;
+
+    private static final int MAGIC = 0x58514153;
+
+    private static final int TOKEN = 1;
+    private static final int ERROR = 2;
+    private static final int STACKED = 4;
+    private static final int IMAGINARY = 8;
+    private static final int TOKEN_RANGE = 16;
+    private static final int NO_RANGE = 32;
+
+    // Values that are written relative to the previous node
+    private static final int LINE = 0;
+    private static final int TOKEN_INDEX = 1;
+    private static final int OFFSET = 2;
+
+    private XQueryTreeCodec() {
+    }
+
+    /**
+     * Encodes a tree into a byte array.
+     *
+     * @param tree
+     *            The tree to encode
+     * @return The encoded tree
+     */
+    public static byte[] encode(XQueryTree tree) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            write(tree, new DataOutputStream(bytes));
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decodes a tree from a byte array created by encode().
+     *
+     * @param bytes
+     *            The encoded tree
+     * @return The tree
+     */
+    public static XQueryTree decode(byte[] bytes) throws IOException {
+        return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * Writes the encoded tree to the output.
+     *
+     * @param tree
+     *            The tree to encode
+     * @param out
+     *            The output to write to
+     */
+    public static void write(XQueryTree tree, DataOutput out) throws IOException {
+        // Encode the nodes first so that the text pool is complete
+        Map<String, Integer> pool = new HashMap<String, Integer>();
+        List<String> texts = new ArrayList<String>();
+        ByteArrayOutputStream nodeBytes = new ByteArrayOutputStream();
+        DataOutputStream nodes = new DataOutputStream(nodeBytes);
+        int count = 0;
+        int[] last = new int[3];
+
+        Deque<XQueryTree> stack = new ArrayDeque<XQueryTree>();
+        stack.push(tree);
+        while (!stack.isEmpty()) {
+            XQueryTree node = stack.pop();
+            writeNode(node, nodes, pool, texts, last);
+            count++;
+            for (int i = node.getChildCount() - 1; i >= 0; i--) {
+                stack.push(node.getChild(i));
+            }
+        }
+
+        out.writeInt(MAGIC);
+        writeInt(out, VERSION);
+        writeInt(out, texts.size());
+        for (String text : texts) {
+            byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+            writeInt(out, utf8.length);
+            out.write(utf8);
+        }
+        writeInt(out, count);
+        out.write(nodeBytes.toByteArray());
+    }
+
+    /**
+     * Reads an encoded tree from the input.
+     *
+     * @param in
+     *            The input to read from
+     * @return The tree
+     * @throws IOException
+     *             If the input is not an encoded tree of this version
+     */
+    public static XQueryTree read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not an encoded XQuery tree");
+        }
+        int version = readInt(in);
+        if (version != VERSION) {
+            throw new IOException("Unsupported XQuery tree encoding version " + version);
+        }
+
+        String[] texts = new String[readInt(in)];
+        for (int i = 0; i < texts.length; i++) {
+            byte[] utf8 = new byte[readInt(in)];
+            in.readFully(utf8);
+            texts[i] = new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        // Nodes are in document order along with their number of children,
+        // so keep a stack of the parents that are still missing children
+        int count = readInt(in);
+        XQueryTree root = null;
+        int[] last = new int[3];
+        Deque<XQueryTree> parents = new ArrayDeque<XQueryTree>();
+        Deque<Integer> remaining = new ArrayDeque<Integer>();
+        for (int i = 0; i < count; i++) {
+            XQueryTree node = readNode(in, texts, last);
+            int children = readInt(in);
+
+            if (root == null) {
+                root = node;
+            } else {
+                parents.peek().addChild(node);
+                int left = remaining.pop() - 1;
+                if (left > 0) {
+                    remaining.push(left);
+                } else {
+                    parents.pop();
+                }
+            }
+
+            if (children > 0) {
+                parents.push(node);
+                remaining.push(children);
+            }
+        }
+        if (root != null) {
+            root.computePositions();
+        }
+        return root;
+    }
+
+    private static void writeNode(XQueryTree node, DataOutput out, Map<String, Integer> pool, List<String> texts,
+            int[] last) throws IOException {
+        CommonToken token = node.isError() ? null : node.getToken();
+        int flags = 0;
+        if (token != null) {
+            flags |= TOKEN;
+            if (isImaginary(token)) {
+                flags |= IMAGINARY;
+            } else if (node.getStart() == token.getStartIndex() && node.getStop() == token.getStopIndex()
+                    && node.getTokenStartIndex() == token.getTokenIndex()
+                    && node.getTokenStopIndex() == token.getTokenIndex()) {
+                flags |= TOKEN_RANGE;
+            }
+        }
+        if (node.isError()) {
+            flags |= ERROR;
+        }
+        if (node.isStacked()) {
+            flags |= STACKED;
+        }
+        if (node.getStart() == 0 && node.getStop() == 0 && node.getTokenStartIndex() == -1
+                && node.getTokenStopIndex() == -1) {
+            flags |= NO_RANGE;
+        }
+        writeInt(out, flags);
+
+        if (token != null) {
+            writeInt(out, token.getType());
+            writeText(out, token.getText(), pool, texts);
+            writeInt(out, token.getLine() - last[LINE]);
+            writeInt(out, token.getCharPositionInLine());
+            last[LINE] = token.getLine();
+            if ((flags & IMAGINARY) == 0) {
+                writeInt(out, token.getChannel());
+                writeInt(out, token.getTokenIndex() - last[TOKEN_INDEX]);
+                writeInt(out, token.getStartIndex() - last[OFFSET]);
+                writeInt(out, token.getStopIndex() - token.getStartIndex());
+                last[TOKEN_INDEX] = token.getTokenIndex();
+                last[OFFSET] = token.getStartIndex();
+            }
+        }
+        if (node.isError()) {
+            writeText(out, node.getText(), pool, texts);
+            writeText(out, node.toString(), pool, texts);
+        }
+        if ((flags & (TOKEN_RANGE | NO_RANGE)) == 0) {
+            writeInt(out, node.getStart() - last[OFFSET]);
+            writeInt(out, node.getStop() - node.getStart());
+            writeInt(out, node.getTokenStartIndex() - last[TOKEN_INDEX]);
+            writeInt(out, node.getTokenStopIndex() - node.getTokenStartIndex());
+            last[OFFSET] = node.getStart();
+            last[TOKEN_INDEX] = node.getTokenStartIndex();
+        }
+        writeInt(out, node.getChildCount());
+    }
+
+    private static XQueryTree readNode(DataInput in, String[] texts, int[] last) throws IOException {
+        int flags = readInt(in);
+
+        CommonToken token = null;
+        if ((flags & TOKEN) != 0) {
+            token = new CommonToken(readInt(in), readText(in, texts));
+            last[LINE] += readInt(in);
+            token.setLine(last[LINE]);
+            token.setCharPositionInLine(readInt(in));
+            if ((flags & IMAGINARY) == 0) {
+                token.setChannel(readInt(in));
+                last[TOKEN_INDEX] += readInt(in);
+                last[OFFSET] += readInt(in);
+                token.setTokenIndex(last[TOKEN_INDEX]);
+                token.setStartIndex(last[OFFSET]);
+                token.setStopIndex(last[OFFSET] + readInt(in));
+            }
+        }
+
+        XQueryTree node;
+        if ((flags & ERROR) != 0) {
+            String text = readText(in, texts);
+            node = new XQueryErrorNode(text, readText(in, texts));
+        } else {
+            node = new XQueryTree(token);
+        }
+        node.setStacked((flags & STACKED) != 0);
+        if ((flags & NO_RANGE) != 0) {
+            node.setStart(0);
+            node.setStop(0);
+            node.setTokenStartIndex(-1);
+            node.setTokenStopIndex(-1);
+        } else if ((flags & TOKEN_RANGE) != 0) {
+            node.setStart(token.getStartIndex());
+            node.setStop(token.getStopIndex());
+            node.setTokenStartIndex(token.getTokenIndex());
+            node.setTokenStopIndex(token.getTokenIndex());
+        } else {
+            last[OFFSET] += readInt(in);
+            node.setStart(last[OFFSET]);
+            node.setStop(last[OFFSET] + readInt(in));
+            last[TOKEN_INDEX] += readInt(in);
+            node.setTokenStartIndex(last[TOKEN_INDEX]);
+            node.setTokenStopIndex(last[TOKEN_INDEX] + readInt(in));
+        }
+        return node;
+    }
+
+    /*
+     * Tokens created by the parser for the tree structure (rather than read
+     * from the source) do not have an index or offsets of their own.
+     */
+    private static boolean isImaginary(CommonToken token) {
+        return token.getTokenIndex() == -1 && token.getStartIndex() == 0 && token.getStopIndex() == 0
+                && token.getChannel() == CommonToken.DEFAULT_CHANNEL;
+    }
+
+    private static void writeText(DataOutput out, String text, Map<String, Integer> pool, List<String> texts)
+            throws IOException {
+        if (text == null) {
+            writeInt(out, 0);
+            return;
+        }
+        Integer index = pool.get(text);
+        if (index == null) {
+            index = texts.size();
+            pool.put(text, index);
+            texts.add(text);
+        }
+        writeInt(out, index + 1);
+    }
+
+    private static String readText(DataInput in, String[] texts) throws IOException {
+        int index = readInt(in);
+        return index == 0 ? null : texts[index - 1];
+    }
+
+    /*
+     * Writes a zigzag encoded variable length integer, so that small negative
+     * numbers (like -1 for missing positions) are small as well.
+     */
+    private static void writeInt(DataOutput out, int value) throws IOException {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7F) != 0) {
+            out.writeByte((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        out.writeByte(zigzag);
+    }
+
+    private static int readInt(DataInput in) throws IOException {
+        int zigzag = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readByte();
+            zigzag |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+}
@@ -10,8 +10,9 @@ import org.sonar.plugins.xquery.language.SourceCode;
 import org.sonar.plugins.xquery.parser.XQueryParser;
 import org.sonar.plugins.xquery.parser.XQueryTree;
 import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
-import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
+import org.sonar.plugins.xquery.parser.visitor.DeclarationVisitor;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Stack;
@@ -28,13 +29,17 @@ import java.util.Stack;
  * @author cieslinskice
  * 
  */
-public class DependencyMapper implements XQueryAstVisitor {
+public class DependencyMapper implements DeclarationVisitor {
 
     private Stack<HashMap<Integer, Declaration>> declarations;
     private String namespace;
     private String prefix;
     private Map<String, Import> imports;
+    private Map<Integer, Declaration> globalReferences;
     private static final int RESERVED_STACKS = 1;
+    private static final int[] GLOBAL_NODE_TYPES = new int[] { XQueryParser.ModuleDecl, XQueryParser.FunctionDecl,
+        XQueryParser.VarDecl };
+    private int reservedStacks = RESERVED_STACKS;
     private String mode;
 
     public DependencyMapper() {
@@ -46,11 +51,57 @@ public class DependencyMapper implements XQueryAstVisitor {
         declarations = new Stack<HashMap<Integer, Declaration>>();
         declarations.push(new HashMap<Integer, Declaration>());
         imports = new HashMap<String, Import>();
+        globalReferences = new HashMap<Integer, Declaration>();
 
         // Default to running in "global" mode
         setMode(mode);
     }
 
+    /**
+     * Creates a "local" mode mapper that shares the global declarations of
+     * this mapper but has its own scope stack. The global declarations are only
+     * read by the new mapper, so once the global mapping is done each analysis
+     * thread can use its own local mapper.
+     * 
+     * @return A new mapper in "local" mode
+     */
+    public DependencyMapper newLocalMapper() {
+        DependencyMapper mapper = new DependencyMapper("local");
+        mapper.declarations.add(0, declarations.get(0));
+
+        // The extra reserved stack keeps declarations that are left over after
+        // a stack reset out of the shared global declarations
+        mapper.reservedStacks = RESERVED_STACKS + 1;
+        return mapper;
+    }
+
+    /**
+     * Adds the global declarations of another mapper to the global
+     * declarations of this mapper. A declaration that is already mapped is
+     * replaced, so merging mappers in the same order as their files were
+     * scanned gives the same result as scanning all the files with one mapper.
+     * 
+     * @param mapper
+     *            A "global" mode mapper
+     */
+    public void mergeGlobalDeclarations(DependencyMapper mapper) {
+        mergeGlobalDeclarations(mapper.getGlobalDeclarations());
+    }
+
+    /**
+     * Adds the specified declarations to the global declarations of this
+     * mapper, replacing any declaration that is already mapped.
+     * 
+     * @param globals
+     *            Global variable/function declarations
+     */
+    public void mergeGlobalDeclarations(Collection<Declaration> globals) {
+        Map<Integer, Declaration> decls = declarations.get(0);
+        for (Declaration declaration : globals) {
+            decls.put(declaration.hashCode(), declaration);
+        }
+    }
+
     /**
      * Adds a variable or function declaration to the declarations on the
      * current stack.
@@ -170,8 +221,9 @@ public class DependencyMapper implements XQueryAstVisitor {
 
     @Override
     public void enterSource(SourceCode code, XQueryTree node, DependencyMapper mapper) {
-        // Clear out the imports when we enter a new source file
+        // Clear out the imports and references when we enter a new source file
         imports = new HashMap<String, Import>();
+        globalReferences = new HashMap<Integer, Declaration>();
         
         // Reset the module namespace information
         setPrefix(null);
@@ -226,7 +278,7 @@ public class DependencyMapper implements XQueryAstVisitor {
      * Removes a level from the declarations stack
      */
     public void exitStack() {
-        if (declarations.size() > RESERVED_STACKS) {
+        if (declarations.size() > reservedStacks) {
             declarations.pop();
         }
     }
@@ -244,6 +296,9 @@ public class DependencyMapper implements XQueryAstVisitor {
         for (int i = declarations.size() - 1; i >= 0; i--) {
             Map<Integer, Declaration> stack = declarations.get(i);
             Declaration declaration = stack.get(key);
+            if (i == 0 && "local".equals(getMode())) {
+                globalReferences.put(key.hashCode(), declaration);
+            }
             if (declaration != null) {
                 return declaration;
             }
@@ -251,6 +306,36 @@ public class DependencyMapper implements XQueryAstVisitor {
         return null;
     }
 
+    /**
+     * @return The "global" variable/function declarations
+     */
+    public Collection<Declaration> getGlobalDeclarations() {
+        return declarations.get(0).values();
+    }
+
+    /**
+     * Gets the keys that were looked up in the global declarations while
+     * processing the current source file in "local" mode, along with the
+     * declaration that was found for each (null if none was found). The
+     * results for the file only depend on these global declarations.
+     * 
+     * @return The global declaration (or null) by key
+     */
+    public Map<Integer, Declaration> getGlobalReferences() {
+        return globalReferences;
+    }
+
+    /**
+     * Looks for a global declaration with the specified key.
+     * 
+     * @param key
+     *            Variable/function key
+     * @return The declaration, or null if there is no such global declaration
+     */
+    public Declaration getGlobalDeclaration(int key) {
+        return declarations.get(0).get(key);
+    }
+
     public Stack<HashMap<Integer, Declaration>> getDeclarations() {
         return declarations;
     }
@@ -286,6 +371,29 @@ public class DependencyMapper implements XQueryAstVisitor {
         return imports;
     }
 
+    /**
+     * Only the local mode needs the contents of the function bodies, the
+     * global declarations are all outside of them.
+     */
+    @Override
+    public boolean isVisitingFunctionBodies() {
+        return !"global".equals(getMode());
+    }
+
+    /**
+     * Lists the types of the nodes the mapper needs in "global" mode, which
+     * are all that enterGlobalExpression looks at, so that the global
+     * declarations can be mapped from an index of the nodes rather than by
+     * walking the tree (see XQueryAstParser.mapDependencies). A subclass that
+     * needs more types adds them.
+     * 
+     * @return The token types (see XQueryParser), or null in "local" mode,
+     *         which needs every node to keep track of the scope
+     */
+    public int[] getGlobalNodeTypes() {
+        return "global".equals(getMode()) ? GLOBAL_NODE_TYPES : null;
+    }
+
     public String getMode() {
         return mode;
     }
@@ -337,7 +445,7 @@ public class DependencyMapper implements XQueryAstVisitor {
         decl.setLine(line);
         decl.setType(type);
 
-        XQueryTree parameters = node.find("ParamList");
+        XQueryTree parameters = (XQueryTree) node.getFirstChildWithType(XQueryParser.ParamList);
         if (parameters != null && parameters.getChildCount() > 0) {
             for (XQueryTree parameter : parameters.getChildren()) {
                 String pName = parameter.getTextValue("ParamName.QName");
@@ -361,7 +469,7 @@ public class DependencyMapper implements XQueryAstVisitor {
      *            A function call node
      */
     public void mapFunctionVariableDeclarations(XQueryTree node) {
-        XQueryTree parameters = node.find("ParamList");
+        XQueryTree parameters = (XQueryTree) node.getFirstChildWithType(XQueryParser.ParamList);
         if (parameters != null && parameters.getChildCount() > 0) {
             for (XQueryTree parameter : parameters.getChildren()) {
                 String pName = parameter.getTextValue("ParamName.QName");
@@ -439,7 +547,7 @@ public class DependencyMapper implements XQueryAstVisitor {
      * "reserved" stacks.
      */
     public void resetStack() {
-        for (int i = declarations.size(); i > RESERVED_STACKS; i--) {
+        for (int i = declarations.size(); i > reservedStacks; i--) {
             declarations.pop();
         }
     }
@@ -0,0 +1,19 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser.reporter;
+
+/**
+ * Thrown by the problem reporter to stop the parser once a source has used up
+ * its error or time budget (see ProblemReporter.setMaxErrors and
+ * ProblemReporter.setTimeout).
+ */
+public class ParseAbortedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ParseAbortedException(String message) {
+        super(message);
+    }
+}
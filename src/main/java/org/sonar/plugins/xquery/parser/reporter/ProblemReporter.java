@@ -8,6 +8,7 @@ import org.antlr.runtime.Token;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class ProblemReporter {
     
@@ -16,6 +17,18 @@ public class ProblemReporter {
 
     private List<Problem> problems;
 
+    // The budget of a source, past which parsing it is stopped (0 for no
+    // limit)
+    private int maxErrors;
+    private long timeout;
+
+    // The time spent parsing so far, and when the current parse started (or
+    // -1 when not parsing)
+    private long elapsed;
+    private long clockStart = -1;
+
+    private boolean aborted;
+
     public ProblemReporter() {
         this(false);
     }
@@ -26,10 +39,72 @@ public class ProblemReporter {
         problems = new ArrayList<Problem>();
     }
 
+    /**
+     * Stops the parser (see checkBudget) and records why as the last problem.
+     * Problems reported after that are ignored.
+     */
+    public void abort(Problem problem) {
+        problems.add(problem);
+        aborted = true;
+    }
+
+    /**
+     * Stops the parser by throwing a ParseAbortedException once the source
+     * has more problems than the maximum number of errors, or has been parsed
+     * for longer than the timeout. Called for every reported problem and
+     * every time the parser recovers from an error.
+     */
+    public void checkBudget() {
+        if (aborted) {
+            throw new ParseAbortedException(getAbortProblem().getMessage());
+        }
+        String reason = null;
+        if (maxErrors > 0 && problems.size() >= maxErrors) {
+            reason = problems.size() + " errors";
+        } else if (timeout > 0 && getElapsedTime() > timeout) {
+            reason = TimeUnit.NANOSECONDS.toMillis(getElapsedTime()) + " ms with " + problems.size() + " errors";
+        }
+        if (reason != null) {
+            Problem first = problems.isEmpty() ? null : problems.get(0);
+            StringBuffer message = new StringBuffer("Parsing stopped after ").append(reason);
+            if (first != null) {
+                message.append(", the first one was: ").append(first.getMessage());
+            }
+            Problem problem = new Problem(first != null ? first.getId() : null, message.toString(),
+                    first != null ? first.getToken() : null);
+            abort(problem);
+            throw new ParseAbortedException(message.toString());
+        }
+    }
+
+    /**
+     * @return The problem that says why parsing was stopped, or null if it
+     *         was not
+     */
+    public Problem getAbortProblem() {
+        return aborted ? problems.get(problems.size() - 1) : null;
+    }
+
+    /**
+     * @return The time spent parsing in nanoseconds, between startClock() and
+     *         stopClock() calls
+     */
+    public long getElapsedTime() {
+        return clockStart < 0 ? elapsed : elapsed + System.nanoTime() - clockStart;
+    }
+
     public List<Problem> getProblems() {
         return problems;
     }
 
+    /**
+     * @return Whether parsing was stopped because the source used up its
+     *         budget, in which case its tree is empty
+     */
+    public boolean isAborted() {
+        return aborted;
+    }
+
     public boolean isFailOnError() {
         return failOnError;
     }
@@ -39,6 +114,9 @@ public class ProblemReporter {
     }
     
     public void reportError(String id, String message, Token token) {
+        if (aborted) {
+            return;
+        }
         Problem problem = new Problem(id, message, token);
         problems.add(problem);
         if (failOnError) {
@@ -46,13 +124,49 @@ public class ProblemReporter {
         } else if (outputError) {
             System.err.println(problem.getId() + problem.getMessageString());
         }
+        checkBudget();
     }
-        
+
     public void setFailOnError(boolean failOnError) {
         this.failOnError = failOnError;
     }
     
+    /**
+     * @param maxErrors
+     *            The number of problems after which parsing is stopped, or 0
+     *            for no limit
+     */
+    public void setMaxErrors(int maxErrors) {
+        this.maxErrors = maxErrors;
+    }
+
     public void setOutputError(boolean outputError) {
         this.outputError = outputError;
     }
+
+    /**
+     * @param timeout
+     *            The time in milliseconds after which parsing is stopped, or 0
+     *            for no limit
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    /**
+     * Starts counting the time spent parsing towards the timeout. Parsing can
+     * be timed in several parts, as with deferred function bodies.
+     */
+    public void startClock() {
+        if (clockStart < 0) {
+            clockStart = System.nanoTime();
+        }
+    }
+
+    public void stopClock() {
+        if (clockStart >= 0) {
+            elapsed += System.nanoTime() - clockStart;
+            clockStart = -1;
+        }
+    }
 }
@@ -0,0 +1,66 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser.visitor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time by which the work on a source has to be done. The parser checks
+ * the deadline while it visits the tree (see XQueryAstParser.setDeadline) and
+ * throws a DeadlineExceededException once it has passed, so that a source
+ * that takes too long can be skipped. A deadline is only used by one thread.
+ */
+public class Deadline {
+
+    // Only every so many checks look at the clock
+    private static final int CHECK_INTERVAL = 64;
+
+    private final long start;
+    private final long timeout;
+    private int countdown;
+
+    /**
+     * Starts the clock.
+     *
+     * @param timeout
+     *            The time in milliseconds the work may take, or 0 for no limit
+     */
+    public Deadline(long timeout) {
+        this.start = System.nanoTime();
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    /**
+     * Checks the deadline every so many calls, which is cheap enough to do for
+     * every node that is visited.
+     */
+    public void check() {
+        if (--countdown <= 0) {
+            countdown = CHECK_INTERVAL;
+            checkNow();
+        }
+    }
+
+    /**
+     * @throws DeadlineExceededException
+     *             If the deadline has passed
+     */
+    public void checkNow() {
+        if (isExpired()) {
+            throw new DeadlineExceededException("Took longer than " + TimeUnit.NANOSECONDS.toMillis(timeout) + " ms");
+        }
+    }
+
+    /**
+     * @return The time in milliseconds since the clock was started
+     */
+    public long getElapsedTime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    public boolean isExpired() {
+        return timeout > 0 && System.nanoTime() - start > timeout;
+    }
+}
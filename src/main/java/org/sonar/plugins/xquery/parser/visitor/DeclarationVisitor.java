@@ -0,0 +1,19 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser.visitor;
+
+/**
+ * Visitor that may only need the declarations of a module and not what is
+ * inside the function bodies. Function bodies that were deferred when parsing
+ * are not parsed or visited unless one of the visitors needs them.
+ */
+public interface DeclarationVisitor extends XQueryAstVisitor
+{
+    /**
+     * @return Whether the visitor needs to visit the contents of the function
+     *         bodies
+     */
+    public abstract boolean isVisitingFunctionBodies();
+}
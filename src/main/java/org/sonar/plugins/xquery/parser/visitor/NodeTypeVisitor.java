@@ -0,0 +1,19 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser.visitor;
+
+/**
+ * Visitor that only needs to enter and exit nodes of some types. The parser
+ * only calls enterExpression and exitExpression of the visitor for nodes of
+ * those types rather than for every node of the tree.
+ */
+public interface NodeTypeVisitor extends XQueryAstVisitor
+{
+    /**
+     * @return The token types of the nodes the visitor needs (see
+     *         XQueryParser), or null for all nodes
+     */
+    public abstract int[] getNodeTypes();
+}
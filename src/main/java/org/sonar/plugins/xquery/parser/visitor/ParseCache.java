@@ -0,0 +1,219 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser.visitor;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds on to the parse results from the dependency mapping pass so that the
+ * analysis pass does not have to parse the same files again. The memory used by
+ * the cached results is estimated from what they hold (see
+ * ParseResult.getMemorySize) and the least recently added results are evicted
+ * once the estimate goes over the budget. If the cache has a spill directory
+ * the evicted results are written there in their encoded form (see
+ * XQueryTreeCodec), which is much faster to read back than parsing the file
+ * again. A file that is not in the cache simply has to be parsed again.
+ * 
+ * The cache can be shared by multiple threads.
+ */
+public class ParseCache {
+
+    private static final Logger logger = Logger.getLogger(ParseCache.class.getName());
+
+    /**
+     * Rough number of bytes a parse result that is not compact (see
+     * ParseResult.compact) keeps for each character of parsed source code:
+     * its AST, its tokens, the parser state and the source code itself
+     */
+    public static final int BYTES_PER_CHARACTER = 128;
+
+    private final long budget;
+    private final LinkedHashMap<String, ParseResult> results;
+    private final File spillDirectory;
+    private final Map<String, File> spilled;
+    private long size;
+    private int hits;
+    private int misses;
+
+    /**
+     * @param budget
+     *            The estimated number of bytes the cached trees may use
+     */
+    public ParseCache(long budget) {
+        this(budget, null);
+    }
+
+    /**
+     * @param budget
+     *            The estimated number of bytes the cached trees may use
+     * @param spillDirectory
+     *            The directory to write evicted results to, or null to drop
+     *            them
+     */
+    public ParseCache(long budget, File spillDirectory) {
+        this.budget = budget;
+        this.results = new LinkedHashMap<String, ParseResult>();
+        this.spillDirectory = spillDirectory;
+        this.spilled = new HashMap<String, File>();
+    }
+
+    /**
+     * @return Whether the cache keeps any results at all
+     */
+    public boolean isEnabled() {
+        return budget > 0 || spillDirectory != null;
+    }
+
+    /**
+     * Adds a parse result to the cache, evicting the oldest results if the
+     * cache goes over its budget. Results that are larger than the whole
+     * budget are not kept in memory. The result should be compact (see
+     * ParseResult.compact), so that it weighs what it keeps and spilling it
+     * does not have to parse its deferred function bodies.
+     * 
+     * @param key
+     *            The key of the parsed file
+     * @param result
+     *            The parse result
+     */
+    public void put(String key, ParseResult result) {
+        Map<String, ParseResult> evicted = new LinkedHashMap<String, ParseResult>();
+        synchronized (this) {
+            long weight = weigh(result);
+            if (weight > budget) {
+                evicted.put(key, result);
+            } else {
+                ParseResult previous = results.put(key, result);
+                if (previous != null) {
+                    size -= weigh(previous);
+                }
+                size += weight;
+
+                Iterator<Map.Entry<String, ParseResult>> entries = results.entrySet().iterator();
+                while (size > budget && entries.hasNext()) {
+                    Map.Entry<String, ParseResult> entry = entries.next();
+                    size -= weigh(entry.getValue());
+                    evicted.put(entry.getKey(), entry.getValue());
+                    entries.remove();
+                }
+            }
+        }
+
+        // Write the evicted results outside of the lock so that other threads
+        // can keep using the cache
+        if (spillDirectory != null) {
+            for (Map.Entry<String, ParseResult> entry : evicted.entrySet()) {
+                spill(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /*
+     * Writes an evicted result to the spill directory. The results from the
+     * mapping pass are compact (see ParseResult.compact), so their function
+     * bodies are already parsed and writing one only encodes its tree.
+     */
+    private void spill(String key, ParseResult result) {
+        File file = null;
+        try {
+            spillDirectory.mkdirs();
+            file = File.createTempFile("parse", ".ast", spillDirectory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                result.write(out);
+            }
+            synchronized (this) {
+                spilled.put(key, file);
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Could not spill the parse result of " + key, e);
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    /**
+     * Removes a parse result from the cache and returns it. Each result is
+     * only handed out once, since the visitors only need it for one pass.
+     * 
+     * @param key
+     *            The key of the parsed file
+     * @return The parse result, or null if the file was never added or has
+     *         been evicted
+     */
+    public ParseResult take(String key) {
+        File file;
+        synchronized (this) {
+            ParseResult result = results.remove(key);
+            if (result != null) {
+                size -= weigh(result);
+                hits++;
+                return result;
+            }
+            file = spilled.remove(key);
+            if (file == null) {
+                misses++;
+                return null;
+            }
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            ParseResult result = ParseResult.read(in);
+            synchronized (this) {
+                hits++;
+            }
+            return result;
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Could not read the spilled parse result of " + key, e);
+            synchronized (this) {
+                misses++;
+            }
+            return null;
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    /**
+     * Removes all results from the cache, including the spilled ones.
+     */
+    public synchronized void clear() {
+        results.clear();
+        size = 0;
+        for (File file : spilled.values()) {
+            FileUtils.deleteQuietly(file);
+        }
+        spilled.clear();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    private static long weigh(ParseResult result) {
+        return result.getMemorySize();
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser.visitor;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.Token;
+import org.apache.commons.lang.StringUtils;
+import org.sonar.plugins.xquery.parser.CompactTree;
+import org.sonar.plugins.xquery.parser.NodeIndex;
+import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.XQueryTreeCodec;
+import org.sonar.plugins.xquery.parser.reporter.Problem;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The AST of a source file along with the problems reported while parsing it.
+ */
+public class ParseResult {
+
+    // Rough sizes in bytes of a problem with its token and of the result
+    // itself, for getMemorySize
+    private static final int PROBLEM_BYTES = 160;
+    private static final int RESULT_BYTES = 128;
+
+    private final XQueryTree tree;
+    private final ProblemReporter reporter;
+    private final int size;
+    private final long memorySize;
+    private NodeIndex index;
+
+    /**
+     * @param tree
+     *            The parsed AST
+     * @param reporter
+     *            The reporter that was used when parsing
+     * @param size
+     *            The length of the parsed source code
+     */
+    public ParseResult(XQueryTree tree, ProblemReporter reporter, int size) {
+        this(tree, reporter, size, null);
+    }
+
+    /**
+     * @param index
+     *            The index of the nodes the parser created for the tree (see
+     *            XQueryTreeAdaptor), or null to index the tree the first time
+     *            nodes are asked for
+     */
+    public ParseResult(XQueryTree tree, ProblemReporter reporter, int size, NodeIndex index) {
+        this(tree, reporter, size, (long) size * ParseCache.BYTES_PER_CHARACTER, index);
+    }
+
+    private ParseResult(XQueryTree tree, ProblemReporter reporter, int size, long memorySize, NodeIndex index) {
+        this.tree = tree;
+        this.reporter = reporter;
+        this.size = size;
+        this.memorySize = memorySize;
+        this.index = index;
+    }
+
+    public XQueryTree getTree() {
+        return tree;
+    }
+
+    public ProblemReporter getReporter() {
+        return reporter;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return An estimate of the number of bytes the result keeps in memory,
+     *         which for a compact result (see compact) is worked out from its
+     *         tree and problems, and otherwise from the length of the source
+     *         code (see ParseCache.BYTES_PER_CHARACTER)
+     */
+    public long getMemorySize() {
+        return memorySize;
+    }
+
+    /**
+     * Gives the nodes of a type without walking the tree (see NodeIndex). A
+     * result from the parser has the index built along with the tree; the
+     * tree of any other result (like a compact one) is walked the first time
+     * nodes are asked for, which parses any deferred function bodies.
+     * 
+     * @param type
+     *            The token type (see XQueryParser)
+     * @return The nodes of the type
+     */
+    public List<XQueryTree> getNodes(int type) {
+        if (index == null) {
+            index = NodeIndex.of(tree);
+        }
+        return index.getNodes(type);
+    }
+
+    /**
+     * Gives a result that keeps the tree as a CompactTree, for results that
+     * are kept for a while (see ParseCache). Its tree is a view of the compact
+     * tree whose nodes are created as they are reached, so they go away along
+     * with the result once it has been processed. Deferred function bodies
+     * are parsed first, and the problems only keep the position of their
+     * token, so the result no longer holds on to the parser or the source
+     * code.
+     * 
+     * @return The compact parse result
+     */
+    public ParseResult compact() {
+        CompactTree compact = CompactTree.of(tree);
+        long bytes = RESULT_BYTES + compact.getMemorySize();
+        for (Problem problem : reporter.getProblems()) {
+            Token token = problem.getToken();
+            if (token != null) {
+                // A token from the lexer refers to the whole source code
+                CommonToken position = new CommonToken(Token.INVALID_TOKEN_TYPE);
+                position.setLine(token.getLine());
+                position.setCharPositionInLine(token.getCharPositionInLine());
+                problem.setToken(position);
+            }
+            bytes += PROBLEM_BYTES + 2L * StringUtils.length(problem.getMessage());
+        }
+        return new ParseResult(compact.getRoot(), reporter, size, bytes, null);
+    }
+
+    /**
+     * Writes the tree (see XQueryTreeCodec), the reported problems and
+     * whether parsing was stopped to the output.
+     * 
+     * @param out
+     *            The output to write to
+     */
+    public void write(DataOutput out) throws IOException {
+        // Encoding the tree parses any deferred function bodies, which can
+        // report more problems (a compact tree has none left)
+        byte[] encoded = XQueryTreeCodec.encode(tree);
+        out.writeInt(size);
+        out.writeBoolean(reporter.isFailOnError());
+        out.writeInt(reporter.getProblems().size());
+        for (Problem problem : reporter.getProblems()) {
+            out.writeUTF(StringUtils.defaultString(problem.getId()));
+            out.writeUTF(StringUtils.defaultString(problem.getMessage()));
+            out.writeInt(problem.getLine());
+            out.writeInt(problem.getCharPositionInLine());
+        }
+        out.writeBoolean(reporter.isAborted());
+        out.write(encoded);
+    }
+
+    /**
+     * Reads a parse result written by write().
+     * 
+     * @param in
+     *            The input to read from
+     * @return The parse result
+     */
+    public static ParseResult read(DataInput in) throws IOException {
+        int size = in.readInt();
+        ProblemReporter reporter = new ProblemReporter(in.readBoolean());
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String id = in.readUTF();
+            String message = in.readUTF();
+            CommonToken token = new CommonToken(Token.INVALID_TOKEN_TYPE);
+            token.setLine(in.readInt());
+            token.setCharPositionInLine(in.readInt());
+            reporter.getProblems().add(new Problem(id, message, token));
+        }
+        if (in.readBoolean()) {
+            reporter.abort(reporter.getProblems().remove(count - 1));
+        }
+        return new ParseResult(XQueryTreeCodec.read(in), reporter, size);
+    }
+}
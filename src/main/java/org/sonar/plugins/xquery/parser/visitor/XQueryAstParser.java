@@ -5,49 +5,210 @@
 package org.sonar.plugins.xquery.parser.visitor;
 
 import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CharStream;
+import org.antlr.runtime.CommonToken;
 import org.antlr.runtime.RecognitionException;
 import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.language.SourceText;
 import org.sonar.plugins.xquery.parser.*;
 import org.sonar.plugins.xquery.parser.node.DependencyMapper;
+import org.sonar.plugins.xquery.parser.reporter.ParseAbortedException;
 import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class XQueryAstParser {
 
     private static final Logger logger = Logger.getLogger(XQueryAstParser.class.getName());
 
+    // Orders nodes that are not nested in each other by where they start
+    private static final Comparator<XQueryTree> DOCUMENT_ORDER = new Comparator<XQueryTree>() {
+        @Override
+        public int compare(XQueryTree node1, XQueryTree node2) {
+            return Integer.compare(node1.getTokenStartIndex(), node2.getTokenStartIndex());
+        }
+    };
+
     private SourceCode sourceCode;
     private List<XQueryAstVisitor> visitors;
 
+    // The visitors for each node type (see getDispatchTable), built the first
+    // time a tree is processed and kept for the next source code
+    private XQueryAstVisitor[][] dispatch;
+
+    // The table for the mapper the dependencies were last mapped with
+    private DependencyMapper dispatchMapper;
+    private XQueryAstVisitor[][] mapperDispatch;
+
+    // The budget given to the problem reporters created by the parser
+    private int maxErrors;
+    private long timeout;
+
+    private Deadline deadline;
+
+    // The stack the tree is walked with, kept for the next walk
+    private final TreeStack stack = new TreeStack();
+
     public XQueryAstParser(SourceCode code, List<XQueryAstVisitor> visitors) {
         this.sourceCode = code;
         this.visitors = visitors;
     }
 
+    /**
+     * Sets the source code to parse and process next, so that one parser can
+     * be used for many files with the same visitors.
+     */
+    public void setSourceCode(SourceCode code) {
+        this.sourceCode = code;
+    }
+
+    /**
+     * Sets the error and time budget of the problem reporters the parser
+     * creates (see ProblemReporter.setMaxErrors and
+     * ProblemReporter.setTimeout). A reporter passed to parse() keeps its own
+     * budget.
+     */
+    public void setBudget(int maxErrors, long timeout) {
+        this.maxErrors = maxErrors;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sets the deadline that is checked for every node visited while mapping
+     * the dependencies or processing the tree. Once it has passed a
+     * DeadlineExceededException is thrown.
+     */
+    public void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
     public XQueryTree parse() throws RecognitionException {
-        return parse(new ProblemReporter());
+        return parse(newReporter());
     }
 
     public XQueryTree parse(ProblemReporter reporter) throws RecognitionException {
+        return parse(reporter, false, false, null);
+    }
+
+    /**
+     * Parses only the declarations of the source code, which is all that
+     * mapping the dependencies needs. Function bodies are left empty and
+     * variable values are read as empty sequences, except where they hold
+     * direct constructors or string literals with escapes (see
+     * AbstractXQueryParser.setDeclarationsOnly). The tree must not be used
+     * for anything else.
+     */
+    public XQueryTree parseDeclarations() throws RecognitionException {
+        return parse(newReporter(), true, false, null);
+    }
+
+    /**
+     * Parses only the declarations like parseDeclarations(), and keeps the
+     * tree with its problems and node index (see ParseResult.getNodes).
+     */
+    public ParseResult parseDeclarationsResult() throws RecognitionException {
+        return parseResult(true, false);
+    }
+
+    private XQueryTree parse(ProblemReporter reporter, boolean declarationsOnly, boolean deferFunctionBodies,
+            NodeIndex index) throws RecognitionException {
         logger.fine("Parsing " + sourceCode + ":");
-        ANTLRStringStream source = new ANTLRStringStream(sourceCode.getCodeString());
-        source.name = sourceCode.toString();
+        CharStream source = newCharStream();
         XQueryLexer lexer = new XQueryLexer(source);
         lexer.setReporter(reporter);
         LazyTokenStream tokenStream = new LazyTokenStream(lexer);
         XQueryParser parser = new XQueryParser(tokenStream);
         parser.setReporter(reporter);
         parser.setCharSource(source);
-        parser.setTreeAdaptor(new XQueryTreeAdaptor(reporter.isFailOnError()));
-        XQueryTree tree = (XQueryTree) parser.p_Module().getTree();
+        parser.setDeclarationsOnly(declarationsOnly);
+        parser.setDeferFunctionBodies(deferFunctionBodies);
+        parser.setTreeAdaptor(new XQueryTreeAdaptor(reporter.isFailOnError(), index));
+        XQueryTree tree;
+        reporter.startClock();
+        try {
+            tree = (XQueryTree) parser.p_Module().getTree();
+            tree.computePositions();
+            if (index != null) {
+                index.setRoot(tree);
+            }
+        } catch (ParseAbortedException e) {
+            logger.warning("Stopped parsing " + sourceCode + ": " + e.getMessage());
+            tree = new XQueryTree(new CommonToken(XQueryParser.XQuery, "XQuery"));
+        } finally {
+            reporter.stopClock();
+        }
 
-        logger.fine(tree.toStringTree());
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(tree.toStringTree());
+        }
         return tree;
     }
 
+    /**
+     * Parses the source code with a new problem reporter and keeps both so
+     * that the tree can be processed later without parsing it again.
+     */
+    public ParseResult parseResult() throws RecognitionException {
+        return parseResult(false);
+    }
+
+    /**
+     * Parses the source code like parseResult(), optionally deferring the
+     * function bodies: they are only parsed once something asks for their
+     * children, so visitors that do not need them (see DeclarationVisitor)
+     * never have them parsed. Problems in a deferred body are added to the
+     * result's reporter when it is parsed. The nodes are indexed by type as
+     * they are created (see ParseResult.getNodes).
+     */
+    public ParseResult parseResult(boolean deferFunctionBodies) throws RecognitionException {
+        return parseResult(false, deferFunctionBodies);
+    }
+
+    private ParseResult parseResult(boolean declarationsOnly, boolean deferFunctionBodies)
+            throws RecognitionException {
+        ProblemReporter reporter = newReporter();
+        NodeIndex index = new NodeIndex();
+        XQueryTree tree = parse(reporter, declarationsOnly, deferFunctionBodies, index);
+        // Once parsing was stopped the tree is an empty module, which none of
+        // the nodes created until then are in
+        return new ParseResult(tree, reporter, sourceCode.getContents().length(),
+                reporter.isAborted() ? null : index);
+    }
+
+    private ProblemReporter newReporter() {
+        // The problems are reported as issues (see ParseErrorCheck) and a
+        // stopped parse is logged, so they are not printed as well
+        ProblemReporter reporter = new ProblemReporter();
+        reporter.setOutputError(false);
+        reporter.setMaxErrors(maxErrors);
+        reporter.setTimeout(timeout);
+        return reporter;
+    }
+
+    /*
+     * Lexes memory-mapped contents in place; otherwise the stream reads the
+     * characters of the source text in place.
+     */
+    private CharStream newCharStream() {
+        CharSequence contents = sourceCode.getContents();
+        if (contents instanceof MappedCharStream) {
+            MappedCharStream mapped = (MappedCharStream) contents;
+            mapped.reset();
+            mapped.name = sourceCode.toString();
+            return mapped;
+        }
+        SourceText text = sourceCode.getText();
+        ANTLRStringStream source = new ANTLRStringStream(text.getChars(), text.length());
+        source.name = sourceCode.toString();
+        return source;
+    }
+
     /**
      * Do a quick pass and map the global declarations for the specified tree
      *
@@ -56,31 +217,154 @@ public class XQueryAstParser {
         // Since the mapper doesn't use any of the parameters, just pass in
         // nulls
         mapper.enterSource(null, null, null);
-        visit(tree, Arrays.asList(new XQueryAstVisitor[] { mapper }));
+        List<XQueryAstVisitor> mappers = Arrays.asList(new XQueryAstVisitor[] { mapper });
+        if (mapper != dispatchMapper) {
+            mapperDispatch = getDispatchTable(mappers);
+            dispatchMapper = mapper;
+        }
+        visit(tree, mapperDispatch, isVisitingFunctionBodies(mappers));
+        mapper.exitSource(null);
+    }
+
+    /**
+     * Maps the global declarations of a parse result like
+     * mapDependencies(XQueryTree, DependencyMapper), but only goes through
+     * the nodes the mapper needs (see DependencyMapper.getGlobalNodeTypes),
+     * which are taken from the node index of the result rather than found by
+     * walking the tree.
+     */
+    public void mapDependencies(ParseResult result, DependencyMapper mapper) {
+        int[] nodeTypes = mapper.getGlobalNodeTypes();
+        if (nodeTypes == null) {
+            mapDependencies(result.getTree(), mapper);
+            return;
+        }
+        List<XQueryTree> nodes = new ArrayList<XQueryTree>();
+        for (int type : nodeTypes) {
+            nodes.addAll(result.getNodes(type));
+        }
+        Collections.sort(nodes, DOCUMENT_ORDER);
+
+        mapper.enterSource(null, null, null);
+        for (XQueryTree node : nodes) {
+            if (deadline != null) {
+                deadline.check();
+            }
+            mapper.enterExpression(node);
+            mapper.exitExpression(node);
+        }
         mapper.exitSource(null);
     }
 
+    /**
+     * Runs the visitors over the tree and lets them check the problems found
+     * while parsing. When parsing was stopped (see ProblemReporter.isAborted)
+     * the tree is not visited, the visitors only check the problems.
+     */
     public void process(XQueryTree tree, DependencyMapper mapper, ProblemReporter reporter) {
         for (XQueryAstVisitor visitor : visitors) {
             visitor.enterSource(sourceCode, tree, mapper);
         }
-        visit(tree, visitors);
+        if (reporter == null || !reporter.isAborted()) {
+            if (dispatch == null) {
+                dispatch = getDispatchTable(visitors);
+            }
+            visit(tree, dispatch, isVisitingFunctionBodies(visitors));
+        }
         for (XQueryAstVisitor visitor : visitors) {
             visitor.exitSource(tree);
             visitor.checkReport(reporter);
         }
     }
 
-    private void visit(XQueryTree root, List<XQueryAstVisitor> visitors) {
+    /*
+     * Whether any of the visitors needs the contents of the function bodies,
+     * so that deferred bodies have to be parsed.
+     */
+    private static boolean isVisitingFunctionBodies(List<XQueryAstVisitor> visitors) {
         for (XQueryAstVisitor visitor : visitors) {
-            visitor.enterExpression(root);
+            if (!(visitor instanceof DeclarationVisitor) || ((DeclarationVisitor) visitor).isVisitingFunctionBodies()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Walks the tree depth first with an explicit stack rather than recursion,
+     * so deeply nested code does not need a large thread stack. Each entry in
+     * the stack is a node the visitors have entered and the index of its next
+     * child; the visitors exit a node once all of its children are done. Only
+     * the visitors that need the type of a node are called for it (see
+     * NodeTypeVisitor).
+     */
+    private void visit(XQueryTree root, XQueryAstVisitor[][] dispatch, boolean visitBodies) {
+        stack.clear();
+        enter(root, dispatch);
+        stack.push(root, 0);
+        while (!stack.isEmpty()) {
+            XQueryTree node = (XQueryTree) stack.peek();
+            int i = stack.nextValue();
+            if ((visitBodies || !node.isDeferred()) && i < node.getChildCount()) {
+                XQueryTree child = node.getChild(i);
+                enter(child, dispatch);
+                stack.push(child, 0);
+            } else {
+                stack.pop();
+                for (XQueryAstVisitor visitor : getVisitors(dispatch, node)) {
+                    visitor.exitExpression(node);
+                }
+            }
+        }
+    }
+
+    private void enter(XQueryTree node, XQueryAstVisitor[][] dispatch) {
+        if (deadline != null) {
+            deadline.check();
+        }
+        for (XQueryAstVisitor visitor : getVisitors(dispatch, node)) {
+            visitor.enterExpression(node);
         }
-        for (int i = 0; i < root.getChildCount(); i++) {
-            XQueryTree child = root.getChild(i);
-            visit(child, visitors);
+    }
+
+    /*
+     * Lists the visitors for each node type, in the order they were given.
+     * The last entry holds the visitors of every node, for the types that are
+     * not in the parser (like EOF).
+     */
+    private static XQueryAstVisitor[][] getDispatchTable(List<XQueryAstVisitor> visitors) {
+        int types = XQueryParser.tokenNames.length;
+        List<List<XQueryAstVisitor>> table = new ArrayList<List<XQueryAstVisitor>>(types + 1);
+        for (int type = 0; type <= types; type++) {
+            table.add(new ArrayList<XQueryAstVisitor>());
         }
         for (XQueryAstVisitor visitor : visitors) {
-            visitor.exitExpression(root);
+            int[] nodeTypes = visitor instanceof NodeTypeVisitor ? ((NodeTypeVisitor) visitor).getNodeTypes() : null;
+            if (nodeTypes == null) {
+                for (List<XQueryAstVisitor> subscribers : table) {
+                    subscribers.add(visitor);
+                }
+            } else {
+                for (int type : nodeTypes) {
+                    if (type >= 0 && type < types && !table.get(type).contains(visitor)) {
+                        table.get(type).add(visitor);
+                    }
+                }
+            }
+        }
+
+        XQueryAstVisitor[][] dispatch = new XQueryAstVisitor[types + 1][];
+        for (int type = 0; type <= types; type++) {
+            dispatch[type] = table.get(type).toArray(new XQueryAstVisitor[0]);
+        }
+        return dispatch;
+    }
+
+    private static XQueryAstVisitor[] getVisitors(XQueryAstVisitor[][] dispatch, XQueryTree node) {
+        int type = node.getType();
+        if (type < 0 || type >= dispatch.length - 1) {
+            return dispatch[dispatch.length - 1];
         }
+        return dispatch[type];
     }
 }
@@ -0,0 +1,111 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.cache;
+
+import org.sonar.api.measures.CoreMetrics;
+import org.sonar.api.rule.RuleKey;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.language.Issue;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.node.Declaration;
+import org.sonar.plugins.xquery.parser.node.DependencyMapper;
+import org.sonar.plugins.xquery.parser.node.Function;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class AnalysisCacheTest extends AbstractSonarTest {
+
+    private static final String NAMESPACE = "http://lds.org/code/test";
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        log("testSaveAndLoad():");
+        Function function = new Function("run", NAMESPACE);
+        function.setType("xs:boolean");
+        Declaration parameter = new Declaration("id", null);
+        parameter.setType("xs:string");
+        function.addParameter(parameter);
+
+        Map<Integer, String> references = new HashMap<Integer, String>();
+        references.put(function.hashCode(), AnalysisCache.getSignature(function));
+        AnalysisCache cache = new AnalysisCache("1.0");
+        cache.put("lib/test.xqy", new FileAnalysis("abc", Arrays.asList((Declaration) function),
+                Collections.singleton(NAMESPACE), references,
+                Arrays.asList(new Issue(RuleKey.of("xquery", "EffectiveBoolean"), 3, null)),
+                Arrays.asList(new SourceCode.Measure(CoreMetrics.NCLOC, 12))));
+
+        File file = File.createTempFile("xquery", ".cache");
+        try {
+            cache.save(file);
+            FileAnalysis analysis = AnalysisCache.load(file, "1.0").get("lib/test.xqy");
+
+            Assert.assertNotNull(analysis, "Loaded analysis");
+            Assert.assertEquals(analysis.getHash(), "abc", "File hash");
+            Assert.assertEquals(analysis.getReferences(), references, "Referenced declarations");
+            Function loaded = (Function) analysis.getDeclarations().get(0);
+            Assert.assertEquals(loaded.getType(), "xs:boolean", "Function type");
+            Assert.assertEquals(loaded.getParameter("id").getType(), "xs:string", "Parameter type");
+            Assert.assertEquals(analysis.getIssues().get(0).rule(), RuleKey.of("xquery", "EffectiveBoolean"), "Issue rule");
+            Assert.assertEquals(analysis.getIssues().get(0).line(), 3, "Issue line");
+            Assert.assertEquals(analysis.getMeasures().get(0).getMetric(), CoreMetrics.NCLOC, "Measure metric");
+            Assert.assertEquals(analysis.getMeasures().get(0).getValue(), Integer.valueOf(12), "Measure value");
+
+            Assert.assertEquals(AnalysisCache.load(file, "2.0").size(), 0, "Cache for a different version");
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFindInvalidated() {
+        log("testFindInvalidated():");
+        Declaration flag = variable("flag", "xs:boolean");
+        Declaration name = variable("name", "xs:string");
+        AnalysisCache cache = new AnalysisCache("1.0");
+        cache.setExports(AnalysisCache.fingerprintExports(Arrays.asList(flag, name)));
+        cache.put("main.xqy", analysis(NAMESPACE, flag));
+        cache.put("other.xqy", analysis(NAMESPACE, name));
+        cache.put("unrelated.xqy", analysis("http://lds.org/code/other", null));
+
+        // Moving a declaration does not change its signature
+        DependencyMapper mapper = new DependencyMapper();
+        Declaration moved = variable("flag", "xs:boolean");
+        moved.setLine(10);
+        mapper.mergeGlobalDeclarations(Arrays.asList(moved, name));
+        Assert.assertTrue(cache.findInvalidated(AnalysisCache.fingerprintExports(mapper.getGlobalDeclarations()), mapper).isEmpty(),
+                "Moved declaration");
+
+        mapper = new DependencyMapper();
+        mapper.mergeGlobalDeclarations(Arrays.asList(variable("flag", "xs:string"), name));
+        Set<String> invalidated = cache.findInvalidated(AnalysisCache.fingerprintExports(mapper.getGlobalDeclarations()), mapper);
+        Assert.assertEquals(invalidated, Collections.singleton("main.xqy"), "Files referencing the changed declaration");
+        Assert.assertEquals(cache.getImporters(NAMESPACE).size(), 2, "Importers of the namespace");
+    }
+
+    private FileAnalysis analysis(String namespace, Declaration reference) {
+        Map<Integer, String> references = new HashMap<Integer, String>();
+        if (reference != null) {
+            references.put(reference.hashCode(), AnalysisCache.getSignature(reference));
+        }
+        return new FileAnalysis("abc", new ArrayList<Declaration>(), Collections.singleton(namespace), references,
+                new ArrayList<Issue>(), new ArrayList<SourceCode.Measure>());
+    }
+
+    private Declaration variable(String name, String type) {
+        Declaration variable = new Declaration(name, NAMESPACE);
+        variable.setType(type);
+        variable.setLine(3);
+        return variable;
+    }
+}
@@ -5,7 +5,10 @@
 package org.sonar.plugins.xquery.checks;
 
 import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.language.Issue;
+import org.sonar.plugins.xquery.parser.reporter.ParseAbortedException;
 import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.testng.Assert;
 import org.testng.annotations.Test;
 
 public class ParseErrorCheckTest extends AbstractSonarTest {
@@ -29,6 +32,54 @@ public class ParseErrorCheckTest extends AbstractSonarTest {
         assertIssueLine(check, 2);
     }
 
+    @Test
+    public void testErrorBudget() {
+        ProblemReporter reporter = new ProblemReporter();
+        reporter.setOutputError(false);
+        reporter.setMaxErrors(3);
+        setReporter(reporter);
+        checkInvalid(
+            check,
+            code(
+                "xquery version '1.0-ml';",
+                "declare variable $a := try { 1 } catch ($e) { };",
+                "declare variable $b := try { 2 } catch ($e) { };",
+                "declare variable $c := try { 3 } catch ($e) { };",
+                "declare variable $d := try { 4 } catch ($e) { };",
+                "($a, $b, $c, $d)"
+            )
+        );
+        setReporter(null);
+        Assert.assertTrue(reporter.isAborted(), "Parsing stopped");
+        Assert.assertEquals(reporter.getProblems().size(), 4, "Problems");
+
+        Issue issue = getIssues(check, 1).get(0);
+        Assert.assertEquals(issue.line(), 2, "Issue line");
+        Assert.assertTrue(issue.message().startsWith("Parsing stopped after 3 errors"), issue.message());
+    }
+
+    @Test
+    public void testTimeBudget() throws InterruptedException {
+        ProblemReporter reporter = new ProblemReporter();
+        reporter.setOutputError(false);
+        reporter.setTimeout(1);
+        reporter.startClock();
+        Thread.sleep(10);
+        reporter.stopClock();
+        try {
+            reporter.reportError("test", "error", null);
+            Assert.fail("Parsing should have been stopped");
+        } catch (ParseAbortedException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Parsing stopped after"), e.getMessage());
+        }
+        Assert.assertTrue(reporter.isAborted(), "Parsing stopped");
+
+        // Later problems are ignored
+        reporter.reportError("test", "another error", null);
+        Assert.assertEquals(reporter.getProblems().size(), 2, "Problems");
+        Assert.assertSame(reporter.getAbortProblem(), reporter.getProblems().get(1), "Abort problem");
+    }
+
     @Test
     public void testFalsePositive() {
         ProblemReporter reporter = new ProblemReporter();
@@ -0,0 +1,57 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.language;
+
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class SourceTextTest extends AbstractSonarTest {
+
+    @Test
+    public void testLineTerminators() {
+        log("testLineTerminators():");
+        SourceText text = SourceText.decode("one\r\ntwo\rthree\n\nfive\n".getBytes(StandardCharsets.UTF_8), null);
+
+        Assert.assertEquals(text.toString(), "one\ntwo\nthree\n\nfive", "Text");
+        Assert.assertEquals(text.getLineCount(), 5, "Lines");
+        Assert.assertEquals(text.getLine(1), "one", "Line 1");
+        Assert.assertEquals(text.getLine(3), "three", "Line 3");
+        Assert.assertEquals(text.getLine(4), "", "Line 4");
+        Assert.assertEquals(text.getLine(5), "five", "Line 5");
+        Assert.assertEquals(text.getLineStart(2), 4, "Start of line 2");
+        Assert.assertEquals(text.getLineOfOffset(0), 1, "Line of first character");
+        Assert.assertEquals(text.getLineOfOffset(3), 1, "Line of first terminator");
+        Assert.assertEquals(text.getLineOfOffset(4), 2, "Line of second line");
+        Assert.assertEquals(text.getLineOfOffset(text.length() - 1), 5, "Line of last character");
+    }
+
+    @Test
+    public void testCharset() {
+        log("testCharset():");
+        SourceText text = SourceText.decode("let $x := 'é'".getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.ISO_8859_1);
+        Assert.assertEquals(text.toString(), "let $x := 'é'", "Text");
+    }
+
+    @Test
+    public void testLines() {
+        log("testLines():");
+        Assert.assertEquals(SourceText.of("").getLineCount(), 0, "Empty text");
+        Assert.assertEquals(SourceText.of("\n").getLineCount(), 1, "Only a terminator");
+        Assert.assertEquals(SourceText.of(Collections.<String> emptyList()).getLineCount(), 0, "No lines");
+
+        SourceText text = SourceText.of(Arrays.asList("a", "", "bc", ""));
+        Assert.assertEquals(text.toString(), "a\n\nbc\n", "Joined lines");
+        Assert.assertEquals(text.getLineCount(), 4, "Lines");
+        Assert.assertEquals(text.getLine(3), "bc", "Line 3");
+        Assert.assertEquals(text.getLine(4), "", "Line 4");
+        Assert.assertEquals(text.charAt(4), 'c', "Character");
+        Assert.assertEquals(text.subSequence(3, 5), "bc", "Sequence");
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.RecognitionException;
+import org.codehaus.plexus.util.FileUtils;
+import org.sonar.plugins.xquery.language.XQuerySourceCode;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the time it takes to parse a set of files against the time it
+ * takes to scan their headers, and checks that the scanned headers are the
+ * same as the ones read from the parsed trees. The code root can be passed as
+ * the first argument and the number of rounds as the second.
+ *
+ * For use in manual testing.
+ */
+public class BenchmarkHeaderScanner {
+
+    public static String CODE_ROOT = "/Users/cieslinskice/Documents/Code/devpedia";
+    public static String INCLUDES = "**/*.xqy,**/*.xqm,**/*.xq";
+    public static String EXCLUDES = "**/target/**";
+    public static int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException, RecognitionException {
+        String root = args.length > 0 ? args[0] : CODE_ROOT;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : ROUNDS;
+
+        List<String> sources = new ArrayList<String>();
+        for (File file : (List<File>) FileUtils.getFiles(new File(root), INCLUDES, EXCLUDES)) {
+            sources.add(FileUtils.fileRead(file, "UTF-8"));
+        }
+        System.out.println("Benchmarking " + sources.size() + " files in " + root + " over " + rounds + " rounds");
+
+        // Parse and scan once up front, which also warms up the parser and
+        // the scanner
+        List<String> expected = new ArrayList<String>();
+        int unsupported = 0;
+        for (String source : sources) {
+            expected.add(ModuleHeaderScannerTest.readHeader(parse(source), source).toString());
+            if (ModuleHeaderScanner.scan(source) == null) {
+                unsupported++;
+            }
+        }
+        System.out.println("Files the scanner leaves to the parser: " + unsupported);
+
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (String source : sources) {
+                parse(source);
+            }
+        }
+        long parseTime = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (String source : sources) {
+                ModuleHeaderScanner.scan(source);
+            }
+        }
+        long scanTime = (System.nanoTime() - start) / 1000000;
+
+        for (int i = 0; i < sources.size(); i++) {
+            ModuleHeader header = ModuleHeaderScanner.scan(sources.get(i));
+            if (header != null && !expected.get(i).equals(header.toString())) {
+                System.out.println("Scanned header differs from the parsed header for file " + i);
+            }
+        }
+
+        System.out.println("Parsing: " + parseTime + " ms, scanning: " + scanTime + " ms ("
+                + (scanTime > 0 ? parseTime / scanTime : parseTime) + "x faster)");
+    }
+
+    private static XQueryTree parse(String source) throws RecognitionException {
+        ProblemReporter reporter = new ProblemReporter();
+        reporter.setOutputError(false);
+        return new XQueryAstParser(new XQuerySourceCode(source), null).parse(reporter);
+    }
+}
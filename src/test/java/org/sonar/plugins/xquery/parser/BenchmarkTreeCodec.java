@@ -0,0 +1,89 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.RecognitionException;
+import org.codehaus.plexus.util.FileUtils;
+import org.sonar.plugins.xquery.language.XQuerySourceCode;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the time it takes to parse a set of files against the time it
+ * takes to decode their encoded trees, and checks that the decoded trees are
+ * the same as the parsed ones. The code root can be passed as the first
+ * argument and the number of rounds as the second.
+ * 
+ * For use in manual testing.
+ */
+public class BenchmarkTreeCodec {
+
+    public static String CODE_ROOT = "/Users/cieslinskice/Documents/Code/devpedia";
+    public static String INCLUDES = "**/*.xqy,**/*.xqm,**/*.xq";
+    public static String EXCLUDES = "**/target/**";
+    public static int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException, RecognitionException {
+        String root = args.length > 0 ? args[0] : CODE_ROOT;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : ROUNDS;
+
+        List<String> sources = new ArrayList<String>();
+        for (File file : (List<File>) FileUtils.getFiles(new File(root), INCLUDES, EXCLUDES)) {
+            sources.add(FileUtils.fileRead(file, "UTF-8"));
+        }
+        System.out.println("Benchmarking " + sources.size() + " files in " + root + " over " + rounds + " rounds");
+
+        // Parse and encode once up front, which also warms up the parser
+        List<byte[]> encoded = new ArrayList<byte[]>();
+        List<String> expected = new ArrayList<String>();
+        long sourceBytes = 0;
+        long encodedBytes = 0;
+        for (String source : sources) {
+            XQueryTree tree = parse(source);
+            byte[] bytes = XQueryTreeCodec.encode(tree);
+            encoded.add(bytes);
+            expected.add(tree.toStringTree());
+            sourceBytes += source.length();
+            encodedBytes += bytes.length;
+        }
+        System.out.println("Source characters: " + sourceBytes + ", encoded bytes: " + encodedBytes);
+
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (String source : sources) {
+                parse(source);
+            }
+        }
+        long parseTime = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (byte[] bytes : encoded) {
+                XQueryTreeCodec.decode(bytes);
+            }
+        }
+        long decodeTime = (System.nanoTime() - start) / 1000000;
+
+        for (int i = 0; i < encoded.size(); i++) {
+            if (!expected.get(i).equals(XQueryTreeCodec.decode(encoded.get(i)).toStringTree())) {
+                System.out.println("Decoded tree differs from the parsed tree for file " + i);
+            }
+        }
+
+        System.out.println("Parsing: " + parseTime + " ms, decoding: " + decodeTime + " ms ("
+                + (decodeTime > 0 ? parseTime / decodeTime : parseTime) + "x faster)");
+    }
+
+    private static XQueryTree parse(String source) throws RecognitionException {
+        ProblemReporter reporter = new ProblemReporter();
+        reporter.setOutputError(false);
+        return new XQueryAstParser(new XQuerySourceCode(source), null).parse(reporter);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.RecognitionException;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class CompactTreeTest extends AbstractSonarTest {
+
+    private static final String[] LINES = {
+        "xquery version '1.0-ml';",
+        "declare function local:twice($i) {",
+        "  $i * 2",
+        "};",
+        "local:twice(",
+        "    1)"
+    };
+
+    @Test
+    public void testNodes() throws RecognitionException {
+        log("testNodes():");
+        XQueryTree tree = parse(code(LINES), false);
+        CompactTree compact = CompactTree.of(tree);
+
+        Assert.assertEquals(compact.getType(0), XQueryParser.XQuery, "Root type");
+        Assert.assertEquals(compact.getParent(0), CompactTree.NONE, "Root parent");
+        Assert.assertEquals(compact.getEnd(0), compact.size() - 1, "Every node is below the root");
+        Assert.assertEquals(compact.getChildCount(0), tree.getChildCount(), "Children");
+
+        int declaration = compact.find(0, TreeSelector.compile("FunctionDecl"), true);
+        XQueryTree expected = tree.find("FunctionDecl");
+        Assert.assertEquals(compact.getType(declaration), XQueryParser.FunctionDecl, "Found node");
+        Assert.assertEquals(compact.getLine(declaration), expected.getLine(), "Line");
+        Assert.assertEquals(compact.getCharPositionInLine(declaration), expected.getCharPositionInLine(), "Position");
+        Assert.assertEquals(compact.getChildCount(declaration), expected.getChildCount(), "Children");
+        Assert.assertEquals(compact.getParent(compact.getFirstChild(declaration)), declaration, "Parent");
+
+        int name = compact.find(declaration, TreeSelector.compile("FunctionDecl.FunctionName"), false);
+        Assert.assertEquals(compact.getText(compact.getFirstChild(name)), expected.getChild(0).getChild(0).getText(),
+                "Text");
+        Assert.assertEquals(compact.find(0, TreeSelector.compile("XQuery.FunctionDecl"), false), CompactTree.NONE,
+                "Node that is not a child");
+        Assert.assertEquals(compact.find(0, TreeSelector.compile("Missing"), true), CompactTree.NONE, "Missing node");
+    }
+
+    @Test
+    public void testView() throws RecognitionException {
+        log("testView():");
+        XQueryTree tree = parse(code(LINES), true);
+        Assert.assertTrue(tree.find("FunctionDecl.FunctionBody").isDeferred(), "Deferred body");
+        CompactTree compact = CompactTree.of(tree);
+        XQueryTree view = compact.getRoot();
+
+        // The deferred body is parsed into the compact tree
+        XQueryTree body = view.find("FunctionDecl.FunctionBody");
+        Assert.assertFalse(body.isDeferred(), "Parsed body");
+        Assert.assertEquals(compact.getChildCount(compact.find(0, TreeSelector.compile("FunctionBody"), true)),
+                tree.find("FunctionDecl.FunctionBody").getChildCount(), "Contents of the body");
+        Assert.assertEquals(compact.getEnd(0), compact.size() - 1, "Every node is below the root");
+        Assert.assertEquals(view.find("FunctionDecl").getLine(), 2, "Line");
+        Assert.assertSame(body.getParent(), view.find("FunctionDecl"), "Parent");
+        Assert.assertEquals(body.getValue(), tree.find("FunctionDecl.FunctionBody").getValue(), "Value of the body");
+        Assert.assertEquals(view.toStringTree(), tree.toStringTree(), "Tree");
+        Assert.assertEquals(view.getEndLine(), 6, "End line");
+        Assert.assertEquals(compact.getLine(0), tree.getLine(), "Line of the root");
+    }
+
+    @Test
+    public void testErrors() throws RecognitionException {
+        log("testErrors():");
+        XQueryTree tree = parse(code("let $x := ( return $x"), false);
+        XQueryTree view = CompactTree.of(tree).getRoot();
+        Assert.assertEquals(view.toStringTree(), tree.toStringTree(), "Tree with errors");
+    }
+
+    private static XQueryTree parse(SourceCode code, boolean deferFunctionBodies) throws RecognitionException {
+        return new XQueryAstParser(code, null).parseResult(deferFunctionBodies).getTree();
+    }
+}
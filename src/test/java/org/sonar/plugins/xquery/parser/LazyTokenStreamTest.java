@@ -0,0 +1,120 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.Token;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LazyTokenStreamTest extends AbstractSonarTest {
+
+    private static final String CODE = "xquery version '1.0-ml';\n(: comment :)\nlet $x := 1\nreturn $x";
+
+    @Test
+    public void testLookahead() {
+        log("testLookahead():");
+        LazyTokenStream stream = new LazyTokenStream(new XQueryLexer(new ANTLRStringStream(CODE)));
+
+        Token first = stream.LT(1);
+        Assert.assertEquals(first.getText(), "xquery", "First token");
+        Assert.assertEquals(stream.LA(1), first.getType(), "First token type");
+        Assert.assertSame(stream.LT(1), first, "Same token object");
+
+        // Hidden whitespace is skipped
+        stream.consume();
+        Token second = stream.LT(1);
+        Assert.assertEquals(second.getText(), "version", "Second token");
+        Assert.assertEquals(second.getTokenIndex(), 2, "Second token index");
+        Assert.assertEquals(second.getLine(), 1, "Second token line");
+        Assert.assertEquals(second.getCharPositionInLine(), 7, "Second token column");
+        Assert.assertSame(stream.LT(-1), first, "Previous token");
+        Assert.assertEquals(stream.LT(2).getText(), "'", "Token after the next token");
+    }
+
+    @Test
+    public void testEndOfInput() {
+        log("testEndOfInput():");
+        LazyTokenStream stream = new LazyTokenStream(new XQueryLexer(new ANTLRStringStream(CODE)));
+
+        Token let = null;
+        while (stream.LA(1) != Token.EOF) {
+            if ("let".equals(stream.LT(1).getText())) {
+                let = stream.LT(1);
+            }
+            stream.consume();
+        }
+        Assert.assertNotNull(let, "Let token");
+        Assert.assertEquals(let.getLine(), 3, "Let token line");
+        Assert.assertSame(stream.LT(1), Token.EOF_TOKEN, "End of input");
+        Assert.assertEquals(stream.toString(), CODE, "Text of all tokens");
+        Assert.assertEquals(stream.get(stream.size() - 1).getText(), "x", "Last token");
+    }
+
+    @Test
+    public void testLookaheadOverHiddenTokens() {
+        log("testLookaheadOverHiddenTokens():");
+        LazyTokenStream stream = new LazyTokenStream(new XQueryLexer(new ANTLRStringStream(
+                "(1, (: one :) 2,\n\n  (: two :)\n 3  ,  4)")));
+
+        Assert.assertEquals(stream.LT(1).getText(), "(", "First token");
+        stream.consume();
+        Assert.assertEquals(stream.LT(3).getText(), "2", "Third token");
+        Assert.assertEquals(stream.LT(5).getText(), "3", "Fifth token");
+        Assert.assertEquals(stream.LT(5).getLine(), 4, "Line of the fifth token");
+        Assert.assertEquals(stream.LA(9), Token.EOF, "End of input");
+
+        int marker = stream.mark();
+        for (int i = 0; i < 5; i++) {
+            stream.consume();
+        }
+        Assert.assertEquals(stream.LT(1).getText(), ",", "Token after consuming");
+        Assert.assertEquals(stream.LT(-1).getText(), "3", "Previous token");
+        Assert.assertEquals(stream.LT(-3).getText(), "2", "Third previous token");
+        Assert.assertEquals(stream.LT(-6).getText(), "(", "First token");
+        Assert.assertNull(stream.LT(-7), "Before the first token");
+
+        stream.rewind(marker);
+        Assert.assertEquals(stream.LT(2).getText(), ",", "Second token after rewinding");
+    }
+
+    @Test
+    public void testSimpleStringLiteral() {
+        log("testSimpleStringLiteral():");
+        LazyTokenStream stream = new LazyTokenStream(new XQueryLexer(new ANTLRStringStream(
+                "(\"ab\nc\", 'it''s', \"\")")));
+
+        Assert.assertEquals(stream.LT(1).getText(), "(", "First token");
+        stream.consume();
+        Assert.assertEquals(stream.LA(1), XQueryLexer.QUOT, "Opening quote");
+        stream.consume();
+        Assert.assertTrue(stream.isLiteralRead(), "Literal read by the lexer");
+        Token content = stream.LT(1);
+        Assert.assertEquals(content.getType(), StringLexer.L_QuotStringLiteralChar, "Content type");
+        Assert.assertEquals(content.getText(), "ab\nc", "Content");
+        Assert.assertEquals(content.getCharPositionInLine(), 2, "Content column");
+        Assert.assertEquals(stream.LT(2).getType(), XQueryLexer.QUOT, "Closing quote");
+        Assert.assertEquals(stream.LT(2).getLine(), 2, "Closing quote line");
+        Assert.assertEquals(stream.LT(2).getCharPositionInLine(), 1, "Closing quote column");
+
+        // Escaped quotes are left to the string lexer
+        stream.consume();
+        stream.consume();
+        stream.consume();
+        Assert.assertEquals(stream.LA(1), XQueryLexer.APOS, "Opening apostrophe");
+        stream.consume();
+        Assert.assertFalse(stream.isLiteralRead(), "Literal with escaped apostrophes");
+        while (stream.LA(1) != XQueryLexer.QUOT) {
+            stream.consume();
+        }
+
+        // An empty literal has no content
+        stream.consume();
+        Assert.assertTrue(stream.isLiteralRead(), "Empty literal read by the lexer");
+        Assert.assertEquals(stream.LA(1), XQueryLexer.QUOT, "Closing quote of the empty literal");
+        Assert.assertEquals(stream.LA(2), XQueryLexer.RPAREN, "Closing parenthesis");
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.CharStream;
+import org.antlr.runtime.RecognitionException;
+import org.apache.commons.io.FileUtils;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.language.XQuerySourceCode;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class MappedCharStreamTest extends AbstractSonarTest {
+
+    @Test
+    public void testContents() throws IOException {
+        log("testContents():");
+        // Mix ASCII and non-ASCII text over several pages
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            builder.append(i % 100 == 0 ? "déjà vu €\n" : "line " + i + "\n");
+        }
+        String code = builder.toString();
+        File file = write(code);
+        try {
+            MappedCharStream stream = new MappedCharStream(file, StandardCharsets.UTF_8);
+            for (int i = 0; i < code.length(); i++) {
+                Assert.assertEquals(stream.LA(1), code.charAt(i), "Character " + i);
+                stream.consume();
+            }
+            Assert.assertEquals(stream.LA(1), CharStream.EOF, "End of file");
+            Assert.assertEquals(stream.size(), code.length(), "Size");
+            Assert.assertEquals(stream.getLine(), 20001, "Line at the end");
+            Assert.assertEquals(stream.substring(70000, 70099), code.substring(70000, 70100), "Substring");
+            Assert.assertEquals(stream.toString(), code, "Contents");
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRewind() throws IOException {
+        log("testRewind():");
+        File file = write("ab\ncd\nef");
+        try {
+            MappedCharStream stream = new MappedCharStream(file, StandardCharsets.UTF_8);
+            stream.consume();
+            int marker = stream.mark();
+            stream.seek(4);
+            Assert.assertEquals(stream.LA(1), 'd', "Character after seeking forward");
+            Assert.assertEquals(stream.getLine(), 2, "Line after seeking forward");
+            Assert.assertEquals(stream.getCharPositionInLine(), 1, "Column after seeking forward");
+            stream.rewind(marker);
+            Assert.assertEquals(stream.LA(1), 'b', "Character after rewinding");
+            Assert.assertEquals(stream.getLine(), 1, "Line after rewinding");
+
+            stream.seek(7);
+            stream.seek(3);
+            stream.setLine(2);
+            Assert.assertEquals(stream.LA(1), 'c', "Character after seeking back");
+            Assert.assertEquals(stream.LA(-1), '\n', "Previous character");
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testParse() throws IOException, RecognitionException {
+        log("testParse():");
+        String code = "xquery version '1.0-ml';\n"
+                + "declare function local:test($s as xs:string) {\n"
+                + "    <result attr=\"{$s}\">{ fn:concat('a', \"b\") } &amp; 'café'</result>\n"
+                + "};\n"
+                + "local:test('x')\n";
+        File file = write(code);
+        try {
+            XQueryTree expected = new XQueryAstParser(new XQuerySourceCode(code), null).parse();
+            XQueryTree actual = new XQueryAstParser(
+                    new XQuerySourceCode(new MappedCharStream(file, StandardCharsets.UTF_8), null), null).parse();
+            Assert.assertEquals(actual.toStringTree(), expected.toStringTree(), "Tree");
+        } finally {
+            file.delete();
+        }
+    }
+
+    private File write(String code) throws IOException {
+        File file = File.createTempFile("xquery", ".xqy");
+        FileUtils.writeStringToFile(file, code, "UTF-8");
+        return file;
+    }
+}
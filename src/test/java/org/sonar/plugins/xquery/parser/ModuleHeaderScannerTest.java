@@ -0,0 +1,194 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.RecognitionException;
+import org.apache.commons.lang.StringUtils;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.node.Declaration;
+import org.sonar.plugins.xquery.parser.node.Function;
+import org.sonar.plugins.xquery.parser.node.Import;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+public class ModuleHeaderScannerTest extends AbstractSonarTest {
+
+    @Test
+    public void testLibraryModule() throws RecognitionException {
+        log("testLibraryModule():");
+        SourceCode code = code(
+            "xquery version '1.0-ml';",
+            "(: module namespace wrong = 'http://wrong'; (: nested :) :)",
+            "module namespace test = 'http://lds.org/code/test';",
+            "",
+            "import module namespace other = \"http://lds.org/code/other\" at \"/other.xqy\", '/other2.xqy';",
+            "import module 'http://lds.org/code/plain';",
+            "declare namespace html = 'http://www.w3.org/1999/xhtml';",
+            "declare option xdmp:mapping 'false';",
+            "",
+            "declare variable $test:QUOTE as xs:string := 'it''s; a } \"string\" (: not a comment :)';",
+            "declare private variable $test:EXTERNAL external;",
+            "declare %private function test:view($id as xs:string, $title) as element(div) {",
+            "    <div id=\"{$id}\" class='{{x}} }}'>{ $title } {{ <!-- ; --> <![CDATA[ } ]]> <p>a &lt; b; </p></div>",
+            "};",
+            "declare function test:compare($a, $b, $c as item()*) as xs:boolean {",
+            "    if ($a < $b) then $a<$c else fn:true()",
+            "};",
+            "declare function test:none() external;"
+        );
+        ModuleHeader header = ModuleHeaderScanner.scan(code.getContents());
+
+        Assert.assertNotNull(header, "Scanned header");
+        Assert.assertTrue(header.isLibraryModule(), "Library module");
+        Assert.assertEquals(header.getPrefix(), "test", "Prefix");
+        Assert.assertEquals(header.getNamespace(), "http://lds.org/code/test", "Namespace");
+
+        Assert.assertEquals(header.getImports().size(), 2, "Imports");
+        Import other = header.getImports().get(0);
+        Assert.assertEquals(other.getName(), "other", "Import prefix");
+        Assert.assertEquals(other.getNamespace(), "http://lds.org/code/other", "Import namespace");
+        Assert.assertEquals(other.getAtHints(), Arrays.asList("/other.xqy", "/other2.xqy"), "At hints");
+        Assert.assertNull(header.getImports().get(1).getName(), "Import without a prefix");
+        Assert.assertTrue(header.getImports().get(1).getAtHints().isEmpty(), "No at hints");
+
+        Assert.assertEquals(header.getVariables().size(), 2, "Variables");
+        Assert.assertEquals(header.getVariables().get(0).getName(), "QUOTE", "Variable name");
+        Assert.assertEquals(header.getVariables().get(0).getLine(), 10, "Variable line");
+        Assert.assertEquals(header.getVariables().get(1).getName(), "EXTERNAL", "External variable name");
+
+        Assert.assertEquals(header.getFunctions().size(), 3, "Functions");
+        Function view = header.getFunctions().get(0);
+        Assert.assertEquals(view.getName(), "view", "Function name");
+        Assert.assertEquals(view.getNamespace(), "http://lds.org/code/test", "Function namespace");
+        Assert.assertEquals(view.getParameters().size(), 2, "Function arity");
+        Assert.assertEquals(view.getLine(), 12, "Function line");
+        Assert.assertEquals(header.getFunctions().get(1).getParameters().size(), 3, "Function arity");
+        Assert.assertEquals(header.getFunctions().get(1).getLine(), 15, "Function line");
+        Assert.assertEquals(header.getFunctions().get(2).getParameters().size(), 0, "Function arity");
+
+        Assert.assertEquals(header.toString(), readHeader(code).toString(), "Scanned header");
+    }
+
+    @Test
+    public void testMainModule() throws RecognitionException {
+        log("testMainModule():");
+        SourceCode code = code(
+            "xquery version '1.0-ml';",
+            "import module namespace test = 'http://lds.org/code/test' at '/test.xqy';",
+            "declare variable $local:items := (1, 2, 3);",
+            "declare function local:item($i) { <item>{ $i }</item> };",
+            "for $i in $local:items",
+            "where $i < 3",
+            "return <result count=\"{ fn:count($local:items) }\">{ local:item($i) }</result>"
+        );
+        ModuleHeader header = ModuleHeaderScanner.scan(code.getContents());
+
+        Assert.assertNotNull(header, "Scanned header");
+        Assert.assertFalse(header.isLibraryModule(), "Library module");
+        Assert.assertEquals(header.getImports().size(), 1, "Imports");
+        Assert.assertEquals(header.getFunctions().size(), 1, "Functions");
+        Assert.assertEquals(header.getVariables().size(), 1, "Variables");
+        Assert.assertEquals(header.toString(), readHeader(code).toString(), "Scanned header");
+    }
+
+    @Test
+    public void testUnsupported() throws RecognitionException {
+        log("testUnsupported():");
+        String[][] modules = {
+            { "xquery version '1.0-ml';", "1;", "xquery version '1.0-ml';", "2" },
+            { "module namespace test = 'http://lds.org/code/test';", "declare function test:run() { (# pragma #) { 1 } };" },
+            { "module namespace test = 'http://lds.org/code/test';", "declare function test:run() { <a>1</b> };" },
+            { "module namespace test = 'http://lds.org/code/test';", "declare variable $test:x := 1", "declare variable $test:y := 2;" },
+            { "module namespace test = 'http://lds.org/code/test';", "declare variable $test:x := 'unterminated;" },
+            { "module namespace test = 'http://lds.org/code/test';", "(: unterminated" }
+        };
+        for (String[] lines : modules) {
+            Assert.assertNull(ModuleHeaderScanner.scan(code(lines).getContents()), "Scanned header");
+        }
+
+        // The parser reads the headers the scanner gives up on
+        SourceCode code = code(
+            "xquery version '1.0-ml';",
+            "module namespace test = 'http://lds.org/code/test';",
+            "declare function test:run() { (# pragma #) { 1 } };"
+        );
+        ModuleHeader header = readHeader(code);
+        Assert.assertEquals(header.getNamespace(), "http://lds.org/code/test", "Namespace");
+        Assert.assertEquals(header.getFunctions().size(), 1, "Functions");
+        Assert.assertEquals(header.getFunctions().get(0).getName(), "run", "Function name");
+    }
+
+    private ModuleHeader readHeader(SourceCode code) throws RecognitionException {
+        return readHeader(new XQueryAstParser(code, null).parseDeclarations(), code.getContents());
+    }
+
+    /**
+     * Reads the header from the tree of a module, which the scanned header is
+     * checked against.
+     *
+     * @param tree
+     *            The parsed module, which can be a tree of only the
+     *            declarations (see XQueryAstParser.parseDeclarations)
+     * @param text
+     *            The text the module was parsed from, which the string
+     *            literals are read from
+     */
+    static ModuleHeader readHeader(XQueryTree tree, CharSequence text) {
+        ModuleHeader header = new ModuleHeader();
+        readNode(header, tree, text);
+        return header;
+    }
+
+    private static void readNode(ModuleHeader header, XQueryTree node, CharSequence text) {
+        switch (node.getType()) {
+        case XQueryParser.ModuleDecl:
+            header.setPrefix(node.getTextValue("ModulePrefix"));
+            header.setNamespace(readLiteral(node.find("ModuleNamespace.StringLiteral"), text));
+            return;
+        case XQueryParser.ModuleImport:
+            Import module = new Import(StringUtils.defaultIfEmpty(node.getTextValue("ModulePrefix"), null),
+                    readLiteral(node.find("ModuleNamespace.StringLiteral"), text));
+            for (XQueryTree hint : node.find("ModuleAtHints").getChildren()) {
+                module.addAtHint(readLiteral(hint, text));
+            }
+            header.addImport(module);
+            return;
+        case XQueryParser.FunctionDecl:
+            Function function = new Function(node.getTextValue("FunctionName.QName"), header.getNamespace());
+            function.setLine(node.find("FunctionName").getLine());
+            XQueryTree parameters = (XQueryTree) node.getFirstChildWithType(XQueryParser.ParamList);
+            if (parameters != null) {
+                for (XQueryTree parameter : parameters.getChildren()) {
+                    function.addParameter(new Declaration(parameter.getTextValue("ParamName.QName"), null));
+                }
+            }
+            header.addFunction(function);
+            return;
+        case XQueryParser.VarDecl:
+            Declaration variable = new Declaration(node.getTextValue("VarName.QName"), header.getNamespace());
+            variable.setLine(node.find("VarName").getLine());
+            header.addVariable(variable);
+            return;
+        case XQueryParser.QueryBody:
+            return;
+        default:
+            for (XQueryTree child : node.getChildren()) {
+                readNode(header, child, text);
+            }
+        }
+    }
+
+    private static String readLiteral(XQueryTree literal, CharSequence text) {
+        if (literal == null) {
+            return null;
+        }
+        String value = ModuleHeaderScanner.unescape(text, literal.getStart(), literal.getStop() + 1);
+        return value != null ? value : literal.getValue();
+    }
+}
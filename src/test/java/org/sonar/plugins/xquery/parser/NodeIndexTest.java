@@ -0,0 +1,68 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.RecognitionException;
+import org.antlr.runtime.Token;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.visitor.ParseResult;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.HashSet;
+import java.util.List;
+
+public class NodeIndexTest extends AbstractSonarTest {
+
+    private static final String[] LINES = {
+        "xquery version '1.0-ml';",
+        "import module namespace a = 'http://lds.org/code/a' at '/a.xqy';",
+        "import module namespace b = 'http://lds.org/code/b' at '/b.xqy';",
+        "declare function local:twice($i) {",
+        "  fn:sum(($i, $i))",
+        "};",
+        "fn:string(local:twice(1))"
+    };
+
+    @Test
+    public void testNodes() throws RecognitionException {
+        log("testNodes():");
+        SourceCode code = code(LINES);
+        NodeIndex index = NodeIndex.of(new XQueryAstParser(code, null).parseResult(true).getTree());
+
+        // The call in the deferred function body is indexed as well
+        List<XQueryTree> calls = index.getNodes(XQueryParser.FunctionCall);
+        Assert.assertEquals(calls.size(), 3, "Function calls");
+        Assert.assertEquals(calls.get(0).getLine(), 5, "Line of the first call");
+        Assert.assertEquals(calls.get(1).getLine(), 7, "Line of the second call");
+        Assert.assertSame(calls.get(1).getChild(0).getParent(), calls.get(1), "Node of the tree");
+
+        Assert.assertEquals(index.getNodes(XQueryParser.ModuleImport).size(), 2, "Imports");
+        Assert.assertTrue(index.getNodes(XQueryParser.OrderSpec).isEmpty(), "No order specs");
+        Assert.assertTrue(index.getNodes(Token.EOF).isEmpty(), "Type that is not in the parser");
+    }
+
+    @Test
+    public void testParseResult() throws RecognitionException {
+        log("testParseResult():");
+        SourceCode code = code(LINES);
+        ParseResult result = new XQueryAstParser(code, null).parseResult(false);
+        NodeIndex walked = NodeIndex.of(result.getTree());
+
+        // The index is built while parsing
+        for (int type : new int[] { XQueryParser.FunctionCall, XQueryParser.ModuleImport, XQueryParser.QName }) {
+            Assert.assertTrue(new HashSet<XQueryTree>(result.getNodes(type)).equals(
+                    new HashSet<XQueryTree>(walked.getNodes(type))), "Nodes of type " + type);
+        }
+        Assert.assertEquals(result.getNodes(XQueryParser.FunctionCall).size(), 3, "Function calls");
+
+        // The names of a direct element constructor are not in the tree
+        result = new XQueryAstParser(code("<a>{ 1 }</a>"), null).parseResult(false);
+        Assert.assertTrue(result.getNodes(XQueryParser.QName).isEmpty(), "Element names");
+        Assert.assertEquals(result.getNodes(XQueryParser.DirElemConstructor).size(), 1, "Element constructors");
+    }
+}
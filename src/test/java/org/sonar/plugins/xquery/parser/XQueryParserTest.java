@@ -4,12 +4,16 @@
 
 package org.sonar.plugins.xquery.parser;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.antlr.runtime.RecognitionException;
 import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.node.DependencyMapper;
 import org.sonar.plugins.xquery.parser.reporter.Problem;
 import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -27,7 +31,7 @@ public class XQueryParserTest extends AbstractSonarTest {
             );
             Assert.fail("Should have gotten a syntax error");
         } catch (RuntimeException e) {
-            Assert.assertEquals(e.getMessage(), " - line 2:34 - no viable alternative at input 'cellpadding'", "Error message");
+            Assert.assertEquals(e.getMessage(), " - line 2:21 - no viable alternative at input 'cellpadding'", "Error message");
         }
     }   
     
@@ -227,6 +231,77 @@ public class XQueryParserTest extends AbstractSonarTest {
         Assert.assertEquals(tree.getValue("DirElemContent.DirElemContent.DirElemContent"), "&nbsp; Hello World!", "Direct element content");
     }  
     
+    @Test
+    public void testLexersUsedAgain() throws RecognitionException {
+        log("testLexersUsedAgain():");
+        XQueryTree tree = parse(
+            code(
+                "xquery version '1.0-ml';",
+                "\"one\",",
+                "'it''s',",
+                "\"say 'hi'\",",
+                "<a x='1'>{ 'two' }</a>,",
+                "<b y=\"2\">three</b>"
+            )
+        );
+
+        XQueryTree body = tree.find("QueryBody");
+        Assert.assertNotNull(body, "Query body");
+        Assert.assertEquals(body.getChildCount(), 5, "Body children");
+        Assert.assertEquals(body.getChild(0).getValue("StringLiteral"), "one", "Quoted string");
+        Assert.assertEquals(body.getChild(1).getValue("StringLiteral"), "it '' s", "Apostrophe string");
+        Assert.assertEquals(body.getChild(2).getValue("StringLiteral"), "say 'hi'", "Quoted string with apostrophes");
+        Assert.assertEquals(body.getChild(3).getValue("DirElemContent.StringLiteral"), "two", "Embedded string");
+        Assert.assertEquals(body.getChild(4).getValue("DirElemContent"), "three", "Element content");
+    }
+
+    @Test
+    public void testDeferredFunctionBodies() throws RecognitionException {
+        log("testDeferredFunctionBodies():");
+        SourceCode code = code(
+            "xquery version '1.0-ml';",
+            "module namespace test = 'http://lds.org/code/test';",
+            "declare function test:add($a as xs:int, $b as xs:int) as xs:int {",
+            "    let $sum := $a + $b",
+            "    return ($sum, test:view($sum))[1]",
+            "};",
+            "declare function test:view($a) {",
+            "    <div>{ $a }</div>",
+            "};"
+        );
+        XQueryAstParser parser = new XQueryAstParser(code, null);
+        XQueryTree tree = parser.parseResult(true).getTree();
+        XQueryTree[] bodies = findFunctionBodies(tree);
+        Assert.assertTrue(bodies[0].isDeferred(), "Simple body deferred");
+        Assert.assertFalse(bodies[1].isDeferred(), "Body with a direct constructor parsed in place");
+
+        DependencyMapper mapper = new DependencyMapper();
+        parser.mapDependencies(tree, mapper);
+        Assert.assertNotNull(mapper.getFunctionDeclaration("test:add", "http://lds.org/code/test"), "Function declaration");
+        Assert.assertTrue(bodies[0].isDeferred(), "Body not parsed for the declarations");
+
+        Assert.assertEquals(bodies[0].getChildCount(), 1, "Deferred body children");
+        Assert.assertFalse(bodies[0].isDeferred(), "Body parsed when visited");
+        Assert.assertEquals(bodies[0].getLine(), 4, "Deferred body line");
+        Assert.assertEquals(XQueryTreeCodec.encode(tree), XQueryTreeCodec.encode(parse(code)), "Same tree as when parsed in place");
+    }
+
+    private XQueryTree[] findFunctionBodies(XQueryTree tree) {
+        List<XQueryTree> bodies = new ArrayList<XQueryTree>();
+        findFunctionBodies(tree, bodies);
+        return bodies.toArray(new XQueryTree[bodies.size()]);
+    }
+
+    private void findFunctionBodies(XQueryTree tree, List<XQueryTree> bodies) {
+        if (tree.getType() == XQueryParser.FunctionBody) {
+            bodies.add(tree);
+            return;
+        }
+        for (XQueryTree child : tree.getChildren()) {
+            findFunctionBodies(child, bodies);
+        }
+    }
+
     //  @Test - TODO: Figure out how to support this 
     public void testDoctypeDeclaration() throws RecognitionException {
         log("testDoctypeDeclaration():");
@@ -0,0 +1,123 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.RecognitionException;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.sonar.plugins.xquery.parser.visitor.ParseResult;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class XQueryTreeCodecTest extends AbstractSonarTest {
+
+    @Test
+    public void testRoundTrip() throws RecognitionException, IOException {
+        log("testRoundTrip():");
+        XQueryTree tree = parse(
+            code(
+                "xquery version '1.0-ml';",
+                "module namespace test = 'http://lds.org/code/test';",
+                "declare function test:run($id as xs:string) as element()* {",
+                "    for $x in /root/item[@id = $id]",
+                "    return <result id=\"{$x/@id}\">{ fn:string($x) } &amp; 'text'</result>",
+                "};"
+            )
+        );
+        XQueryTree decoded = XQueryTreeCodec.decode(XQueryTreeCodec.encode(tree));
+
+        assertSameTree(decoded, tree);
+        Assert.assertEquals(decoded.toStringTree(), tree.toStringTree(), "Tree");
+        Assert.assertEquals(decoded.getTextValue("FunctionDecl.FunctionName.QName"), "test:run", "Function name");
+    }
+
+    @Test
+    public void testErrorNode() throws RecognitionException, IOException {
+        log("testErrorNode():");
+        ProblemReporter reporter = new ProblemReporter();
+        reporter.setOutputError(false);
+        XQueryAstParser parser = new XQueryAstParser(
+            code(
+                "xquery version '1.0-ml';",
+                "let $x := (1, 2",
+                "return $x"
+            ),
+            null
+        );
+        XQueryTree tree = parser.parse(reporter);
+        Assert.assertFalse(reporter.getProblems().isEmpty(), "Parse errors");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ParseResult(tree, reporter, 10).write(new DataOutputStream(bytes));
+        ParseResult result = ParseResult.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertSameTree(result.getTree(), tree);
+        Assert.assertEquals(result.getTree().toStringTree(), tree.toStringTree(), "Tree with errors");
+        Assert.assertEquals(result.getSize(), 10, "Source size");
+        Assert.assertEquals(result.getReporter().getProblems().size(), reporter.getProblems().size(), "Problems");
+        Assert.assertEquals(result.getReporter().getProblems().get(0).getMessageString(),
+                reporter.getProblems().get(0).getMessageString(), "Problem message");
+    }
+
+    @Test
+    public void testAbortedResult() throws RecognitionException, IOException {
+        log("testAbortedResult():");
+        ProblemReporter reporter = new ProblemReporter();
+        reporter.setOutputError(false);
+        reporter.setMaxErrors(1);
+        XQueryAstParser parser = new XQueryAstParser(
+            code(
+                "xquery version '1.0-ml';",
+                "let $x := (1, 2",
+                "return $x"
+            ),
+            null
+        );
+        XQueryTree tree = parser.parse(reporter);
+        Assert.assertTrue(reporter.isAborted(), "Parsing stopped");
+        Assert.assertEquals(tree.getChildCount(), 0, "Empty tree");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ParseResult(tree, reporter, 10).write(new DataOutputStream(bytes));
+        ParseResult result = ParseResult.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        Assert.assertTrue(result.getReporter().isAborted(), "Parsing stopped");
+        Assert.assertEquals(result.getReporter().getProblems().size(), reporter.getProblems().size(), "Problems");
+        Assert.assertEquals(result.getReporter().getAbortProblem().getMessage(),
+                reporter.getAbortProblem().getMessage(), "Abort message");
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testInvalidInput() throws IOException {
+        log("testInvalidInput():");
+        XQueryTreeCodec.decode(new byte[] { 1, 2, 3, 4, 5 });
+    }
+
+    private void assertSameTree(XQueryTree actual, XQueryTree expected) {
+        String path = expected.path();
+        Assert.assertEquals(actual.isError(), expected.isError(), "Error node " + path);
+        Assert.assertEquals(actual.getType(), expected.getType(), "Type " + path);
+        Assert.assertEquals(actual.getText(), expected.getText(), "Text " + path);
+        Assert.assertEquals(actual.toString(), expected.toString(), "String " + path);
+        Assert.assertEquals(actual.getLine(), expected.getLine(), "Line " + path);
+        Assert.assertEquals(actual.getCharPositionInLine(), expected.getCharPositionInLine(), "Column " + path);
+        Assert.assertEquals(actual.getStart(), expected.getStart(), "Start " + path);
+        Assert.assertEquals(actual.getStop(), expected.getStop(), "Stop " + path);
+        Assert.assertEquals(actual.getTokenStartIndex(), expected.getTokenStartIndex(), "Token start " + path);
+        Assert.assertEquals(actual.getTokenStopIndex(), expected.getTokenStopIndex(), "Token stop " + path);
+        Assert.assertEquals(actual.getChildCount(), expected.getChildCount(), "Children " + path);
+        for (int i = 0; i < expected.getChildCount(); i++) {
+            Assert.assertSame(actual.getChild(i).getParent(), actual, "Parent " + path);
+            assertSameTree(actual.getChild(i), expected.getChild(i));
+        }
+    }
+}
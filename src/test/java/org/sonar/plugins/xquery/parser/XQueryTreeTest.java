@@ -0,0 +1,168 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.RecognitionException;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.node.DependencyMapper;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class XQueryTreeTest extends AbstractSonarTest {
+
+    // Deep enough to overflow the default thread stack when walked recursively
+    private static final int DEPTH = 200000;
+
+    @Test
+    public void testDeepTree() {
+        log("testDeepTree():");
+        XQueryTree root = node("Root", 0);
+        XQueryTree node = root;
+        for (int i = 0; i < DEPTH; i++) {
+            XQueryTree child = node("Expr", 0);
+            node.addChild(child);
+            node = child;
+        }
+        XQueryTree leaf = node("Leaf", 7);
+        node.addChild(leaf);
+
+        Assert.assertSame(root.find("Leaf"), leaf, "Found node");
+        Assert.assertSame(root.find("Root.Expr.Expr", false), root.getChild(0).getChild(0), "Found node");
+        Assert.assertNull(root.find("Root.Leaf", false), "Node that is not a child");
+        Assert.assertNull(root.find("Missing"), "Missing node");
+        Assert.assertEquals(root.getLine(), 7, "Line of the first descendant with one");
+
+        // Give every node a position so that printing each one is quick
+        for (XQueryTree expr = root; expr != leaf; expr = expr.getChild(0)) {
+            expr.getToken().setLine(1);
+            expr.getToken().setCharPositionInLine(0);
+        }
+        Assert.assertTrue(leaf.path().startsWith("Root (1:0)/Expr (1:0)/Expr (1:0)/"), "Path");
+        Assert.assertTrue(leaf.path().endsWith("/Expr (1:0)/Leaf (7:0)"), "Path");
+
+        // The visitors exit the nodes in the reverse order they entered them
+        final List<XQueryTree> entered = new ArrayList<XQueryTree>();
+        final int[] exited = new int[1];
+        DependencyMapper visitor = new DependencyMapper() {
+            @Override
+            public void enterExpression(XQueryTree node) {
+                entered.add(node);
+            }
+
+            @Override
+            public void exitExpression(XQueryTree node) {
+                exited[0]++;
+                Assert.assertSame(node, entered.get(entered.size() - exited[0]), "Exited node");
+            }
+        };
+        new XQueryAstParser(code("()"), null).mapDependencies(root, visitor);
+        Assert.assertEquals(entered.size(), DEPTH + 2, "Entered nodes");
+        Assert.assertEquals(exited[0], DEPTH + 2, "Exited nodes");
+    }
+
+    @Test
+    public void testToStringTree() {
+        log("testToStringTree():");
+        XQueryTree root = node("A", 1);
+        XQueryTree b = node("B", 1);
+        root.addChild(b);
+        b.addChild(node("C", 2));
+        b.addChild(node("D", 3));
+        root.addChild(node("E", 4));
+
+        Assert.assertEquals(root.toStringTree(), "(A (1:0)\n  (B (1:0)\n    C (2:0)\n    D (3:0)\n  )\n  E (4:0)\n)",
+                "Tree");
+    }
+
+    @Test
+    public void testSelector() {
+        log("testSelector():");
+        // A name in the code that looks like a node name is not a match
+        XQueryTree call = node(XQueryParser.FunctionCall, "FunctionCall");
+        XQueryTree fake = node(XQueryParser.L_NCName, "FunctionName");
+        fake.addChild(node(XQueryParser.L_NCName, "QName"));
+        call.addChild(fake);
+        XQueryTree name = node(XQueryParser.FunctionName, "FunctionName");
+        XQueryTree qname = node(XQueryParser.QName, "QName");
+        name.addChild(qname);
+        call.addChild(name);
+
+        Assert.assertSame(call.find("FunctionName.QName"), qname, "Found node");
+        Assert.assertSame(call.find("FunctionCall.FunctionName", false), name, "Found node");
+        Assert.assertSame(call.find(TreeSelector.compile("FunctionName.QName")), qname, "Found node");
+        Assert.assertSame(TreeSelector.compile("FunctionName.QName"), TreeSelector.compile("FunctionName.QName"),
+                "Cached selector");
+        Assert.assertNull(TreeSelector.compile(" "), "Blank name");
+    }
+
+    @Test
+    public void testValues() {
+        log("testValues():");
+        XQueryTree name = node(XQueryParser.QName, "QName");
+        name.addChild(node(XQueryParser.L_NCName, "local"));
+        name.addChild(node(XQueryParser.L_NCName, " : "));
+        name.addChild(node(XQueryParser.L_NCName, "name"));
+
+        Assert.assertEquals(name.getValue(), "local : name", "Value");
+        Assert.assertEquals(name.getTextValue(), "local:name", "Text value");
+        Assert.assertSame(name.getValue(), name.getValue(), "Kept value");
+        Assert.assertSame(name.getTextValue(), name.getTextValue(), "Kept text value");
+
+        name.addChild(node(XQueryParser.L_NCName, "2"));
+        Assert.assertEquals(name.getTextValue(), "local:name2", "Text value after adding a child");
+
+        Assert.assertEquals(name.getValue(), "local : name 2", "Value after adding a child");
+        Assert.assertNull(node(XQueryParser.QName, "QName").getValue(), "No value");
+        Assert.assertEquals(node(XQueryParser.StringLiteral, "StringLiteral").getValue(), "", "Empty string");
+    }
+
+    @Test
+    public void testPositions() throws RecognitionException {
+        log("testPositions():");
+        SourceCode code = code(
+            "xquery version '1.0-ml';",
+            "declare function local:twice($i) {",
+            "  $i * 2",
+            "};",
+            "local:twice(",
+            "    1)"
+        );
+        XQueryTree tree = new XQueryAstParser(code, null).parseResult(true).getTree();
+        XQueryTree body = tree.find("FunctionDecl.FunctionBody");
+        Assert.assertTrue(body.isDeferred(), "Deferred body");
+
+        XQueryTree declaration = tree.find("FunctionDecl");
+        Assert.assertEquals(declaration.getLine(), 2, "Line");
+        Assert.assertEquals(declaration.getCharPositionInLine(), 17, "Position");
+        Assert.assertTrue(body.isDeferred(), "Body is not parsed for the line of the declaration");
+
+        Assert.assertEquals(declaration.getEndLine(), 3, "End line");
+        Assert.assertEquals(declaration.getEndCharPositionInLine(), 7, "End position");
+        Assert.assertEquals(body.getLine(), 3, "Line of the body");
+        Assert.assertEquals(tree.find("QueryBody").getLine(), 5, "Line");
+        Assert.assertEquals(tree.find("QueryBody").getEndLine(), 6, "End line");
+        Assert.assertEquals(tree.getEndLine(), 6, "End line");
+    }
+
+    private static XQueryTree node(String text, int line) {
+        return node(XQueryParser.XQuery, text, line);
+    }
+
+    private static XQueryTree node(int type, String text) {
+        return node(type, text, 1);
+    }
+
+    private static XQueryTree node(int type, String text, int line) {
+        CommonToken token = new CommonToken(type, text);
+        token.setLine(line);
+        return new XQueryTree(token);
+    }
+}
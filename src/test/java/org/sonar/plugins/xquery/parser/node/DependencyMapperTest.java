@@ -12,6 +12,8 @@ import org.antlr.runtime.RecognitionException;
 import org.sonar.plugins.xquery.AbstractSonarTest;
 import org.sonar.plugins.xquery.language.SourceCode;
 import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.visitor.ParseResult;
+import org.sonar.plugins.xquery.parser.visitor.XQueryAstParser;
 import org.sonar.plugins.xquery.parser.visitor.XQueryAstVisitor;
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -354,6 +356,124 @@ public class DependencyMapperTest extends AbstractSonarTest {
         Assert.assertEquals(decl.getType(), "xs:string", "Function declaration return type");
     }
 
+    @Test
+    public void testLocalMapper() throws RecognitionException {
+        log("testLocalMapper():");
+        DependencyMapper global = importModule(
+            code(
+                "xquery version '1.0-ml';",
+                "module namespace test = 'http://lds.org/code/test';",
+                "declare variable $status as xs:boolean := fn:true();"
+            )
+        );
+        global.setMode("local");
+        DependencyMapper mapper = global.newLocalMapper();
+        doMapping(
+            code(
+                "xquery version '1.0-ml';",
+                "declare variable $local as xs:string := 'local';",
+                "();",
+                "declare variable $leftover as xs:string := 'leftover';",
+                "()"
+            ),
+            false,
+            mapper
+        );
+
+        Assert.assertNotNull(mapper.getVariableDeclaration("status", "http://lds.org/code/test"), "Shared global declaration");
+        Assert.assertNotNull(mapper.getVariableDeclaration("leftover", null), "Declaration after a stack reset");
+        Assert.assertNull(global.getVariableDeclaration("leftover", null), "Declaration leaked into the global declarations");
+    }
+
+    @Test
+    public void testMergeGlobalDeclarations() throws RecognitionException {
+        log("testMergeGlobalDeclarations():");
+        DependencyMapper first = importModule(
+            code(
+                "xquery version '1.0-ml';",
+                "module namespace test = 'http://lds.org/code/test';",
+                "declare variable $status as xs:boolean := fn:true();",
+                "declare function test:run() { () };"
+            )
+        );
+        DependencyMapper second = importModule(
+            code(
+                "xquery version '1.0-ml';",
+                "module namespace test = 'http://lds.org/code/test';",
+                "declare variable $status as xs:string := 'ok';"
+            )
+        );
+        DependencyMapper mapper = new DependencyMapper();
+        mapper.mergeGlobalDeclarations(first);
+        mapper.mergeGlobalDeclarations(second);
+
+        Assert.assertNotNull(mapper.getFunctionDeclaration("test:run", "http://lds.org/code/test"), "Merged function declaration");
+        Declaration status = mapper.getVariableDeclaration("status", "http://lds.org/code/test");
+        Assert.assertNotNull(status, "Merged variable declaration");
+        Assert.assertEquals(status.getType(), "xs:string", "Later declaration wins");
+    }
+
+    @Test
+    public void testParseDeclarationsOnly() throws RecognitionException {
+        log("testParseDeclarationsOnly():");
+        SourceCode code = code(
+            "xquery version '1.0-ml';",
+            "module namespace test = 'http://lds.org/code/test';",
+            "declare variable $status as xs:boolean := fn:not(fn:empty((1, 2)[. gt 1]));",
+            "declare variable $name as xs:string := 'it''s';",
+            "declare function test:run($a as xs:int) as xs:int {",
+            "    let $b := ($a + 1) * 2",
+            "    return $b",
+            "};",
+            "declare function test:view($a) {",
+            "    <div class=\"{$a}\">{ $a }</div>",
+            "};"
+        );
+        XQueryAstParser parser = new XQueryAstParser(code, null);
+        XQueryTree tree = parser.parseDeclarations();
+        DependencyMapper mapper = new DependencyMapper();
+        parser.mapDependencies(tree, mapper);
+
+        Assert.assertEquals(mapper.getGlobalDeclarations().size(), importModule(code).getGlobalDeclarations().size(), "Declarations");
+        Assert.assertEquals(mapper.getVariableDeclaration("status", "http://lds.org/code/test").getType(), "xs:boolean", "Variable type");
+        Assert.assertNotNull(mapper.getVariableDeclaration("name", "http://lds.org/code/test"), "Variable with an escaped string");
+        Assert.assertEquals(mapper.getFunctionDeclaration("test:run", "http://lds.org/code/test").getLine(), 5, "Function line");
+        Assert.assertNotNull(mapper.getFunctionDeclaration("test:view", "http://lds.org/code/test"), "Function with a direct constructor");
+        Assert.assertNull(tree.find("FLOWRExpr"), "Function body skipped");
+        Assert.assertNotNull(tree.find("DirElemConstructor"), "Function body with a direct constructor parsed");
+    }
+
+    @Test
+    public void testMapFromNodeIndex() throws RecognitionException {
+        log("testMapFromNodeIndex():");
+        SourceCode code = code(
+            "xquery version '1.0-ml';",
+            "module namespace test = 'http://lds.org/code/test';",
+            "declare variable $status as xs:string := 'ok';",
+            "declare function test:run($a as xs:int) as xs:int {",
+            "    $a + 1",
+            "};",
+            "declare variable $run as xs:boolean := fn:true();"
+        );
+        XQueryAstParser parser = new XQueryAstParser(code, null);
+        ParseResult result = parser.parseResult(true);
+        DependencyMapper mapper = new DependencyMapper();
+        parser.mapDependencies(result, mapper);
+
+        DependencyMapper walked = importModule(code);
+        Assert.assertEquals(mapper.getNamespace(), walked.getNamespace(), "Module namespace");
+        Assert.assertEquals(mapper.getGlobalDeclarations().size(), walked.getGlobalDeclarations().size(), "Declarations");
+        Assert.assertEquals(mapper.getVariableDeclaration("status", "http://lds.org/code/test").getType(), "xs:string", "Variable type");
+        Assert.assertEquals(mapper.getVariableDeclaration("run", "http://lds.org/code/test").getLine(), 7, "Declaration that comes last");
+        Assert.assertTrue(result.getTree().find("FunctionDecl.FunctionBody").isDeferred(), "Function body not parsed");
+
+        // A "local" mode mapper needs the whole tree
+        DependencyMapper local = new DependencyMapper("local");
+        Assert.assertNull(local.getGlobalNodeTypes(), "Node types in local mode");
+        parser.mapDependencies(result, local);
+        Assert.assertFalse(result.getTree().find("FunctionDecl.FunctionBody").isDeferred(), "Function body parsed");
+    }
+
     @Test
     public void testLocalVariableDelcaration() throws RecognitionException {
         log("testLocalVariableDelcaration():");
@@ -0,0 +1,57 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser.visitor;
+
+import org.antlr.runtime.RecognitionException;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.node.DependencyMapper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+
+public class DeadlineTest extends AbstractSonarTest {
+
+    @Test
+    public void testNoLimit() throws RecognitionException {
+        log("testNoLimit():");
+        Deadline deadline = new Deadline(0);
+        Assert.assertFalse(deadline.isExpired(), "No limit");
+
+        XQueryAstParser parser = new XQueryAstParser(source(), new ArrayList<XQueryAstVisitor>());
+        parser.setDeadline(deadline);
+        parser.mapDependencies(parser.parse(), new DependencyMapper());
+    }
+
+    @Test
+    public void testExpired() throws RecognitionException, InterruptedException {
+        log("testExpired():");
+        SourceCode code = source();
+        XQueryTree tree = new XQueryAstParser(code, null).parse();
+
+        Deadline deadline = new Deadline(1);
+        Thread.sleep(5);
+        Assert.assertTrue(deadline.isExpired(), "Expired");
+
+        XQueryAstParser parser = new XQueryAstParser(code, new ArrayList<XQueryAstVisitor>());
+        parser.setDeadline(deadline);
+        try {
+            parser.mapDependencies(tree, new DependencyMapper());
+            Assert.fail("Visiting the tree past the deadline");
+        } catch (DeadlineExceededException e) {
+            Assert.assertTrue(deadline.getElapsedTime() >= 1, "Elapsed time");
+        }
+    }
+
+    private SourceCode source() {
+        return code(
+            "xquery version '1.0-ml';",
+            "module namespace test = 'http://lds.org/code/test';",
+            "declare function test:run($i) { for $x in (1 to $i) return $x * 2 };"
+        );
+    }
+}
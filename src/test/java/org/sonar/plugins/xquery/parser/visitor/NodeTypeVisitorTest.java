@@ -0,0 +1,76 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser.visitor;
+
+import org.antlr.runtime.RecognitionException;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.checks.AbstractCheck;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.XQueryParser;
+import org.sonar.plugins.xquery.parser.XQueryTree;
+import org.sonar.plugins.xquery.parser.node.DependencyMapper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class NodeTypeVisitorTest extends AbstractSonarTest {
+
+    @Test
+    public void testDispatch() throws RecognitionException {
+        log("testDispatch():");
+        SourceCode code = code(
+            "xquery version '1.0-ml';",
+            "declare function local:twice($i) { $i * 2 };",
+            "fn:sum(for $i in (1, 2) return local:twice($i))"
+        );
+        RecordingCheck all = new RecordingCheck(null);
+        RecordingCheck calls = new RecordingCheck(new int[] { XQueryParser.FunctionCall });
+        RecordingCheck none = new RecordingCheck(new int[] {});
+
+        XQueryAstParser parser = new XQueryAstParser(code, Arrays.asList(new XQueryAstVisitor[] { all, calls, none }));
+        parser.process(parser.parse(), new DependencyMapper(), getReporter());
+
+        Assert.assertTrue(all.entered.size() > calls.entered.size(), "Every node is entered by default");
+        Assert.assertEquals(all.entered.size(), all.exited, "Exited nodes");
+        Assert.assertEquals(calls.entered, Arrays.asList("FunctionCall", "FunctionCall"), "Function calls");
+        Assert.assertEquals(calls.exited, 2, "Exited function calls");
+        Assert.assertTrue(none.entered.isEmpty(), "No nodes");
+
+        // The parser keeps the visitors of each type for the next source code
+        parser.setSourceCode(code("fn:concat(fn:string(1), 'a')"));
+        parser.process(parser.parse(), new DependencyMapper(), getReporter());
+        Assert.assertEquals(calls.entered.size(), 4, "Function calls of both trees");
+        Assert.assertEquals(all.entered.size(), all.exited, "Exited nodes of both trees");
+    }
+
+    private static class RecordingCheck extends AbstractCheck {
+
+        private final int[] nodeTypes;
+        private final List<String> entered = new ArrayList<String>();
+        private int exited;
+
+        RecordingCheck(int[] nodeTypes) {
+            this.nodeTypes = nodeTypes;
+        }
+
+        @Override
+        public int[] getNodeTypes() {
+            return nodeTypes;
+        }
+
+        @Override
+        public void enterExpression(XQueryTree node) {
+            entered.add(node.getText());
+        }
+
+        @Override
+        public void exitExpression(XQueryTree node) {
+            exited++;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * © 2014 by Intellectual Reserve, Inc. All rights reserved.
+ */
+
+package org.sonar.plugins.xquery.parser.visitor;
+
+import org.antlr.runtime.RecognitionException;
+import org.apache.commons.io.FileUtils;
+import org.sonar.plugins.xquery.AbstractSonarTest;
+import org.sonar.plugins.xquery.language.SourceCode;
+import org.sonar.plugins.xquery.parser.reporter.Problem;
+import org.sonar.plugins.xquery.parser.reporter.ProblemReporter;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+public class ParseCacheTest extends AbstractSonarTest {
+
+    @Test
+    public void testTake() {
+        log("testTake():");
+        ParseCache cache = new ParseCache(1000 * ParseCache.BYTES_PER_CHARACTER);
+        ParseResult result = result(10);
+        cache.put("a.xqy", result);
+
+        Assert.assertSame(cache.take("a.xqy"), result, "Cached result");
+        Assert.assertNull(cache.take("a.xqy"), "Result is only handed out once");
+        Assert.assertEquals(cache.getSize(), 0, "Cache size after take");
+        Assert.assertEquals(cache.getHits(), 1, "Cache hits");
+        Assert.assertEquals(cache.getMisses(), 1, "Cache misses");
+    }
+
+    @Test
+    public void testEviction() {
+        log("testEviction():");
+        ParseCache cache = new ParseCache(100 * ParseCache.BYTES_PER_CHARACTER);
+        cache.put("a.xqy", result(40));
+        cache.put("b.xqy", result(40));
+        cache.put("c.xqy", result(40));
+        cache.put("huge.xqy", result(200));
+
+        Assert.assertNull(cache.take("a.xqy"), "Oldest result is evicted");
+        Assert.assertNotNull(cache.take("b.xqy"), "Result within budget");
+        Assert.assertNotNull(cache.take("c.xqy"), "Result within budget");
+        Assert.assertNull(cache.take("huge.xqy"), "Result over the whole budget is not cached");
+    }
+
+    @Test
+    public void testCompactWeight() throws RecognitionException {
+        log("testCompactWeight():");
+        SourceCode code = code(
+            "xquery version '1.0-ml';",
+            "declare function local:twice($i) {",
+            "  $i * 2",
+            "};",
+            "local:twice(1) +"
+        );
+        ParseResult result = new XQueryAstParser(code, null).parseResult(true);
+        Problem problem = result.getReporter().getProblems().get(0);
+        int line = problem.getLine();
+        ParseResult compact = result.compact();
+
+        Assert.assertTrue(compact.getMemorySize() > 0, "Weight of the compact result");
+        Assert.assertTrue(compact.getMemorySize() < result.getMemorySize(), "Compact result weighs less");
+        Assert.assertEquals(problem.getLine(), line, "Line of the problem");
+
+        ParseCache cache = new ParseCache(compact.getMemorySize());
+        cache.put("a.xqy", compact);
+        Assert.assertEquals(cache.getSize(), compact.getMemorySize(), "Cache size");
+        Assert.assertSame(cache.take("a.xqy"), compact, "Cached result");
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        log("testSpill():");
+        File directory = Files.createTempDirectory("parse-cache").toFile();
+        try {
+            SourceCode code = code(
+                "xquery version '1.0-ml';",
+                "declare function local:twice($i) {",
+                "  $i * 2",
+                "};",
+                "local:twice(1)"
+            );
+            ParseResult compact = new XQueryAstParser(code, null).parseResult(true).compact();
+            String tree = compact.getTree().toStringTree();
+            ParseCache cache = new ParseCache(compact.getMemorySize(), directory);
+            cache.put("a.xqy", compact);
+            cache.put("b.xqy", new XQueryAstParser(code, null).parseResult(true).compact());
+
+            ParseResult spilled = cache.take("a.xqy");
+            Assert.assertNotSame(spilled, compact, "Result read back from the spill directory");
+            Assert.assertEquals(spilled.getTree().toStringTree(), tree, "Spilled tree");
+            Assert.assertEquals(cache.getHits(), 1, "Cache hits");
+            Assert.assertEquals(directory.list().length, 0, "Spilled file is deleted once read");
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    private ParseResult result(int size) {
+        return new ParseResult(null, new ProblemReporter(), size);
+    }
+}